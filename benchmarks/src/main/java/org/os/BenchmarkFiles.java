@@ -0,0 +1,64 @@
+package org.os;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+// Input generation shared by the benchmark suites
+final class BenchmarkFiles {
+    private static final String[] WORDS = {"INFO", "WARN", "ERROR", "request", "served", "cache", "miss", "timeout", "user", "session"};
+
+    private BenchmarkFiles(){}
+
+    // "1MB", "64MB", "1GB" -> bytes
+    static long parseSize(String size){
+        String unit = size.replaceAll("[0-9]", "");
+        long value = Long.parseLong(size.substring(0, size.length() - unit.length()));
+        return switch (unit){
+            case "KB" -> value << 10;
+            case "MB" -> value << 20;
+            case "GB" -> value << 30;
+            default -> value;
+        };
+    }
+
+    // Log-like lines with a limited vocabulary so grep and uniq have real work to do
+    static Path generateLog(Path directory, String name, long bytes) throws IOException {
+        Path file = directory.resolve(name);
+        Random random = new Random(42);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file), StandardCharsets.UTF_8), 1 << 16)){
+            long written = 0;
+            StringBuilder line = new StringBuilder();
+            while (written < bytes){
+                line.setLength(0);
+                line.append(random.nextInt(100_000));
+                for (int i = 0; i < 6; i++){
+                    line.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+                }
+                line.append('\n');
+                writer.write(line.toString());
+                written += line.length();
+            }
+        }
+        return file;
+    }
+
+    static void populateDirectory(Path directory, int entries) throws IOException {
+        for (int i = 0; i < entries; i++){
+            Files.createFile(directory.resolve("entry-" + i));
+        }
+    }
+
+    static void deleteRecursively(Path root) throws IOException {
+        if (!Files.exists(root)){
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)){
+            for (Path path: (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator){
+                Files.delete(path);
+            }
+        }
+    }
+}
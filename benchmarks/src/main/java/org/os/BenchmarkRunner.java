@@ -0,0 +1,25 @@
+package org.os;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// java -jar benchmarks/target/benchmarks.jar [JMH options]
+// Same as the JMH main but results always go to a JSON file (default target/jmh-result.json)
+// so runs can be compared across releases.
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions options = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(options);
+        if (!options.getResultFormat().hasValue()){
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (!options.getResult().hasValue()){
+            builder.result(System.getProperty("jmh.result", "target/jmh-result.json"));
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,54 @@
+package org.os;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+// cat + redirect throughput, with and without a filter in between
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CatRedirectBenchmark {
+    @Param({"1MB", "64MB", "1GB"})
+    public String inputSize;
+
+    private Path directory;
+    private CLI cli;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("cli-cat-bench");
+        BenchmarkFiles.generateLog(directory, "input.log", BenchmarkFiles.parseSize(inputSize));
+        cli = new CLI();
+        cli.executeCommand("cd " + directory);
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeOutput() throws IOException {
+        Files.deleteIfExists(directory.resolve("output.log"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public String catToFile(){
+        return cli.executeCommand("cat input.log > output.log");
+    }
+
+    @Benchmark
+    public String catAppendToFile(){
+        return cli.executeCommand("cat input.log >> output.log");
+    }
+
+    @Benchmark
+    public String catThroughFilterToFile(){
+        return cli.executeCommand("cat input.log | grep -v zzz > output.log");
+    }
+}
@@ -0,0 +1,59 @@
+package org.os;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+// grep and uniq throughput over generated logs of 1 MB to 1 GB
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FilterBenchmark {
+    @Param({"1MB", "64MB", "1GB"})
+    public String inputSize;
+
+    private Path directory;
+    private CLI cli;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("cli-filter-bench");
+        BenchmarkFiles.generateLog(directory, "input.log", BenchmarkFiles.parseSize(inputSize));
+        cli = new CLI();
+        cli.executeCommand("cd " + directory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public String grepLiteral(){
+        return cli.executeCommand("cat input.log | grep -c timeout");
+    }
+
+    @Benchmark
+    public String grepIgnoreCase(){
+        return cli.executeCommand("cat input.log | grep -c -i error");
+    }
+
+    @Benchmark
+    public String grepRegex(){
+        return cli.executeCommand("cat input.log | grep -c -E ^9[0-9]+ ERROR");
+    }
+
+    @Benchmark
+    public String uniqGlobal(){
+        return cli.executeCommand("cat input.log | uniq | grep -c ERROR");
+    }
+
+    @Benchmark
+    public String uniqAdjacent(){
+        return cli.executeCommand("cat input.log | uniq -a | grep -c ERROR");
+    }
+}
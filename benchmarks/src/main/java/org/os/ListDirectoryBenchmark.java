@@ -0,0 +1,44 @@
+package org.os;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+
+// ls over directories holding 10 to 1M entries
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ListDirectoryBenchmark {
+    @Param({"10", "1000", "100000", "1000000"})
+    public int entries;
+
+    private Path directory;
+    private CLI cli;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("cli-ls-bench");
+        BenchmarkFiles.populateDirectory(directory, entries);
+        cli = new CLI();
+        cli.executeCommand("cd " + directory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        BenchmarkFiles.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public String ls(){
+        return cli.executeCommand("ls | grep -c entry");
+    }
+
+    @Benchmark
+    public String lsReversed(){
+        return cli.executeCommand("ls -r | grep -c entry");
+    }
+}
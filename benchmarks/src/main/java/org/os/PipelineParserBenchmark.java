@@ -0,0 +1,34 @@
+package org.os;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of parsing a command line (cached after the first call) and of running it with commands
+// cheap enough that the pipeline plumbing dominates
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineParserBenchmark {
+    @Param({"pwd", "pwd | grep -v zzz", "pwd | grep -v zzz | uniq -a | grep -c x | uniq"})
+    public String commandLine;
+
+    private CLI cli;
+
+    @Setup
+    public void setup(){
+        cli = new CLI();
+    }
+
+    @Benchmark
+    public Object parse(){
+        return CommandParser.parse(commandLine);
+    }
+
+    @Benchmark
+    public String executeCommand(){
+        return cli.executeCommand(commandLine);
+    }
+}
@@ -0,0 +1,118 @@
+package org.os;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// java -cp benchmarks/target/benchmarks.jar org.os.ServerLoadTest [-s sessions] [-c concurrency]
+//     [-n commands per session] [-u socket-path | -t port]
+// Load test for CLIServer: opens `sessions` sessions, at most `concurrency` at a time, each running
+// `n` commands, and reports sessions per second plus p50/p99/max command latency. Without -u/-t a
+// server is started in this JVM on a temporary Unix domain socket.
+public class ServerLoadTest {
+    private static final String[] COMMANDS = {"pwd", "ls", "ls | grep e", "help | uniq -c", "cd src", "ls -r", "cd .."};
+
+    public static void main(String[] args) throws Exception {
+        int sessions = 10_000, concurrency = 1_000, commands = 10;
+        SocketAddress address = null;
+        for (int i = 0; i + 1 < args.length; i += 2){
+            switch (args[i]) {
+                case "-s" -> sessions = Integer.parseInt(args[i + 1]);
+                case "-c" -> concurrency = Integer.parseInt(args[i + 1]);
+                case "-n" -> commands = Integer.parseInt(args[i + 1]);
+                case "-u" -> address = UnixDomainSocketAddress.of(args[i + 1]);
+                case "-t" -> address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[i + 1]));
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        CLIServer server = null;
+        if (address == null){
+            Path socket = Files.createTempDirectory("cli-load").resolve("cli.sock");
+            server = new CLIServer(UnixDomainSocketAddress.of(socket));
+            address = server.address();
+            CLIServer running = server;
+            Thread.ofPlatform().daemon().start(() -> {
+                try {
+                    running.serve();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        try {
+            run(address, sessions, concurrency, commands);
+        } finally {
+            if (server != null){
+                server.close();
+            }
+        }
+    }
+
+    private static void run(SocketAddress address, int sessions, int concurrency, int commands) throws InterruptedException {
+        long[] latencies = new long[sessions * commands];
+        AtomicLong recorded = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        Semaphore permits = new Semaphore(concurrency);
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()){
+            for (int s = 0; s < sessions; s++){
+                permits.acquire();
+                int session = s;
+                executor.submit(() -> {
+                    try {
+                        session(address, session, commands, latencies, recorded);
+                    } catch (IOException e) {
+                        if (failures.incrementAndGet() == 1){
+                            System.err.println("First failure: " + e);
+                        }
+                    } finally {
+                        permits.release();
+                    }
+                });
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int count = (int) recorded.get();
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        System.out.printf("sessions: %d (%d failed), concurrency %d, %d commands each%n", sessions, failures.get(), concurrency, commands);
+        System.out.printf("sessions/s: %.1f, commands/s: %.1f%n", sessions / seconds, count / seconds);
+        if (count > 0){
+            System.out.printf("latency us: p50 %.1f, p99 %.1f, max %.1f%n",
+                    percentile(sorted, 0.50) / 1e3, percentile(sorted, 0.99) / 1e3, sorted[count - 1] / 1e3);
+        }
+    }
+
+    private static void session(SocketAddress address, int session, int commands, long[] latencies, AtomicLong recorded) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(address);
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8))){
+            for (int i = 0; i < commands; i++){
+                long begin = System.nanoTime();
+                out.write(COMMANDS[(session + i) % COMMANDS.length]);
+                out.write('\n');
+                out.flush();
+                String line;
+                while ((line = in.readLine()) != null && !(line.length() == 1 && line.charAt(0) == CLIServer.END_OF_OUTPUT)){
+                    // Output is not checked, only timed
+                }
+                if (line == null){
+                    throw new EOFException("Session closed by the server");
+                }
+                latencies[(int) recorded.getAndIncrement()] = System.nanoTime() - begin;
+            }
+            out.write("exit\n");
+            out.flush();
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction){
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,80 @@
+package org.os;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Time from launching `ShellSimulator -c <command>` in a new JVM until its first byte of output,
+// i.e. what a cron job pays per invocation. Launcher flags:
+//   default  - plain java
+//   appcds   - dynamic AppCDS archive of this class path, created by a first run
+//   appcds-c1 - same, plus C1 only and the serial GC (fastest for short runs)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class TimeToFirstOutputBenchmark {
+    @Param({"default", "appcds", "appcds-c1"})
+    public String launcher;
+
+    @Param({"pwd", "ls | grep -c -E ."})
+    public String command;
+
+    private Path archive;
+    private Process process;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        archive = Files.createTempDirectory("ttfo").resolve("cli.jsa");
+        if (!launcher.equals("default")){
+            // The first run writes the archive, later runs map it
+            start().waitFor();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(archive);
+        Files.deleteIfExists(archive.getParent());
+    }
+
+    @Benchmark
+    public int firstOutput() throws IOException {
+        process = start();
+        InputStream out = process.getInputStream();
+        return out.read();
+    }
+
+    @TearDown(Level.Invocation)
+    public void finish() throws IOException, InterruptedException {
+        process.getInputStream().transferTo(OutputStream.nullOutputStream());
+        process.waitFor();
+    }
+
+    private Process start() throws IOException {
+        List<String> commandLine = new ArrayList<>();
+        commandLine.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (!launcher.equals("default")){
+            commandLine.add("-XX:+AutoCreateSharedArchive");
+            commandLine.add("-XX:SharedArchiveFile=" + archive);
+        }
+        if (launcher.equals("appcds-c1")){
+            commandLine.add("-XX:TieredStopAtLevel=1");
+            commandLine.add("-XX:+UseSerialGC");
+        }
+        commandLine.add("-cp");
+        commandLine.add(System.getProperty("java.class.path"));
+        commandLine.add("org.os.ShellSimulator");
+        commandLine.add("-c");
+        commandLine.add(command);
+        return new ProcessBuilder(commandLine).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+    }
+}
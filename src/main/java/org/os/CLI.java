@@ -1,48 +1,148 @@
 package org.os;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
-import java.util.function.Function;
 import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
 import java.util.ArrayList;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class CLI{
     private static String ERROR_MESSAGE = "An unexpceted error occured";
-    private final Map<String, Function<String[], String>> commandRegistry = new HashMap<>();
-    private final Map<String, String> commandDescription = new HashMap<>();
-    private final Map<String, BiFunction<String, String, String>> pipelineFilterRegistry = new HashMap<>();
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+    private static final String LS_USAGE = "ls [-a] [-r] [-l]";
+    // Commands whose arguments are paths and get glob/brace expanded
+    private static final Set<String> GLOB_COMMANDS = Set.of("cat", "rm", "touch", "mv", "cp", "rmdir");
+    // Commands that read no files, they need not wait for buffered redirect output
+    private static final Set<String> NO_FILE_COMMANDS = Set.of("echo", "pwd", "cd", "help", "stats", "metrics", "history");
+    private static final String HISTORY_USAGE = "history [-n N] [text]";
+    private static final String TIME_USAGE = "time <command> [| filter]... [> file]";
+    private static final String COMMIT_USAGE = "commit [-j N]";
+    private static final String FIND_USAGE = "find [path] [-name <glob>] [-type f|d] [-size [+|-]N[k|M|G]] [-j N]";
+    // A built-in filter working on the output of the previous stage
+    @FunctionalInterface
+    private interface FilterFunction {
+        Stream<String> apply(CLI cli, Stream<String> input, List<String> args);
+    }
     private Path currentDirectory;
+    // Run every pipeline stage on its own virtual thread, connected by bounded pipes
+    private boolean concurrentPipeline = Boolean.getBoolean("cli.concurrentPipeline");
+    // No ANSI colors in messages (batch mode, output going to files or other programs)
+    private boolean plainOutput = false;
+    // The interactive shell of the user: history shows their ~/.cli_history, which scripts and
+    // server sessions must not see
+    private boolean interactive = false;
+    // Shared metadata cache, null when disabled
+    private MetadataCache metadataCache = Boolean.getBoolean("cli.metadataCache") ? MetadataCache.shared() : null;
+    // Shared cache of pure pipeline results, null when disabled
+    private ResultCache resultCache = Boolean.getBoolean("cli.resultCache") ? ResultCache.shared() : null;
+    // mkdir, touch, mv, rm and rmdir planned since begin, null outside a transaction
+    private Transaction transaction;
+    // Where commit journals go and recover looks for them
+    private Path journalDirectory = Transaction.JOURNALS;
     public CLI(){
-        currentDirectory = Paths.get("").toAbsolutePath();
-        commandRegistry.put("pwd", args -> currentDirectory.toString());
-        commandRegistry.put("cd", this::changeDirectory);
-        commandRegistry.put("ls", this::listDirectory);
-        commandRegistry.put("mkdir", this::createNewDirectory);
-        commandRegistry.put("rmdir", this::removeDirectory);
-        commandRegistry.put("touch", this::createNewFile);
-        commandRegistry.put("mv", this::moveOrRename);
-        commandRegistry.put("rm", this::removeFile);
-        commandRegistry.put("cat", this::displayFileContents);
-        commandRegistry.put("help", this::helpDisplay);
-
-        commandDescription.put("pwd", "Usage: pwd\n     Displays the current working directory.");
-        commandDescription.put("cd", "Usage: cd <directory>\n     Changes the current directory to <directory>.");
-        commandDescription.put("ls", "Usage: ls\n     Lists all files and directories in the current directory.");
-        commandDescription.put("mkdir", "Usage: mkdir <directory>\n     Creates a new directory named <directory>.");
-        commandDescription.put("rmdir", "Usage: rmdir <directory>\n     Removes the specified directory if it is empty.");
-        commandDescription.put("touch", "Usage: touch <filename>\n     Creates a new empty file named <filename>.");
-        commandDescription.put("mv", "Usage: mv <source> <destination>\n     Moves or renames a file or directory.");
-        commandDescription.put("rm", "Usage: rm <filename>\n     Deletes the specified file.");
-        commandDescription.put("cat", "Usage: cat <filename>\n     Displays the contents of the specified file.");
-        commandDescription.put("help", "Usage: help\n     Displays this help message with a list of available commands.");
-
-
-        pipelineFilterRegistry.put("less", this::paginateOutputLess);
-        pipelineFilterRegistry.put("more", this::paginateOutputMore);
-        pipelineFilterRegistry.put("uniq", this::getUniqe);
-        pipelineFilterRegistry.put("grep", this::filterWithPattern);
+        this(Path.of(System.getProperty("user.dir")));
+    }
+    CLI(Path startDirectory){
+        currentDirectory = startDirectory.toAbsolutePath();
+    }
+    // What plugin commands and filters see of this session
+    private Command.Context context(){
+        return new Command.Context() {
+            @Override
+            public Path currentDirectory() {
+                return currentDirectory;
+            }
+            @Override
+            public String error(String what, String detail) {
+                return decorateErrorMessage(what, detail);
+            }
+        };
+    }
+    // Built-ins are looked up through a switch rather than maps filled up front, so a one-shot run
+    // only links the method reference it calls. They are shared by every CLI (server sessions
+    // included) and get the CLI they run for; a CLI itself only holds the session state above.
+    private static BiFunction<CLI, String[], Stream<String>> command(String name){
+        return switch (name) {
+            case "ls" -> CLI::listDirectory;
+            case "cat" -> CLI::displayFileContents;
+            case "find" -> CLI::findFiles;
+            case "tail" -> CLI::tailFile;
+            case "pwd" -> adaptCommand((cli, args) -> cli.currentDirectory.toString());
+            case "echo" -> adaptCommand((cli, args) -> String.join(" ", args) + "\n");
+            case "cd" -> adaptCommand(CLI::changeDirectory);
+            case "mkdir" -> adaptCommand(CLI::createNewDirectory);
+            case "rmdir" -> adaptCommand(CLI::removeDirectory);
+            case "touch" -> adaptCommand(CLI::createNewFile);
+            case "mv" -> adaptCommand(CLI::moveOrRename);
+            case "rm" -> adaptCommand(CLI::removeFile);
+            case "cp" -> adaptCommand(CLI::copyFiles);
+            case "begin" -> adaptCommand(CLI::beginTransaction);
+            case "commit" -> adaptCommand(CLI::commitTransaction);
+            case "rollback" -> adaptCommand(CLI::rollbackTransaction);
+            case "recover" -> adaptCommand(CLI::recoverTransactions);
+            case "help" -> adaptCommand(CLI::helpDisplay);
+            case "stats" -> adaptCommand(CLI::showStats);
+            case "metrics" -> adaptCommand(CLI::showMetrics);
+            case "history" -> CLI::showHistory;
+            default -> null;
+        };
+    }
+    private static FilterFunction filter(String name){
+        return switch (name) {
+            case "less" -> CLI::paginateOutputLess;
+            case "more" -> CLI::paginateOutputMore;
+            case "grep" -> CLI::filterWithPattern;
+            case "uniq" -> CLI::getUniqe;
+            case "sort" -> CLI::sortLines;
+            case "wc" -> CLI::countLines;
+            case "head" -> CLI::firstLines;
+            case "cut" -> CLI::cutFields;
+            default -> null;
+        };
+    }
+    // Help texts of the built-ins, only loaded when help runs
+    private static final class Builtins {
+        static final List<Descriptor> commands = List.of(
+                new Descriptor("pwd", "pwd", "Displays the current working directory.", true, true),
+                new Descriptor("echo", "echo [text]...", "Prints its arguments separated by spaces.", true, true),
+                new Descriptor("cd", "cd <directory>", "Changes the current directory to <directory>.", true, false),
+                new Descriptor("ls", LS_USAGE, "Lists all files and directories in the current directory, sorted by name.\n     -a includes hidden entries, -r reverses the order, -l shows permissions, owner, size and modification time.", true, true),
+                new Descriptor("mkdir", "mkdir <directory>", "Creates a new directory named <directory>.", true, false),
+                new Descriptor("rmdir", "rmdir <directory>...", "Removes the specified directory if it is empty.", true, false),
+                new Descriptor("touch", "touch <filename>...", "Creates a new empty file named <filename>.", true, false),
+                new Descriptor("mv", "mv <source>... <destination>", "Moves or renames a file or directory, or moves several into a directory.", true, false),
+                new Descriptor("rm", "rm [-r] [-v] [-j N] <filename>...", "Deletes the specified files, -r removes directories recursively in parallel (-j threads, -v progress).", true, false),
+                new Descriptor("cp", "cp [-r] [-v] [-j N] <source> <destination>", "Copies a file, or with -r a directory tree in parallel (-j threads, -v progress).", true, false),
+                new Descriptor("begin", "begin", "Starts a transaction: mkdir, touch, mv, rm and rmdir are planned, coalesced and only applied by commit.", true, false),
+                new Descriptor("commit", COMMIT_USAGE, "Applies the planned changes in parallel (-j threads) through a journal, rolling all of them back if one fails.", true, false),
+                new Descriptor("rollback", "rollback", "Discards the planned changes of the transaction.", true, false),
+                new Descriptor("recover", Transaction.RECOVER_USAGE, "Resumes, or rolls back, the commits interrupted by a crash.", true, false),
+                new Descriptor("find", FIND_USAGE, "Lists the paths below <path> matching every given test.", true, true),
+                new Descriptor("cat", "cat [-f] <filename>...", "Displays the contents of the specified file (gzip and zstd are decompressed), -f keeps printing what is appended to it.", true, true),
+                new Descriptor("tail", Tail.USAGE, "Displays the last N lines (default 10) of a file, -f keeps printing what is appended, across log rotation.", true, true),
+                new Descriptor("help", "help", "Displays this help message with a list of available commands.", true, true),
+                new Descriptor("history", HISTORY_USAGE, "Lists the commands entered in interactive shells, the last N or those containing <text> (interactive shell only).", true, true),
+                new Descriptor("stats", "stats [-r]", "Shows calls, output size, time and allocation per command and filter (-r resets them).", true, false),
+                new Descriptor("metrics", "metrics", "Prints the counters and recent latency quantiles per command and filter in the Prometheus text format.", true, false),
+                new Descriptor("time", TIME_USAGE, "Runs the pipeline, then shows the wall time, CPU time and allocation of each stage.", true, false));
+        static final List<Descriptor> filters = List.of(
+                new Descriptor("grep", Grep.USAGE, "Keeps the lines matching <pattern> (-v the others, -c counts them, -i ignores case, -E regex).", true, true),
+                new Descriptor("uniq", Uniq.USAGE, "Drops repeated lines (-a only adjacent repeats, -c prefixes counts).", true, true),
+                new Descriptor("sort", Sort.USAGE, "Sorts the lines (-n by leading number, -r reversed, -k from field N), in temp files beyond cli.sort.memoryLimit.", false, true),
+                new Descriptor("wc", WordCount.USAGE, "Counts lines (-l), words (-w) and bytes (-c), all three by default.", false, true),
+                new Descriptor("head", Head.USAGE, "Keeps the first N lines (default 10) and stops the commands before it.", true, true),
+                new Descriptor("cut", Cut.USAGE, "Keeps the fields in <list> (e.g. 1,3-5,7-) of lines split on <char> (tab by default).", true, true),
+                new Descriptor("more", "more", "Shows the output one page at a time.", true, false),
+                new Descriptor("less", "less", "Shows the output in a scrollable view.", true, false));
     }
 
     private String helpDisplay(String[] strings) {
@@ -51,181 +151,394 @@ public class CLI{
         }
         // Build the help message with available commands
         StringBuilder helpMessage = new StringBuilder("Available commands:\n");
-        for (String command : commandRegistry.keySet()) {
-            helpMessage.append("- ").append(command).append("\n     ").append(commandDescription.get(command)).append("\n");
-        }
-
+        appendHelp(helpMessage, Builtins.commands);
+        appendHelp(helpMessage, Plugins.commands().stream().map(Command::descriptor).toList());
+        helpMessage.append("Available filters (command | filter):\n");
+        appendHelp(helpMessage, Builtins.filters);
+        appendHelp(helpMessage, Plugins.filters().stream().map(Filter::descriptor).toList());
         return helpMessage.toString();
     }
+    private static void appendHelp(StringBuilder helpMessage, List<Descriptor> descriptors){
+        for (Descriptor descriptor : descriptors) {
+            helpMessage.append("- ").append(descriptor.name()).append("\n     Usage: ").append(descriptor.usage())
+                    .append("\n     ").append(descriptor.description()).append("\n");
+        }
+    }
+    // stats [-r]
+    private String showStats(String[] args){
+        if (args.length > 1 || args.length == 1 && !args[0].equals("-r")){
+            return decorateErrorMessage("Usage", "stats [-r]");
+        }
+        if (!CommandMetrics.ENABLED){
+            return "Metrics are disabled (-Dcli.metrics=false)";
+        }
+        String report = CommandMetrics.report();
+        if (metadataCache != null){
+            report += metadataCache + "\n";
+        }
+        if (resultCache != null){
+            report += resultCache + "\n";
+        }
+        if (args.length == 1){
+            CommandMetrics.reset();
+        }
+        return report;
+    }
+    // metrics: for node_exporter's textfile collector or a scrape of a file (metrics > cli.prom)
+    private String showMetrics(String[] args){
+        if (args.length > 0){
+            return decorateErrorMessage("Usage", "metrics");
+        }
+        if (!CommandMetrics.ENABLED){
+            return "Metrics are disabled (-Dcli.metrics=false)";
+        }
+        return CommandMetrics.prometheus();
+    }
+    // history [-n N] [text]: matches come from the history index, newest first, printed oldest first
+    private Stream<String> showHistory(String[] args){
+        if (!interactive){
+            return Lines.of(decorateErrorMessage("Only available in the interactive shell", "history"));
+        }
+        int limit = Integer.MAX_VALUE;
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("-n") && i + 1 < args.length && args[i + 1].matches("[0-9]+"))
+                limit = Integer.parseInt(args[++i]);
+            else if (args[i].startsWith("-"))
+                return Lines.of(decorateErrorMessage("Usage", HISTORY_USAGE));
+            else
+                words.add(args[i]);
+        }
+        try {
+            CommandHistory history = CommandHistory.shared();
+            int size = history.size();
+            if (words.isEmpty()){
+                return history.lines(Math.max(0, size - limit), size);
+            }
+            String text = String.join(" ", words);
+            Deque<String> matches = new ArrayDeque<>();
+            for (int entry = history.search(text, size); entry >= 0 && matches.size() < limit; entry = history.search(text, entry)){
+                matches.addFirst(history.line(entry));
+            }
+            return matches.stream();
+        } catch (IOException e) {
+            return Lines.of(decorateErrorMessage("Error reading history", e.getMessage()));
+        }
+    }
 
     // Utillity Functions
-    private static void removeLastPrintedLine(){
-        System.out.print("\033[1A");
-        System.out.print("\033[2K");
-        System.out.flush();
-    }
     public String getCurrentDirectory(){
         return currentDirectory.toString();
     }
-    private String writeToFile(String fileName, String content, Boolean append){
-        try{
-            String filePath = Paths.get(getCurrentDirectory(), fileName).toString();
-            FileWriter writer = new FileWriter(filePath, append);
-            writer.write(content);
-            writer.close();
+    public void setConcurrentPipeline(boolean concurrentPipeline){
+        this.concurrentPipeline = concurrentPipeline;
+    }
+    public void setPlainOutput(boolean plainOutput){
+        this.plainOutput = plainOutput;
+    }
+    public void setInteractive(boolean interactive){
+        this.interactive = interactive;
+    }
+    public void setMetadataCache(boolean enabled){
+        metadataCache = enabled ? MetadataCache.shared() : null;
+    }
+    public void setResultCache(boolean enabled){
+        resultCache = enabled ? ResultCache.shared() : null;
+    }
+    void setJournalDirectory(Path directory){
+        journalDirectory = directory;
+    }
+    // Between begin and commit (or rollback)
+    boolean inTransaction(){
+        return transaction != null;
+    }
+    // Hit/miss counters of the metadata cache, or null when it is disabled
+    public String getMetadataCacheStats(){
+        return metadataCache == null ? null : metadataCache.toString();
+    }
+    // Filesystem checks, answered from the planned tree in a transaction and from the metadata
+    // cache when it is enabled
+    private boolean exists(Path path){
+        if (transaction != null){
+            return transaction.exists(path);
+        }
+        return metadataCache == null ? Files.exists(path) : metadataCache.exists(path);
+    }
+    private boolean isDirectory(Path path){
+        if (transaction != null){
+            return transaction.isDirectory(path);
+        }
+        return metadataCache == null ? Files.isDirectory(path) : metadataCache.isDirectory(path);
+    }
+    private boolean isRegularFile(Path path){
+        return metadataCache == null ? Files.isRegularFile(path) : metadataCache.isRegularFile(path);
+    }
+    // Our own changes are visible right away, without waiting for the watcher
+    private void invalidate(Path path){
+        if (metadataCache != null){
+            metadataCache.invalidate(path);
+        }
+    }
+    private String writeToFile(String fileName, Stream<String> content, Boolean append){
+        try (content){
+            // OutputTargets creates the target once the first line or chunk is there (ls > file)
+            Iterator<String> it = content.iterator();
+            Compression.Format format = Compression.target(fileName);
+            if (format == Compression.Format.PLAIN){
+                OutputTargets.write(currentDirectory.resolve(fileName), it, append);
+            } else {
+                OutputTargets.writeBytes(currentDirectory.resolve(fileName), Compression.compress(format, it), append);
+            }
+        }
+        catch (IOException | UncheckedIOException e){
+            return decorateErrorMessage("Error writing to", fileName);
+        }
+        finally {
+            invalidate(currentDirectory.resolve(fileName));
+        }
+        return "";
+    }
+    // Same for the byte chunks of a fused pipeline
+    private String writeBlocks(LineBlocks blocks, String fileName, boolean append){
+        try (blocks){
+            Iterator<ByteBuffer> chunks = blocks.chunks();
+            Compression.Format format = Compression.target(fileName);
+            OutputTargets.writeBytes(currentDirectory.resolve(fileName),
+                    format == Compression.Format.PLAIN ? chunks : Compression.compressBytes(format, chunks), append);
+        }
+        catch (IOException | UncheckedIOException e){
+            return decorateErrorMessage("Error writing to", fileName);
+        }
+        finally {
+            invalidate(currentDirectory.resolve(fileName));
+        }
+        return "";
+    }
+    // cat <file> > <target> / >> <target>: channel to channel transfer, no decoding and no heap copy
+    // (compressed sources and targets go through writeToFile)
+    private String transferFile(CommandParser.Command catCommand, String fileName, boolean append){
+        Path source = catCommand.args().size() == 1 ? currentDirectory.resolve(catCommand.args().get(0)) : null;
+        if (source == null || !isRegularFile(source) || Compression.target(fileName) != Compression.Format.PLAIN || !isPlain(source)){
+            // Let cat report the problem the usual way (the error ends up in the target, as before)
+            return writeToFile(fileName, executeSingleCommand(catCommand), append);
+        }
+        Path target = currentDirectory.resolve(fileName);
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)){
+            OutputTargets.transfer(target, in, append);
         }
         catch (IOException e){
             return decorateErrorMessage("Error writing to", fileName);
         }
+        finally {
+            invalidate(target);
+        }
         return "";
     }
-    private static String decorateErrorMessage(String firstPart, String secondPart){
+    private static boolean isPlain(Path file){
+        try {
+            return Compression.format(file) == Compression.Format.PLAIN;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    private String decorateErrorMessage(String firstPart, String secondPart){
+        if (plainOutput){
+            return "Error! " + firstPart + ": " + secondPart;
+        }
         return "\u001B[31mError! " + firstPart + ": \u001B[0m" +"\u001B[33m"+ secondPart +"\u001B[0m";
     }
 
     public String executeCommand(String commands){
-        String[] tokens = commands.split("\\s+");
-        ArrayList<String> modifiedTokens = new ArrayList<>();
-        modifiedTokens.add("");
-        for (String token : tokens) {
-            if (token.equals("|") || token.equals(">") || token.equals(">>")) {
-                modifiedTokens.add(token);
-                modifiedTokens.add("");
-            } else {
-                // Access the last element and remove it
-                String cur = modifiedTokens.get(modifiedTokens.size() - 1) + " " + token;
-                modifiedTokens.remove(modifiedTokens.size() - 1);
-                modifiedTokens.add(cur);
+        try {
+            return Lines.join(executePipeline(commands));
+        } catch (UncheckedIOException e) {
+            return decorateErrorMessage(ERROR_MESSAGE, e.getMessage());
+        }
+    }
+    // Same as executeCommand but hands each line to the sink as soon as the last stage produces it
+    public void executeCommand(String commands, Consumer<String> sink){
+        try (Stream<String> output = executePipeline(commands)){
+            output.forEachOrdered(sink);
+        } catch (UncheckedIOException e) {
+            sink.accept(decorateErrorMessage(ERROR_MESSAGE, e.getMessage()));
+        }
+    }
+    private Stream<String> executePipeline(String commands){
+        CommandParser.Pipeline pipeline = CommandParser.parse(commands);
+        if (pipeline.source().name().equalsIgnoreCase("time")){
+            return timePipeline(pipeline);
+        }
+        return executePipeline(pipeline, false);
+    }
+    // time <pipeline>: the pipeline's output, then the measurements of its stages. The stages run
+    // on this thread (no concurrent pipeline), so thread CPU time and allocation are their own, and
+    // the result cache is bypassed so the work is actually done
+    private Stream<String> timePipeline(CommandParser.Pipeline pipeline){
+        List<String> words = pipeline.source().args();
+        if (words.isEmpty()){
+            return Lines.of(decorateErrorMessage("Usage", TIME_USAGE));
+        }
+        CommandParser.Pipeline timed = new CommandParser.Pipeline(pipeline.source().inner(), pipeline.steps());
+        return CommandMetrics.time(() -> executePipeline(timed, true));
+    }
+    private Stream<String> executePipeline(CommandParser.Pipeline pipeline, boolean timed){
+        List<CommandParser.Step> steps = pipeline.steps();
+        CommandParser.Command source = expandGlobs(pipeline.source());
+        if (OutputTargets.ASYNC && !NO_FILE_COMMANDS.contains(source.name().toLowerCase())){
+            // Anything that may read a redirect target sees what earlier commands wrote to it
+            OutputTargets.flushAll();
+        }
+        // cat <file> > <target> with nothing in between: copy the bytes directly
+        if (steps.size() == 1 && source.name().equalsIgnoreCase("cat")
+                && steps.get(0).operator() != CommandParser.Operator.PIPE){
+            boolean append = steps.get(0).operator() == CommandParser.Operator.APPEND;
+            return CommandMetrics.meter("cat", () -> Lines.of(transferFile(source, steps.get(0).target().text(), append)));
+        }
+        // Pure pipelines whose inputs did not change since the last run are answered from the cache
+        ResultCache.Lookup lookup = resultCache == null || timed ? null : ResultCache.lookup(currentDirectory, plainOutput, source, steps);
+        if (lookup != null){
+            Stream<String> cached = resultCache.get(lookup);
+            if (cached != null){
+                return cached;
+            }
+        }
+        // cat <files> | grep | uniq | head | wc [> file]: one stage over byte blocks
+        LineBlocks blocks = lineBlocks(source, steps);
+        if (blocks != null){
+            CommandParser.Step last = steps.get(steps.size() - 1);
+            if (last.operator() == CommandParser.Operator.PIPE){
+                Stream<String> output = CommandMetrics.meter(blocks.name(), blocks::lines);
+                return lookup == null ? output : resultCache.record(lookup, output);
+            }
+            boolean append = last.operator() == CommandParser.Operator.APPEND;
+            return CommandMetrics.meter(blocks.name(), () -> Lines.of(writeBlocks(blocks, last.target().text(), append)));
+        }
+        // Stages are chained lazily, nothing is read until the caller pulls from the last one
+        Stream<String> prevOutput = executeSingleCommand(source);
+        for (CommandParser.Step step: steps){
+            if (concurrentPipeline && !timed){
+                prevOutput = Pipe.connect(prevOutput, Pipe.DEFAULT_CAPACITY);
             }
+            prevOutput = switch (step.operator()){
+                case PIPE -> applyPipelineFilter(prevOutput, step.target());
+                case REDIRECT -> Lines.of(writeToFile(step.target().text(), prevOutput, false));
+                case APPEND -> Lines.of(writeToFile(step.target().text(), prevOutput, true));
+            };
         }
-        String prevOutput = executeSingleCommand(modifiedTokens.get(0).trim().split("\\s+"));
-        for (int i = 1; i < modifiedTokens.size(); i += 2){
-            String token = modifiedTokens.get(i).trim();
-            String right = (i + 1 < modifiedTokens.size() ? modifiedTokens.get(i + 1) : "");
-            right = right.trim();
-            if (token.equals("|")){
-                prevOutput = applyPipelineFilter(prevOutput, right);
-            } else if (token.equals(">")){
-                prevOutput = writeToFile(right, prevOutput, false);
-            } else if (token.equals(">>")){
-                prevOutput = writeToFile(right, prevOutput, true);
-            }else{
-                return decorateErrorMessage("Unknown Command/s", token);
+        return lookup == null ? prevOutput : resultCache.record(lookup, prevOutput);
+    }
+    // The fused form of the pipeline when it reads regular files with cat and only has filters
+    // LineBlocks can run, ending in the terminal or in one redirect
+    private LineBlocks lineBlocks(CommandParser.Command source, List<CommandParser.Step> steps){
+        if (!source.name().equalsIgnoreCase("cat") || source.args().isEmpty() || steps.isEmpty()){
+            return null;
+        }
+        List<Path> files = new ArrayList<>();
+        for (String name: source.args()){
+            Path file = currentDirectory.resolve(name);
+            if (name.startsWith("-") || !isRegularFile(file)){
+                return null;
             }
+            files.add(file);
+        }
+        List<CommandParser.Command> filters = new ArrayList<>();
+        for (int i = 0; i < steps.size(); i++){
+            if (steps.get(i).operator() == CommandParser.Operator.PIPE){
+                filters.add(steps.get(i).target());
+            } else if (i < steps.size() - 1){
+                return null;
+            }
+        }
+        return LineBlocks.plan(files, filters);
+    }
+    // Parsed commands are shared through the parser cache, so expansion yields a new one
+    private CommandParser.Command expandGlobs(CommandParser.Command command){
+        if (!GLOB_COMMANDS.contains(command.name().toLowerCase()) || command.patterns().isEmpty()){
+            return command;
         }
-        return prevOutput;
+        return new CommandParser.Command(command.name(), Glob.expand(currentDirectory, command.args(), command.patterns()));
     }
-    private String executeSingleCommand(String[] args) {
-        String cmd = args[0].toLowerCase().trim();
-        args = args.length > 1 ? Arrays.copyOfRange(args, 1, args.length) : new String[0];
-        Function<String[], String> commandFunction = commandRegistry.get(cmd);
+    private Stream<String> executeSingleCommand(CommandParser.Command command) {
+        String cmd = command.name().toLowerCase();
+        String[] args = command.argArray();
+        BiFunction<CLI, String[], Stream<String>> commandFunction = command(cmd);
+        if (commandFunction == null && Plugins.command(cmd) != null) {
+            Command plugin = Plugins.command(cmd);
+            commandFunction = (cli, arguments) -> plugin.run(cli.context(), List.of(arguments));
+        }
         if (commandFunction == null) {
-            return decorateErrorMessage("Unknown command", cmd);
+            return Lines.of(decorateErrorMessage("Unknown command", cmd));
         }
 
         try {
-            return commandFunction.apply(args);
+            BiFunction<CLI, String[], Stream<String>> function = commandFunction;
+            return CommandMetrics.meter(cmd, () -> function.apply(this, args));
         } catch (Exception e) {
-            return decorateErrorMessage("Error executing command '" + cmd + "'", e.getMessage());
+            return Lines.of(decorateErrorMessage("Error executing command '" + cmd + "'", e.getMessage()));
         }
     }
-    private String applyPipelineFilter(String prevOutput, String filter){
-        var filteredFilter= filter.split("\\s+");
-        BiFunction<String, String, String> pipileFunction = pipelineFilterRegistry.get(filteredFilter[0]);
-        if (pipileFunction == null) {
-            return decorateErrorMessage("Unknown filter", filter);
+    private Stream<String> applyPipelineFilter(Stream<String> prevOutput, CommandParser.Command filter){
+        FilterFunction pipileFunction = filter(filter.name());
+        if (pipileFunction == null && Plugins.filter(filter.name()) != null) {
+            Filter plugin = Plugins.filter(filter.name());
+            pipileFunction = (cli, lines, args) -> plugin.apply(cli.context(), lines, args);
         }
-        String input="";
-        if (filteredFilter[0].equals("grep")){
-            for (int i=1; i<filteredFilter.length; ++i){
-                input += filteredFilter[i]+" ";
-            }
+        if (pipileFunction == null) {
+            prevOutput.close();
+            return Lines.of(decorateErrorMessage("Unknown filter", filter.text()));
         }
         try {
-            return pipileFunction.apply(prevOutput,input);
+            FilterFunction function = pipileFunction;
+            return CommandMetrics.meter(filter.name(), () -> function.apply(this, prevOutput, filter.args()));
         } catch (Exception e) {
-            return decorateErrorMessage("Error applying filter '" + filter + "'", e.getMessage());
+            prevOutput.close();
+            return Lines.of(decorateErrorMessage("Error applying filter '" + filter.text() + "'", e.getMessage()));
         }
     };
-    
-    // command | more
-    private String paginateOutputMore(String output, String dummyInput) {
-        Scanner scanner = new Scanner(System.in);
-        String[] lines = output.split("\n");
-        int linesPerPage = 10; // Number of lines to display per page
-        int currentLine = 0;
-
-        while (currentLine < lines.length) {
-            // Display a page of lines
-            for (int i = 0; i < linesPerPage && currentLine < lines.length; i++) {
-                System.out.println(lines[currentLine]);
-                currentLine++;
-            }
+    // Adapter for commands that still return whole Strings
+    private static BiFunction<CLI, String[], Stream<String>> adaptCommand(BiFunction<CLI, String[], String> command){
+        return (cli, args) -> Lines.of(command.apply(cli, args));
+    }
 
-            // Wait for user input to continue
-            if (currentLine < lines.length) {
-                System.out.print("\u001B[47m\u001B[30m-- More -- (Press Enter to continue, 'q' to quit): \u001B[0m");
-                String input = scanner.nextLine();
-                removeLastPrintedLine();
-                if (input.equalsIgnoreCase("q")) {
-                    break;
-                }
-            }
-            ++currentLine;
+    // command | more (plain output means there is no terminal to page on, e.g. batch or server sessions)
+    private Stream<String> paginateOutputMore(Stream<String> output, List<String> dummyInput) {
+        if (plainOutput){
+            return output;
         }
-//        scanner.close();
-        return "";
+        Pager.more(output);
+        return Stream.empty();
     }
     // command | less
-    private String paginateOutputLess(String output, String dummyInput){
-        Scanner scanner = new Scanner(System.in);
-        String[] lines = output.split("\n");
-        int linesPerPage = (lines.length < 10 ? lines.length : 10);
-        int currentLine = linesPerPage;
-        for (int i = 0; i < linesPerPage; i++)
-            System.out.println(lines[i]);
-        while (currentLine < lines.length){
-            String input = scanner.nextLine();
-            removeLastPrintedLine();
-            if (input.equalsIgnoreCase("q")) {
-                break;
-            }
-            if (input.equals("w")){
-                if (currentLine > 0) {
-                    removeLastPrintedLine();
-                    currentLine--;
-                }
-            }
-            else if (input.equals("s")){
-                System.out.println(lines[currentLine++]);
-            }
+    private Stream<String> paginateOutputLess(Stream<String> output, List<String> dummyInput){
+        if (plainOutput){
+            return output;
         }
-//        scanner.close();
-        return "";
+        Pager.less(output);
+        return Stream.empty();
     }
-    // command | uniq
-    private String getUniqe(String output, String input){
-        Set<String> distinctValues = new HashSet<>(Arrays.asList(output.split("\n")));
-        String result = "";
-        for (String s: distinctValues){
-            result += s+"\n";
-        }
-        return result;
-    }
-    // command | grep "pattern"
-    private String filterWithPattern(String input, String pattern){
-        String[] lines = input.split("\\n");
-        StringBuilder filteredLines = new StringBuilder();
-        pattern = Pattern.quote(pattern.trim());
-        Pattern regexPattern = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-
-        for (String line : lines) {
-            Matcher matcher = regexPattern.matcher(line);
-            if (matcher.find()) { // Checks if the pattern exists in the line
-                filteredLines.append(line).append("\n");
-            }
-        }
-        return filteredLines.toString();
+    // command | uniq [-a] [-c]
+    private Stream<String> getUniqe(Stream<String> output, List<String> input){
+        return Uniq.filter(output, input);
+    }
+    // command | grep [-v] [-c] [-i] [-E] "pattern"
+    private Stream<String> filterWithPattern(Stream<String> input, List<String> pattern){
+        return Grep.filter(input, pattern);
+    }
+    // command | sort [-n] [-r] [-k N]
+    private Stream<String> sortLines(Stream<String> input, List<String> args){
+        return Sort.filter(input, args);
+    }
+    // command | wc [-l] [-w] [-c]
+    private Stream<String> countLines(Stream<String> input, List<String> args){
+        return WordCount.filter(input, args);
+    }
+    // command | head [-n N]
+    private Stream<String> firstLines(Stream<String> input, List<String> args){
+        return Head.filter(input, args);
+    }
+    // command | cut [-d <char>] -f <list>
+    private Stream<String> cutFields(Stream<String> input, List<String> args){
+        return Cut.filter(input, args);
     }
     // cd
     private String changeDirectory(String[] args){
@@ -239,46 +552,60 @@ public class CLI{
         }
         String fileName= String.join(" ",args).trim();
         Path newPath = currentDirectory.resolve(fileName).normalize();
-        if (Files.exists(newPath) && Files.isDirectory(newPath)){
+        if (isDirectory(newPath)){
             currentDirectory = newPath;
             return "Directory changed: " + fileName;
         }
         return decorateErrorMessage("Directory not found", fileName);
     }
-    // ls
-    private String listDirectory(String[] args){
-        Boolean hidden = false, reversed = false;
+    // ls [-a] [-r] [-l]
+    private Stream<String> listDirectory(String[] args){
+        boolean hidden = false, reversed = false, longFormat = false;
         for (String arg: args){
-            if (arg.equals("-a"))
-                hidden = true;
-            else if (arg.equals("-r"))
-                reversed = true;
-            else 
-                return decorateErrorMessage("Usage", "ls [-a] [-r]");
+            if (!arg.startsWith("-") || arg.length() < 2)
+                return Lines.of(decorateErrorMessage("Usage", LS_USAGE));
+            for (char flag: arg.substring(1).toCharArray()){
+                if (flag == 'a')
+                    hidden = true;
+                else if (flag == 'r')
+                    reversed = true;
+                else if (flag == 'l')
+                    longFormat = true;
+                else
+                    return Lines.of(decorateErrorMessage("Usage", LS_USAGE));
+            }
         }
+        Stream<String> entries;
         try{
-            DirectoryStream<Path> stream = Files.newDirectoryStream(currentDirectory);
-            ArrayList<String> list = new ArrayList<>();
-            for (Path path: stream){
-                String name = path.getFileName().toString();
-                if (name.charAt(0) != '.' || hidden)
-                    list.add(name);
-            }
-            stream.close();
-            if (reversed)
-                Collections.reverse(list);
-
-            String listString = "";
-            for (String name: list){
-                listString += name + "\n";
+            if (metadataCache != null){
+                entries = metadataCache.list(currentDirectory).stream();
+            } else {
+                DirectoryStream<Path> stream = Files.newDirectoryStream(currentDirectory);
+                entries = StreamSupport.stream(stream.spliterator(), false)
+                        .map(path -> path.getFileName().toString())
+                        .onClose(() -> {
+                            try {
+                                stream.close();
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
             }
-
-            return listString;
-
         }
         catch (IOException e){
-            return decorateErrorMessage(ERROR_MESSAGE, e.getMessage());
-        }
+            return Lines.of(decorateErrorMessage(ERROR_MESSAGE, e.getMessage()));
+        }
+        // Names are streamed into the sorter, which spills to disk for huge directories
+        boolean showHidden = hidden;
+        Iterator<String> names = entries.filter(name -> name.charAt(0) != '.' || showHidden).iterator();
+        // Case-insensitive name order, ties broken by the exact name
+        Comparator<String> order = String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder());
+        Stream<String> sorted = new ExternalSorter(reversed ? order.reversed() : order).sort(names)
+                .onClose(entries::close);
+        if (longFormat){
+            return LongListing.format(currentDirectory, sorted);
+        }
+        return sorted.map(name -> name + "\n");
     }
     // mkdir
     private String createNewDirectory(String[] args){
@@ -287,7 +614,12 @@ public class CLI{
         }
         Path newDir = currentDirectory.resolve(args[0]);
         try{
-            Files.createDirectories(newDir);
+            if (transaction != null){
+                transaction.createDirectories(newDir);
+            } else {
+                Files.createDirectories(newDir);
+            }
+            invalidate(newDir);
         }
         catch(FileAlreadyExistsException e){
             return decorateErrorMessage("File already exists", newDir.toString());
@@ -299,90 +631,381 @@ public class CLI{
     }
     // rmdir
     private String removeDirectory(String[] args) {
-        if (args.length != 1) {
-            return decorateErrorMessage("Usage", "rmdir <directory>");
-        }
-        Path dir = currentDirectory.resolve(args[0]);
-        if (!Files.exists(dir) || !Files.isDirectory(dir)){
-            return decorateErrorMessage("Directory not found", dir.toString());
-        }
-        try{
-            Files.deleteIfExists(dir);
-        }
-        catch (IOException e){
-            return ERROR_MESSAGE + e;
+        if (args.length == 0) {
+            return decorateErrorMessage("Usage", "rmdir <directory>...");
+        }
+        StringJoiner result = new StringJoiner("\n");
+        for (String name: args){
+            Path dir = currentDirectory.resolve(name);
+            if (!isDirectory(dir)){
+                return decorateErrorMessage("Directory not found", dir.toString());
+            }
+            try{
+                if (transaction != null){
+                    transaction.removeDirectory(dir);
+                } else {
+                    Files.deleteIfExists(dir);
+                }
+                invalidate(dir);
+            }
+            catch (IOException e){
+                return ERROR_MESSAGE + e;
+            }
+            result.add("Directory removed: " + dir);
         }
-        return "Directory removed: " + dir;
+        return result.toString();
     }
     // touch
     private String createNewFile(String[] args){
-        if (args.length != 1) {
-            return decorateErrorMessage("Usage", "touch <file>");
-        }
-        Path file = currentDirectory.resolve(args[0]);
-        try{
-            Files.createFile(file);
-        }
-        catch (FileAlreadyExistsException e){
-            return decorateErrorMessage("File already exists", file.toString());
-        }
-        catch (IOException e){
-            return ERROR_MESSAGE + e;
+        if (args.length == 0) {
+            return decorateErrorMessage("Usage", "touch <file>...");
+        }
+        StringJoiner result = new StringJoiner("\n");
+        for (String name: args){
+            Path file = currentDirectory.resolve(name);
+            try{
+                if (transaction != null){
+                    transaction.createFile(file);
+                } else {
+                    Files.createFile(file);
+                }
+                invalidate(file);
+            }
+            catch (FileAlreadyExistsException e){
+                return decorateErrorMessage("File already exists", file.toString());
+            }
+            catch (IOException e){
+                return ERROR_MESSAGE + e;
+            }
+            result.add("File created: " + file);
         }
-        return "File created: " + file;
+        return result.toString();
     }
     // mv
+    // mv <source> <destination> / mv <source>... <directory>
     private String moveOrRename(String[] args){
-        if (args.length != 2) {
-            return decorateErrorMessage("Usage", "mv <source> <destination>");
+        if (args.length < 2) {
+            return decorateErrorMessage("Usage", "mv <source>... <destination>");
+        }
+        Path target = currentDirectory.resolve(args[args.length - 1]);
+        if (args.length > 2 && !isDirectory(target)){
+            return decorateErrorMessage("Not a directory", target.toString());
+        }
+        StringJoiner result = new StringJoiner("\n");
+        for (int i = 0; i < args.length - 1; i++){
+            Path source = currentDirectory.resolve(args[i]);
+            Path destination = target;
+            if (!exists(source)){
+                return decorateErrorMessage("Source not found", source.toString());
+            }
+            if (isDirectory(destination)) {
+                destination = destination.resolve(source.getFileName());
+            }
+            try {
+                if (transaction != null){
+                    transaction.move(source, destination);
+                    result.add("Moved/Renamed: " + source + " -> " + destination);
+                    continue;
+                }
+                OutputTargets.close(source);
+                OutputTargets.close(destination);
+                // Falls back to a parallel copy and delete when the destination is on another filesystem
+                new FileTreeOps(FileTreeOps.DEFAULT_PARALLELISM, null).move(source, destination);
+                invalidate(source);
+                invalidate(destination);
+            } catch (IOException e) {
+                return decorateErrorMessage("Error moving/renaming", e.getMessage());
+            }
+            result.add("Moved/Renamed: " + source + " -> " + destination);
         }
-        Path source = currentDirectory.resolve(args[0]);
-        Path destination = currentDirectory.resolve(args[1]);
-        if (!Files.exists(source)){
+        return result.toString();
+    }
+    // rm [-r] [-v] [-j N] <file>...
+    private String removeFile(String[] args) {
+        boolean recursive = false, verbose = false;
+        int parallelism = FileTreeOps.DEFAULT_PARALLELISM;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("-r") || args[i].equals("-R"))
+                recursive = true;
+            else if (args[i].equals("-v"))
+                verbose = true;
+            else if (args[i].equals("-j") && i + 1 < args.length && args[i + 1].matches("[1-9][0-9]*"))
+                parallelism = Integer.parseInt(args[++i]);
+            else
+                files.add(args[i]);
+        }
+        if (files.isEmpty()) {
+            return decorateErrorMessage("Usage", "rm [-r] [-v] [-j N] <file>...");
+        }
+        StringJoiner result = new StringJoiner("\n");
+        for (String name: files){
+            Path file = currentDirectory.resolve(name);
+            if (!exists(file)){
+                return decorateErrorMessage("File not found", file.toString());
+            }
+            try{
+                if (transaction != null){
+                    transaction.delete(file, recursive);
+                    result.add("Removed: " + file);
+                    continue;
+                }
+                OutputTargets.close(file);
+                if (recursive){
+                    FileTreeOps tree = new FileTreeOps(parallelism, verbose ? System.err : null);
+                    tree.delete(file);
+                    result.add("Removed: " + file + " (" + tree.entries() + " entries)");
+                } else {
+                    Files.deleteIfExists(file);
+                    result.add("Removed: " + file);
+                }
+            }
+            catch (IOException e){
+                return decorateErrorMessage("Error removing file/directory", e.getMessage());
+            }
+            finally {
+                invalidate(file);
+            }
+        }
+        return result.toString();
+    }
+    // cp [-r] [-v] [-j N] <source> <destination>
+    private String copyFiles(String[] args){
+        boolean recursive = false, verbose = false;
+        int parallelism = FileTreeOps.DEFAULT_PARALLELISM;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("-r") || args[i].equals("-R"))
+                recursive = true;
+            else if (args[i].equals("-v"))
+                verbose = true;
+            else if (args[i].equals("-j") && i + 1 < args.length && args[i + 1].matches("[1-9][0-9]*"))
+                parallelism = Integer.parseInt(args[++i]);
+            else
+                paths.add(args[i]);
+        }
+        if (paths.size() != 2) {
+            return decorateErrorMessage("Usage", "cp [-r] [-v] [-j N] <source> <destination>");
+        }
+        if (transaction != null){
+            // Copies read the disk, which does not have the planned changes yet
+            return decorateErrorMessage("Not available in a transaction", "cp");
+        }
+        Path source = currentDirectory.resolve(paths.get(0));
+        Path destination = currentDirectory.resolve(paths.get(1));
+        if (!exists(source)){
             return decorateErrorMessage("Source not found", source.toString());
         }
-        if (Files.isDirectory(destination)) {
+        if (isDirectory(source) && !recursive){
+            return decorateErrorMessage("Source is a directory (use -r)", source.toString());
+        }
+        if (isDirectory(destination)) {
             destination = destination.resolve(source.getFileName());
         }
+        FileTreeOps tree = new FileTreeOps(parallelism, verbose ? System.err : null);
         try {
-            Files.move(source, destination, StandardCopyOption.REPLACE_EXISTING);
+            OutputTargets.close(destination);
+            tree.copy(source, destination);
         } catch (IOException e) {
-            return decorateErrorMessage("Error moving/renaming", e.getMessage());
+            return decorateErrorMessage("Error copying", e.getMessage());
+        } finally {
+            invalidate(destination);
         }
-        return "Moved/Renamed: " + source + " -> " + destination;
+        return "Copied: " + source + " -> " + destination + " (" + tree.entries() + " entries, " + tree.bytes() + " bytes)";
     }
-    // rm
-    private String removeFile(String[] args) {
-        if (args.length != 1) {
-            return decorateErrorMessage("Usage", "rm <file>");
+    // begin
+    private String beginTransaction(String[] args){
+        if (args.length > 0){
+            return decorateErrorMessage("Usage", "begin");
         }
-        Path file = currentDirectory.resolve(args[0]);
-        if (!Files.exists(file)){
-            return decorateErrorMessage("File not found", file.toString());
+        if (transaction != null){
+            return decorateErrorMessage("Transaction already started", transaction.recorded() + " operations planned");
         }
-        try{
-            Files.deleteIfExists(file);
+        transaction = new Transaction(currentDirectory, journalDirectory);
+        return "Transaction started";
+    }
+    // commit [-j N]
+    private String commitTransaction(String[] args){
+        int parallelism = FileTreeOps.DEFAULT_PARALLELISM;
+        if (args.length == 2 && args[0].equals("-j") && args[1].matches("[1-9][0-9]*")){
+            parallelism = Integer.parseInt(args[1]);
+        } else if (args.length > 0){
+            return decorateErrorMessage("Usage", COMMIT_USAGE);
+        }
+        if (transaction == null){
+            return decorateErrorMessage("No transaction", "begin starts one");
+        }
+        // The plan is done with either way, a failed commit has been rolled back
+        Transaction committing = transaction;
+        transaction = null;
+        try {
+            return committing.commit(parallelism, this::invalidate);
+        } catch (IOException e) {
+            return decorateErrorMessage("Commit failed, rolled back", e.toString());
         }
-        catch (IOException e){
-            return decorateErrorMessage("Error removing file/directory", e.getMessage());
+    }
+    // rollback
+    private String rollbackTransaction(String[] args){
+        if (args.length > 0){
+            return decorateErrorMessage("Usage", "rollback");
+        }
+        if (transaction == null){
+            return decorateErrorMessage("No transaction", "begin starts one");
         }
-        return "Removed: " + file;
+        int recorded = transaction.recorded();
+        transaction = null;
+        return "Rolled back: " + recorded + " operations discarded";
+    }
+    // recover [resume|rollback]
+    private String recoverTransactions(String[] args){
+        if (args.length > 1 || args.length == 1 && !args[0].equals("resume") && !args[0].equals("rollback")){
+            return decorateErrorMessage("Usage", Transaction.RECOVER_USAGE);
+        }
+        if (transaction != null){
+            return decorateErrorMessage("Transaction in progress", "commit or rollback it first");
+        }
+        try {
+            return Transaction.recover(journalDirectory, args.length == 1 && args[0].equals("rollback"), this::invalidate);
+        } catch (IOException e) {
+            return decorateErrorMessage("Error recovering", e.toString());
+        }
+    }
+    // find [path] [-name <glob>] [-type f|d] [-size [+|-]N[k|M|G]] [-j N]
+    private Stream<String> findFiles(String[] args){
+        String start = ".";
+        List<BiPredicate<Path, BasicFileAttributes>> tests = new ArrayList<>();
+        int parallelism = FileTreeOps.DEFAULT_PARALLELISM;
+        try {
+            for (int i = 0; i < args.length; i++){
+                if (!args[i].startsWith("-") && i == 0){
+                    start = args[i];
+                } else if (args[i].equals("-name") && i + 1 < args.length){
+                    PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + args[++i]);
+                    tests.add((path, attributes) -> path.getFileName() != null && matcher.matches(path.getFileName()));
+                } else if (args[i].equals("-type") && i + 1 < args.length && args[i + 1].matches("[fd]")){
+                    boolean directories = args[++i].equals("d");
+                    tests.add((path, attributes) -> attributes.isDirectory() == directories);
+                } else if (args[i].equals("-size") && i + 1 < args.length){
+                    tests.add(sizeTest(args[++i]));
+                } else if (args[i].equals("-j") && i + 1 < args.length && args[i + 1].matches("[1-9][0-9]*")){
+                    parallelism = Integer.parseInt(args[++i]);
+                } else {
+                    return Lines.of(decorateErrorMessage("Usage", FIND_USAGE));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            return Lines.of(decorateErrorMessage("Usage", FIND_USAGE));
+        }
+        Path root = currentDirectory.resolve(start).normalize();
+        if (!exists(root)){
+            return Lines.of(decorateErrorMessage("File not found", root.toString()));
+        }
+        String prefix = start;
+        try {
+            List<Path> matches = new FileTreeOps(parallelism, null)
+                    .find(root, (path, attributes) -> tests.stream().allMatch(test -> test.test(path, attributes)));
+            return matches.stream().map(path -> {
+                String relative = root.relativize(path).toString();
+                return (relative.isEmpty() ? prefix : Paths.get(prefix, relative).toString()) + "\n";
+            });
+        } catch (IOException e) {
+            return Lines.of(decorateErrorMessage(ERROR_MESSAGE, e.getMessage()));
+        }
+    }
+    // -size argument: [+|-]N[k|M|G], + for bigger than, - for smaller than, otherwise exactly N
+    private static BiPredicate<Path, BasicFileAttributes> sizeTest(String size){
+        int sign = size.startsWith("+") ? 1 : size.startsWith("-") ? -1 : 0;
+        String number = sign == 0 ? size : size.substring(1);
+        long unit = 1;
+        switch (number.isEmpty() ? ' ' : number.charAt(number.length() - 1)) {
+            case 'k' -> unit = 1L << 10;
+            case 'M' -> unit = 1L << 20;
+            case 'G' -> unit = 1L << 30;
+            default -> {}
+        }
+        long limit = Long.parseLong(unit == 1 ? number : number.substring(0, number.length() - 1)) * unit;
+        return (path, attributes) -> !attributes.isDirectory() && Long.signum(Long.compare(attributes.size(), limit)) == sign;
     }
     // cat
-    private String displayFileContents(String[] args) {
-        if (args.length != 1) {
-            return decorateErrorMessage("Usage", "cat <file>");
+    private Stream<String> displayFileContents(String[] args) {
+        if (args.length == 0) {
+            return Lines.of(decorateErrorMessage("Usage", "cat <file>..."));
+        }
+        if (args.length == 1) {
+            return readFile(args[0]);
+        }
+        if (args.length == 2 && args[0].equals("-f")) {
+            return openTail(args[1], -1, true);
+        }
+        // Files are opened one after the other; the summed sizes keep the result bounded for the filters
+        long size = 0;
+        for (String name: args){
+            size += currentDirectory.resolve(name).toFile().length();
+        }
+        Stream<String> files = Arrays.stream(args).flatMap(this::readFile);
+        Iterator<String> iterator = files.iterator();
+        Spliterator<String> lines = new Spliterators.AbstractSpliterator<>(size, Spliterator.ORDERED | Spliterator.NONNULL) {
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action) {
+                if (!iterator.hasNext()){
+                    return false;
+                }
+                action.accept(iterator.next());
+                return true;
+            }
+        };
+        return StreamSupport.stream(lines, false).onClose(files::close);
+    }
+    // tail [-n N] [-f] <file>
+    private Stream<String> tailFile(String[] args){
+        long lines = 10;
+        boolean follow = false;
+        String name = null;
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("-n") && i + 1 < args.length && args[i + 1].matches("[0-9]+"))
+                lines = Long.parseLong(args[++i]);
+            else if (args[i].equals("-f"))
+                follow = true;
+            else if (name == null && !args[i].startsWith("-"))
+                name = args[i];
+            else
+                return Lines.of(decorateErrorMessage("Usage", Tail.USAGE));
+        }
+        if (name == null){
+            return Lines.of(decorateErrorMessage("Usage", Tail.USAGE));
+        }
+        return openTail(name, lines, follow);
+    }
+    // The last `lines` lines of a file (all when negative), then what is appended when following
+    private Stream<String> openTail(String name, long lines, boolean follow){
+        Path file = currentDirectory.resolve(name);
+        if (!isRegularFile(file)){
+            return Lines.of(decorateErrorMessage("File not found", file.toString()));
         }
-        Path file = currentDirectory.resolve(args[0]);
+        try {
+            if (Compression.format(file) != Compression.Format.PLAIN){
+                // Compressed files can only be read forwards, and are not followed
+                Stream<String> content = readFile(name);
+                return lines < 0 ? content : Tail.last(content, lines);
+            }
+            return Tail.open(file, lines, follow);
+        } catch (IOException e) {
+            return Lines.of(decorateErrorMessage("Error reading", e.getMessage()));
+        }
+    }
+    private Stream<String> readFile(String name) {
+        Path file = currentDirectory.resolve(name);
         try{
-            if (Files.exists(file)) {
-                String output = Files.readString(file);
-                return output;
+            if (exists(file)) {
+                // Read lazily through the channel in chunks instead of decoding the whole file up front,
+                // decompressing gzip and zstd on the way
+                ReadableByteChannel channel = Compression.open(file);
+                return Lines.of(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), READ_CHUNK_SIZE), Files.size(file));
             }
         }
         catch (IOException e){
-            return ERROR_MESSAGE + e;
+            return Lines.of(ERROR_MESSAGE + e);
         }
-        return decorateErrorMessage("File not found", file.toString());
+        return Lines.of(decorateErrorMessage("File not found", file.toString()));
     }
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+package org.os;
+import java.io.*;
+import java.net.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// Usage: CLIServer [-u socket-path | -t port]
+// Serves many shell sessions from one JVM, over a Unix domain socket (default ./cli.sock) or a TCP
+// port on the loopback address. Every connection is a session with its own CLI (working directory
+// and options only, the registries are shared) running on a virtual thread.
+// Protocol: the client sends one command line per line; the server answers with the output
+// followed by a line holding only END_OF_OUTPUT. `exit` or closing the connection ends the session.
+public class CLIServer implements Closeable {
+    static final char END_OF_OUTPUT = '\u0004';
+    private static final String USAGE = "Usage: CLIServer [-u socket-path | -t port]";
+    private static final int BUFFER_SIZE = 8192;
+    // Pending connections; bursts of agents connecting at once must not be refused
+    private static final int BACKLOG = Integer.getInteger("cli.server.backlog", 4096);
+
+    private final ServerSocketChannel server;
+    private final Path socketFile;
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    private final LongAdder totalSessions = new LongAdder();
+
+    public static void main(String[] args) throws IOException {
+        SocketAddress address = UnixDomainSocketAddress.of("cli.sock");
+        if (args.length == 2 && args[0].equals("-u")){
+            address = UnixDomainSocketAddress.of(args[1]);
+        } else if (args.length == 2 && args[0].equals("-t") && args[1].matches("[0-9]+")){
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(args[1]));
+        } else if (args.length != 0){
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        try (CLIServer server = new CLIServer(address)){
+            System.err.println("Listening on " + server.address());
+            server.serve();
+        }
+    }
+
+    public CLIServer(SocketAddress address) throws IOException {
+        if (address instanceof UnixDomainSocketAddress unix){
+            socketFile = unix.getPath();
+            // Left behind by a server that did not shut down cleanly
+            Files.deleteIfExists(socketFile);
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        } else {
+            socketFile = null;
+            server = ServerSocketChannel.open();
+        }
+        server.bind(address, BACKLOG);
+    }
+
+    public SocketAddress address() throws IOException {
+        return server.getLocalAddress();
+    }
+
+    public int activeSessions(){
+        return activeSessions.get();
+    }
+
+    public long totalSessions(){
+        return totalSessions.sum();
+    }
+
+    // Accepts connections until the server is closed
+    public void serve() throws IOException {
+        while (true){
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            totalSessions.increment();
+            activeSessions.incrementAndGet();
+            Thread.ofVirtual().name("cli-session-" + totalSessions.sum()).start(() -> session(channel));
+        }
+    }
+
+    private void session(SocketChannel channel){
+        CLI cli = new CLI();
+        cli.setPlainOutput(true);
+        try (channel;
+             BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8), BUFFER_SIZE);
+             Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8), BUFFER_SIZE)){
+            String line;
+            while ((line = in.readLine()) != null && !line.trim().equals("exit")){
+                Output output = new Output(out);
+                if (!line.isBlank()){
+                    cli.executeCommand(line, output);
+                }
+                output.end();
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // Client went away, nothing to report it to
+        } finally {
+            activeSessions.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        if (socketFile != null){
+            Files.deleteIfExists(socketFile);
+        }
+    }
+
+    // Writes the lines of one command's output, then the end marker on a line of its own
+    private static final class Output implements Consumer<String> {
+        private final Writer out;
+        private boolean atLineStart = true;
+
+        Output(Writer out){
+            this.out = out;
+        }
+
+        @Override
+        public void accept(String text) {
+            if (text.isEmpty()){
+                return;
+            }
+            try {
+                out.write(text);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            atLineStart = text.endsWith("\n");
+        }
+
+        void end() throws IOException {
+            if (!atLineStart){
+                out.write('\n');
+            }
+            out.write(END_OF_OUTPUT);
+            out.write('\n');
+            out.flush();
+        }
+    }
+}
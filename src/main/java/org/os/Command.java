@@ -0,0 +1,22 @@
+package org.os;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Service provider interface for commands added without touching CLI. Implementations need a
+// public no-argument constructor and are listed in META-INF/services/org.os.Command; they are
+// found with ServiceLoader the first time a name is not a built-in. Built-ins win on name clashes.
+// Output follows the pipeline convention: one element per line, each ending with '\n'.
+public interface Command {
+    Descriptor descriptor();
+
+    Stream<String> run(Context context, List<String> args);
+
+    // The session a command or filter runs in
+    interface Context {
+        Path currentDirectory();
+
+        // An error message formatted like the ones of the built-in commands
+        String error(String what, String detail);
+    }
+}
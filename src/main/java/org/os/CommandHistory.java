@@ -0,0 +1,447 @@
+package org.os;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// Command history: an append-only log file, one command per line (UTF-8), shared by every shell
+// of the user. The log is read through a memory mapping and every entry is indexed by the byte
+// trigrams it contains, so a substring search only verifies the entries having all trigrams of
+// the query instead of scanning the file. Queries shorter than a trigram scan backwards from the
+// newest entry, they match something almost immediately.
+// New commands are buffered and appended in batches (every BATCH_SIZE commands, after
+// BATCH_MILLIS, before searches and at exit), each batch as one locked write. Lines other shells
+// append are picked up by the next search.
+// The index is saved next to the log (.idx: entry offsets and sorted posting lists as plain ints)
+// and mapped as is by the next start, which then only indexes the lines added since. Saving
+// rewrites the whole file, so it happens at close once RESAVE_ENTRIES new entries were indexed.
+final class CommandHistory implements Closeable {
+    private static final int BATCH_SIZE = Integer.getInteger("cli.history.batch", 32);
+    private static final long BATCH_MILLIS = 1000;
+    private static final int RESAVE_ENTRIES = Integer.getInteger("cli.history.resaveEntries", 10_000);
+    private static final int INDEX_MAGIC = 0x48495832;
+    private static final int HEADER_SIZE = 20;
+
+    private static CommandHistory shared;
+
+    private final Path indexFile;
+    // Appends go through their own O_APPEND channel, reads and the mapping through the other
+    private final FileChannel channel, appender;
+    private MappedByteBuffer log;
+    // Entry i starts at offsets[i] and ends before the '\n' preceding offsets[i + 1] (or indexed)
+    private Ints offsets = new Ints(null);
+    // Bytes of the log covered by the index, always just after a '\n'
+    private long indexed = 0;
+    private int savedCount = 0;
+    private final Trigrams trigrams = new Trigrams();
+    private final List<String> pending = new ArrayList<>();
+    private long lastWrite = System.currentTimeMillis();
+
+    // ~/.cli_history, or cli.history.file; flushed and closed at exit
+    static synchronized CommandHistory shared() throws IOException {
+        if (shared == null){
+            Path file = Path.of(System.getProperty("cli.history.file", Path.of(System.getProperty("user.home"), ".cli_history").toString()));
+            shared = new CommandHistory(file);
+            CommandHistory history = shared;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    history.close();
+                } catch (IOException e) {
+                    System.err.println("Error saving history: " + e.getMessage());
+                }
+            }, "history-shutdown"));
+        }
+        return shared;
+    }
+
+    CommandHistory(Path file) throws IOException {
+        indexFile = file.resolveSibling(file.getFileName() + ".idx");
+        appender = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        loadIndex();
+        refresh();
+    }
+
+    // Record a command; blank ones, ones starting with a space and repeats of the last are skipped
+    synchronized void add(String command) throws IOException {
+        if (command.isBlank() || command.startsWith(" ") || command.indexOf('\n') >= 0 || command.equals(last())){
+            return;
+        }
+        pending.add(command);
+        if (pending.size() >= BATCH_SIZE || System.currentTimeMillis() - lastWrite >= BATCH_MILLIS){
+            flush();
+        }
+    }
+
+    // Append the buffered commands to the log and index what is new in it
+    synchronized void flush() throws IOException {
+        lastWrite = System.currentTimeMillis();
+        if (!pending.isEmpty()){
+            StringBuilder batch = new StringBuilder();
+            for (String command: pending){
+                batch.append(command).append('\n');
+            }
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(batch));
+            try (FileLock lock = appender.lock()){
+                while (bytes.hasRemaining()){
+                    appender.write(bytes);
+                }
+            }
+            pending.clear();
+        }
+        refresh();
+    }
+
+    // Number of entries, including everything appended so far
+    synchronized int size() throws IOException {
+        flush();
+        return offsets.size();
+    }
+
+    synchronized String get(int entry){
+        int start = offsets.get(entry);
+        byte[] bytes = new byte[end(entry) - start];
+        log.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // The newest entry before `before` containing `text`, -1 if there is none
+    synchronized int search(String text, int before){
+        byte[] query = text.getBytes(StandardCharsets.UTF_8);
+        before = Math.min(before, offsets.size());
+        if (query.length < 3){
+            for (int entry = before - 1; entry >= 0; entry--){
+                if (contains(entry, query)){
+                    return entry;
+                }
+            }
+            return -1;
+        }
+        List<Ints> lists = new ArrayList<>();
+        for (int i = 0; i + 2 < query.length; i++){
+            Ints postings = trigrams.get(trigram(query, i));
+            if (postings == null){
+                return -1;
+            }
+            lists.add(postings);
+        }
+        lists.sort(Comparator.comparingInt(Ints::size));
+        Ints rarest = lists.get(0);
+        candidates:
+        for (int i = rarest.floor(before) - 1; i >= 0; i--){
+            int entry = rarest.get(i);
+            for (int l = 1; l < lists.size(); l++){
+                if (!lists.get(l).contains(entry)){
+                    continue candidates;
+                }
+            }
+            if (contains(entry, query)){
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    // `history` output line of an entry: number (from 1) and command
+    String line(int entry){
+        return String.format("%5d  %s\n", entry + 1, get(entry));
+    }
+
+    Stream<String> lines(int from, int to){
+        return IntStream.range(from, to).mapToObj(this::line);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()){
+            return;
+        }
+        try {
+            flush();
+            if (offsets.size() - savedCount >= RESAVE_ENTRIES){
+                saveIndex();
+            }
+        } finally {
+            appender.close();
+            channel.close();
+        }
+    }
+
+    private String last(){
+        return !pending.isEmpty() ? pending.get(pending.size() - 1) : offsets.size() > 0 ? get(offsets.size() - 1) : null;
+    }
+
+    private int end(int entry){
+        return (entry + 1 < offsets.size() ? offsets.get(entry + 1) : (int) indexed) - 1;
+    }
+
+    // Index the complete lines appended to the log since the last call
+    private void refresh() throws IOException {
+        long size = Math.min(channel.size(), Integer.MAX_VALUE);
+        if (size > (log == null ? 0 : log.capacity())){
+            log = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int start = (int) indexed;
+        for (int i = start; i < size; i++){
+            if (log.get(i) == '\n'){
+                index(start, i);
+                start = i + 1;
+            }
+        }
+        // A line still being written by another shell is taken in next time
+        indexed = start;
+    }
+
+    private void index(int start, int end){
+        int entry = offsets.size();
+        offsets.add(start);
+        if (end - start < 3){
+            return;
+        }
+        int key = (log.get(start) & 0xff) << 8 | log.get(start + 1) & 0xff;
+        for (int i = start + 2; i < end; i++){
+            key = (key << 8 | log.get(i) & 0xff) & 0xffffff;
+            Ints postings = trigrams.getOrAdd(key);
+            // Not again for a trigram seen twice in this entry
+            if (postings.size() == 0 || postings.last() != entry){
+                postings.add(entry);
+            }
+        }
+    }
+
+    private static int trigram(byte[] bytes, int i){
+        return (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | bytes[i + 2] & 0xff;
+    }
+
+    private boolean contains(int entry, byte[] query){
+        int start = offsets.get(entry), last = end(entry) - query.length;
+        candidates:
+        for (int i = start; i <= last; i++){
+            for (int j = 0; j < query.length; j++){
+                if (log.get(i + j) != query[j]){
+                    continue candidates;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // Layout: magic, indexed bytes (long), entries, trigrams; the entry offsets; per trigram its
+    // key, first int and length in the posting data; the posting data. Only used when it still
+    // describes the start of this log, otherwise everything is reindexed from the log.
+    private void loadIndex() throws IOException {
+        if (!Files.isReadable(indexFile)){
+            return;
+        }
+        try (FileChannel in = FileChannel.open(indexFile, StandardOpenOption.READ)){
+            if (in.size() < HEADER_SIZE || in.size() > Integer.MAX_VALUE){
+                return;
+            }
+            // Stays valid after the channel is closed, or the file replaced by another shell
+            MappedByteBuffer index = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            long length = index.getLong(4);
+            int entries = index.getInt(12), keys = index.getInt(16);
+            if (index.getInt(0) != INDEX_MAGIC || length > channel.size() || length > 0 && !endsLine(length)){
+                return;
+            }
+            IntBuffer ints = index.slice(HEADER_SIZE, index.capacity() - HEADER_SIZE).asIntBuffer();
+            int data = entries + 3 * keys;
+            Ints savedOffsets = new Ints(ints.slice(0, entries));
+            Trigrams savedTrigrams = new Trigrams();
+            for (int k = 0; k < keys; k++){
+                int position = entries + 3 * k;
+                savedTrigrams.put(ints.get(position), new Ints(ints.slice(data + ints.get(position + 1), ints.get(position + 2))));
+            }
+            offsets = savedOffsets;
+            trigrams.putAll(savedTrigrams);
+            indexed = length;
+            savedCount = entries;
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // Truncated, start over from the log
+        }
+    }
+
+    // Written to a temp file and moved over the old one, shells closing at the same time may race
+    private void saveIndex() throws IOException {
+        Path temp = Files.createTempFile(indexFile.toAbsolutePath().getParent(), ".cli_history", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))){
+                out.writeInt(INDEX_MAGIC);
+                out.writeLong(indexed);
+                out.writeInt(offsets.size());
+                out.writeInt(trigrams.size());
+                offsets.writeTo(out);
+                int position = 0;
+                for (int slot = 0; slot < trigrams.capacity(); slot++){
+                    Ints postings = trigrams.valueAt(slot);
+                    if (postings != null){
+                        out.writeInt(trigrams.keyAt(slot));
+                        out.writeInt(position);
+                        out.writeInt(postings.size());
+                        position += postings.size();
+                    }
+                }
+                for (int slot = 0; slot < trigrams.capacity(); slot++){
+                    Ints postings = trigrams.valueAt(slot);
+                    if (postings != null){
+                        postings.writeTo(out);
+                    }
+                }
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            savedCount = offsets.size();
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private boolean endsLine(long length) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        return channel.read(last, length - 1) == 1 && last.get(0) == '\n';
+    }
+
+    // Ascending ints: the part mapped from the saved index, then what was added since
+    private static final class Ints {
+        private final IntBuffer saved;
+        private final int savedSize;
+        private int[] added = new int[2];
+        private int addedSize = 0;
+
+        Ints(IntBuffer saved){
+            this.saved = saved;
+            savedSize = saved == null ? 0 : saved.limit();
+        }
+
+        int size(){
+            return savedSize + addedSize;
+        }
+
+        int get(int i){
+            return i < savedSize ? saved.get(i) : added[i - savedSize];
+        }
+
+        int last(){
+            return get(size() - 1);
+        }
+
+        void add(int value){
+            if (addedSize == added.length){
+                added = Arrays.copyOf(added, addedSize * 2);
+            }
+            added[addedSize++] = value;
+        }
+
+        // Number of values below `value`
+        int floor(int value){
+            int low = 0, high = size();
+            while (low < high){
+                int middle = (low + high) >>> 1;
+                if (get(middle) < value){
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        boolean contains(int value){
+            int i = floor(value);
+            return i < size() && get(i) == value;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            for (int i = 0; i < size(); i++){
+                out.writeInt(get(i));
+            }
+        }
+    }
+
+    // Open addressing map from trigram to postings; keys are stored with bit 24 set, 0 is a free slot
+    private static final class Trigrams {
+        private int[] keys = new int[1 << 12];
+        private Ints[] values = new Ints[1 << 12];
+        private int size = 0;
+
+        Ints get(int key){
+            return values[slot(keys, key | 1 << 24)];
+        }
+
+        Ints getOrAdd(int key){
+            Ints postings = get(key);
+            if (postings == null){
+                postings = new Ints(null);
+                put(key, postings);
+            }
+            return postings;
+        }
+
+        void put(int key, Ints postings){
+            if (2 * (size + 1) > keys.length){
+                grow();
+            }
+            int slot = slot(keys, key | 1 << 24);
+            if (values[slot] == null){
+                size++;
+            }
+            keys[slot] = key | 1 << 24;
+            values[slot] = postings;
+        }
+
+        void putAll(Trigrams other){
+            for (int slot = 0; slot < other.capacity(); slot++){
+                if (other.values[slot] != null){
+                    put(other.keyAt(slot), other.values[slot]);
+                }
+            }
+        }
+
+        int size(){
+            return size;
+        }
+
+        int capacity(){
+            return keys.length;
+        }
+
+        int keyAt(int slot){
+            return keys[slot] & 0xffffff;
+        }
+
+        Ints valueAt(int slot){
+            return values[slot];
+        }
+
+        private void grow(){
+            int[] oldKeys = keys;
+            Ints[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new Ints[oldKeys.length * 2];
+            for (int slot = 0; slot < oldKeys.length; slot++){
+                if (oldValues[slot] != null){
+                    int moved = slot(keys, oldKeys[slot]);
+                    keys[moved] = oldKeys[slot];
+                    values[moved] = oldValues[slot];
+                }
+            }
+        }
+
+        private static int slot(int[] keys, int stored){
+            int mask = keys.length - 1, hash = stored * 0x9E3779B9;
+            int slot = (hash ^ hash >>> 16) & mask;
+            while (keys[slot] != 0 && keys[slot] != stored){
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+}
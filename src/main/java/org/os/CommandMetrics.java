@@ -0,0 +1,400 @@
+package org.os;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Process wide counters per command/filter name: calls, failures, output lines and bytes (chars),
+// self time and sampled allocation. Every stage's output is wrapped in a Meter spliterator that
+// times the invocation and each pull, minus the time of the stages upstream of it (tracked per
+// thread) and minus what its consumer does with a line, so the numbers are each stage's own cost.
+// Allocation comes from ThreadMXBean for one in ALLOCATION_SAMPLE_RATE invocations; it is not
+// available on virtual threads (server sessions, concurrent pipelines), those are not sampled.
+// Each invocation's own time also goes to a LatencyHistogram per name (see prometheus()) and,
+// once Flight Recorder has started (it sets jdk.jfr.repository), into a StageEvent.
+// time() measures one pipeline: every stage started inside it also gets its allocation and its
+// thread CPU time (measured for some pulls, estimated for the rest from the measured CPU/wall
+// ratio), and the numbers are reported on their own once the output was consumed.
+final class CommandMetrics {
+    static final boolean ENABLED = !"false".equals(System.getProperty("cli.metrics"));
+    private static final int ALLOCATION_SAMPLE_RATE = Integer.getInteger("cli.metrics.allocationSampleRate", 16);
+    // With `time`, the thread CPU time is read for the first pulls of a stage and one in CPU_SAMPLE_RATE after that
+    private static final int CPU_SAMPLE_RATE = Integer.getInteger("cli.metrics.cpuSampleRate", 32);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    // Time, allocated bytes and CPU time already attributed to some stage in the current pull, per thread
+    private static final ThreadLocal<long[]> accounted = ThreadLocal.withInitial(() -> new long[3]);
+    // The `time` run stages started on this thread belong to, if any
+    private static final ThreadLocal<Timing> timing = new ThreadLocal<>();
+
+    private CommandMetrics(){}
+
+    // Calls `stage` and returns its output metered under `name`
+    static Stream<String> meter(String name, Supplier<Stream<String>> stage){
+        Timing timed = timing.get();
+        if (!ENABLED && timed == null){
+            return stage.get();
+        }
+        Stats counters = ENABLED ? stats.computeIfAbsent(name, key -> new Stats()) : null;
+        long call = counters == null ? 0 : counters.calls.getAndIncrement();
+        Meter meter = new Meter(name, counters, timed != null || call % ALLOCATION_SAMPLE_RATE == ALLOCATION_SAMPLE_RATE - 1, timed != null);
+        if (timed != null){
+            timed.stages.add(meter);
+        }
+        Stream<String> output;
+        meter.begin();
+        try {
+            output = stage.get();
+        } catch (RuntimeException e) {
+            meter.end();
+            meter.fail();
+            throw e;
+        }
+        meter.end();
+        meter.source = output.spliterator();
+        return StreamSupport.stream(meter, false).onClose(() -> {
+            meter.finish();
+            output.close();
+        });
+    }
+
+    // Runs `pipeline` (which must start its stages on this thread and not hand them to others) and
+    // appends the wall time, CPU time and allocation of each stage once its output was read
+    static Stream<String> time(Supplier<Stream<String>> pipeline){
+        Timing timed = new Timing();
+        Timing outer = timing.get();
+        timing.set(timed);
+        long start = System.nanoTime();
+        Stream<String> output;
+        try {
+            output = pipeline.get();
+        } finally {
+            timing.set(outer);
+        }
+        Stream<String> report = Stream.of(timed).flatMap(stages -> Lines.of(stages.report(System.nanoTime() - start)));
+        return Stream.concat(output, report);
+    }
+
+    // Counters and recent latency quantiles per name in the Prometheus text exposition format
+    static String prometheus(){
+        List<Map.Entry<String, Stats>> entries = new ArrayList<>(stats.entrySet());
+        entries.sort(Map.Entry.comparingByKey());
+        StringBuilder text = new StringBuilder();
+        counter(text, entries, "cli_stage_calls_total", "Finished command and filter invocations.", counters -> counters.completed.sum());
+        counter(text, entries, "cli_stage_failures_total", "Invocations that failed.", counters -> counters.failures.sum());
+        counter(text, entries, "cli_stage_lines_total", "Lines output.", counters -> counters.lines.sum());
+        counter(text, entries, "cli_stage_output_chars_total", "Characters output.", counters -> counters.bytes.sum());
+        text.append("# HELP cli_stage_duration_seconds Own time per invocation, quantiles over the last one to two windows.\n")
+                .append("# TYPE cli_stage_duration_seconds summary\n");
+        for (Map.Entry<String, Stats> entry: entries){
+            LatencyHistogram latency = entry.getValue().latency;
+            String label = "stage=\"" + escapeLabel(entry.getKey()) + "\"";
+            for (double quantile: QUANTILES){
+                text.append("cli_stage_duration_seconds{").append(label).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(latency.quantile(quantile))).append('\n');
+            }
+            text.append("cli_stage_duration_seconds_sum{").append(label).append("} ").append(seconds(latency.sum())).append('\n');
+            text.append("cli_stage_duration_seconds_count{").append(label).append("} ").append(latency.count()).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, List<Map.Entry<String, Stats>> entries, String name, String help,
+                                ToLongFunction<Stats> value){
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" counter\n");
+        for (Map.Entry<String, Stats> entry: entries){
+            text.append(name).append("{stage=\"").append(escapeLabel(entry.getKey())).append("\"} ")
+                    .append(value.applyAsLong(entry.getValue())).append('\n');
+        }
+    }
+
+    private static String escapeLabel(String value){
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String seconds(long nanos){
+        return Double.toString(nanos / 1e9);
+    }
+
+    // One line per name, most expensive first
+    static String report(){
+        List<Map.Entry<String, Stats>> entries = new ArrayList<>(stats.entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<String, Stats> entry) -> entry.getValue().nanos.sum()).reversed());
+        StringBuilder report = new StringBuilder(String.format("%-10s %8s %6s %10s %12s %10s %9s %9s %12s%n",
+                "name", "calls", "failed", "lines", "bytes", "total ms", "avg ms", "max ms", "alloc/call"));
+        for (Map.Entry<String, Stats> entry: entries){
+            Stats counters = entry.getValue();
+            if (counters.completed.sum() == 0){
+                // Still running, e.g. the stats command itself
+                continue;
+            }
+            long calls = Math.max(1, counters.completed.sum()), samples = counters.allocationSamples.sum();
+            report.append(String.format("%-10s %8d %6d %10d %12d %10.2f %9.3f %9.3f %12s%n", entry.getKey(),
+                    counters.completed.sum(), counters.failures.sum(), counters.lines.sum(), counters.bytes.sum(),
+                    counters.nanos.sum() / 1e6, counters.nanos.sum() / 1e6 / calls, counters.maxNanos.get() / 1e6,
+                    samples == 0 ? "-" : Long.toString(counters.allocated.sum() / samples)));
+        }
+        return report.toString();
+    }
+
+    static void reset(){
+        stats.clear();
+    }
+
+    private static final class Stats {
+        final AtomicLong calls = new AtomicLong();
+        final LongAdder completed = new LongAdder(), failures = new LongAdder();
+        final LongAdder lines = new LongAdder(), bytes = new LongAdder(), nanos = new LongAdder();
+        final LongAdder allocated = new LongAdder(), allocationSamples = new LongAdder();
+        final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        final LatencyHistogram latency = new LatencyHistogram();
+    }
+
+    // The stages of one `time` run, in the order they started
+    private static final class Timing {
+        final List<Meter> stages = new ArrayList<>();
+
+        String report(long wallNanos){
+            // Fused stages (cat|grep|uniq) get a wider name column
+            int width = Math.max(10, stages.stream().mapToInt(stage -> stage.name.length()).max().orElse(0));
+            String name = "%-" + width + "s";
+            StringBuilder report = new StringBuilder(String.format(name + " %10s %10s %14s %10s%n", "stage", "wall ms", "cpu ms", "alloc bytes", "lines"));
+            long cpu = 0, allocated = 0;
+            boolean cpuKnown = true, allocationKnown = true;
+            for (Meter stage: stages){
+                report.append(String.format(name + " %10.3f %10s %14s %10d%n", stage.name, stage.nanos / 1e6,
+                        stage.sampleCpu ? String.format("%.3f", stage.cpu / 1e6) : "-",
+                        stage.sampleAllocation ? Long.toString(stage.allocated) : "-", stage.lines));
+                cpu += stage.cpu;
+                allocated += stage.allocated;
+                cpuKnown &= stage.sampleCpu;
+                allocationKnown &= stage.sampleAllocation;
+            }
+            report.append(String.format(name + " %10.3f %10s %14s%n", "total", wallNanos / 1e6,
+                    cpuKnown ? String.format("%.3f", cpu / 1e6) : "-", allocationKnown ? Long.toString(allocated) : "-"));
+            return report.toString();
+        }
+    }
+
+    // Per thread allocation and CPU time, loaded only when a sample is taken: the management
+    // classes are slow to start
+    private static final class ThreadCounters {
+        static final com.sun.management.ThreadMXBean threads = threads();
+
+        private static com.sun.management.ThreadMXBean threads(){
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean
+                    && bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()){
+                return bean;
+            }
+            return null;
+        }
+
+        // -1 when unknown (virtual thread, unsupported JVM)
+        static long allocated(){
+            return threads == null ? -1 : threads.getCurrentThreadAllocatedBytes();
+        }
+
+        // CPU time one reading of the thread CPU clock takes itself, the least seen in a few tries
+        static final long CPU_READ_COST = cpuReadCost();
+
+        private static long cpuReadCost(){
+            long least = Long.MAX_VALUE, previous = cpu();
+            for (int i = 0; i < 1000 && previous >= 0; i++){
+                long next = cpu();
+                least = Math.min(least, next - previous);
+                previous = next;
+            }
+            return least == Long.MAX_VALUE ? 0 : least;
+        }
+
+        static long cpu(){
+            return threads == null || !threads.isCurrentThreadCpuTimeSupported() ? -1 : threads.getCurrentThreadCpuTime();
+        }
+    }
+
+    private static final class Meter implements Spliterator<String>, Consumer<String> {
+        private final String name;
+        // null when only a `time` run is interested
+        private final Stats counters;
+        private boolean sampleAllocation, sampleCpu;
+        private Spliterator<String> source;
+        private Consumer<? super String> downstream;
+        // Only while a recording runs: loading an event class would start up JFR (half a second)
+        private final StageEvent event = System.getProperty("jdk.jfr.repository") != null ? new StageEvent() : null;
+        // Current measuring window
+        private boolean open;
+        private long start, measureStart, accountedAtStart, allocatedAtStart, accountedAllocationAtStart, cpuAtStart, accountedCpuAtStart;
+        private long nanos, allocated, cpu, lines, bytes;
+        // CPU time sampling: windows so far, whether this one is measured, measured totals
+        private long windows, measuredCpu, measuredWall;
+        private boolean cpuWindow;
+        private boolean failed, finished;
+
+        Meter(String name, Stats counters, boolean sampleAllocation, boolean sampleCpu){
+            this.name = name;
+            this.counters = counters;
+            this.sampleAllocation = sampleAllocation;
+            this.sampleCpu = sampleCpu;
+            if (event != null){
+                event.begin();
+            }
+        }
+
+        void begin(){
+            long[] done = accounted.get();
+            accountedAtStart = done[0];
+            if (sampleAllocation){
+                allocatedAtStart = ThreadCounters.allocated();
+                accountedAllocationAtStart = done[1];
+                sampleAllocation = allocatedAtStart >= 0;
+            }
+            if (sampleCpu){
+                // Reading the thread CPU clock is a system call, too slow to do for every line
+                accountedCpuAtStart = done[2];
+                cpuWindow = windows < 4 || windows % CPU_SAMPLE_RATE == 0;
+                windows++;
+                if (cpuWindow){
+                    measureStart = System.nanoTime();
+                    cpuAtStart = ThreadCounters.cpu();
+                    sampleCpu = cpuAtStart >= 0;
+                }
+            }
+            open = true;
+            start = System.nanoTime();
+        }
+
+        // Close the window: keep what upstream stages did not account for, then account the whole window
+        void end(){
+            long elapsed = System.nanoTime() - start;
+            boolean measured = sampleCpu && cpuWindow;
+            long cpuAtEnd = measured ? ThreadCounters.cpu() : 0;
+            long[] done = accounted.get();
+            long own = elapsed - (done[0] - accountedAtStart);
+            nanos += own;
+            // The clock reads are nobody's time: upstream stages subtract them along with the window
+            done[0] = accountedAtStart + (measured ? System.nanoTime() - measureStart : elapsed);
+            if (sampleAllocation){
+                long total = ThreadCounters.allocated() - allocatedAtStart;
+                allocated += total - (done[1] - accountedAllocationAtStart);
+                done[1] = accountedAllocationAtStart + total;
+            }
+            if (sampleCpu){
+                // Measured windows give the stage's CPU/wall ratio, the others are estimated with it
+                long upstream = done[2] - accountedCpuAtStart, ownCpu;
+                if (measured){
+                    // Between the two readings are the end of the first read and the start of the second
+                    ownCpu = Math.max(0, cpuAtEnd - cpuAtStart - ThreadCounters.CPU_READ_COST - upstream);
+                    measuredCpu += ownCpu;
+                    measuredWall += own;
+                    done[2] = accountedCpuAtStart + cpuAtEnd - cpuAtStart + ThreadCounters.CPU_READ_COST;
+                } else {
+                    ownCpu = measuredWall <= 0 ? own : (long) (own * Math.min(1.0, (double) measuredCpu / measuredWall));
+                    done[2] = accountedCpuAtStart + upstream + ownCpu;
+                }
+                cpu += ownCpu;
+            }
+            open = false;
+        }
+
+        void fail(){
+            failed = true;
+            finish();
+        }
+
+        void finish(){
+            if (finished){
+                return;
+            }
+            finished = true;
+            if (event != null){
+                event.end();
+            }
+            if (event != null && event.shouldCommit()){
+                event.stage = name;
+                event.ownTime = nanos;
+                event.cpuTime = sampleCpu ? cpu : -1;
+                event.allocated = sampleAllocation ? allocated : -1;
+                event.lines = lines;
+                event.characters = bytes;
+                event.failed = failed;
+                event.commit();
+            }
+            if (counters == null){
+                return;
+            }
+            counters.completed.increment();
+            if (failed){
+                counters.failures.increment();
+            }
+            counters.lines.add(lines);
+            counters.bytes.add(bytes);
+            counters.nanos.add(nanos);
+            counters.maxNanos.accumulate(nanos);
+            counters.latency.record(nanos);
+            if (sampleAllocation){
+                counters.allocated.add(allocated);
+                counters.allocationSamples.increment();
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            downstream = action;
+            boolean advanced;
+            begin();
+            try {
+                advanced = source.tryAdvance(this);
+            } catch (RuntimeException e) {
+                // Only ours if it was not thrown further down the pipeline
+                failed |= open;
+                throw e;
+            } finally {
+                if (open){
+                    end();
+                }
+            }
+            if (!advanced){
+                finish();
+            }
+            return advanced;
+        }
+
+        // A line leaves this stage: what the consumer does with it is not our time
+        @Override
+        public void accept(String line) {
+            end();
+            lines++;
+            bytes += line.length();
+            downstream.accept(line);
+        }
+
+        @Override
+        public Spliterator<String> trySplit() {
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return source.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return source.characteristics() & ~Spliterator.SUBSIZED;
+        }
+
+        @Override
+        public Comparator<? super String> getComparator() {
+            return source.getComparator();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.os;
+import java.util.*;
+
+// Single pass lexer/parser for command lines:
+//   command [args...] ( '|' filter [args...] | '>' file | '>>' file )*
+// Words may be quoted ('...' is literal, "..." honours \" \\ escapes) or escaped with a backslash;
+// only unquoted *, ?, [ and { make a word a glob pattern.
+// Unquoted |, > and >> are operators even without surrounding spaces.
+// Parsed lines are immutable and kept in a small LRU cache, scripts repeat the same lines a lot.
+final class CommandParser {
+    private static final int CACHE_SIZE = 512;
+
+    enum Operator { PIPE, REDIRECT, APPEND }
+
+    // A command or filter invocation; for redirects `name` and `args` make up the file name.
+    // `patterns` holds the indexes of the args with unquoted glob characters, the ones to expand
+    record Command(String name, List<String> args, Set<Integer> patterns) {
+        Command(String name, List<String> args){
+            this(name, args, Set.of());
+        }
+        // The command made of the args (time cat *.txt runs cat *.txt)
+        Command inner(){
+            Set<Integer> shifted = new HashSet<>();
+            for (int index: patterns){
+                if (index > 0){
+                    shifted.add(index - 1);
+                }
+            }
+            return new Command(args.get(0), args.subList(1, args.size()), Set.copyOf(shifted));
+        }
+        String[] argArray(){
+            return args.toArray(new String[0]);
+        }
+        // The words as typed (unquoted), used for file names and error messages
+        String text(){
+            if (args.isEmpty()){
+                return name;
+            }
+            return name + " " + String.join(" ", args);
+        }
+    }
+    record Step(Operator operator, Command target) {}
+    record Pipeline(Command source, List<Step> steps) {}
+
+    private static final Map<String, Pipeline> cache = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pipeline> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private CommandParser(){}
+
+    static Pipeline parse(String line){
+        synchronized (cache){
+            Pipeline cached = cache.get(line);
+            if (cached != null){
+                return cached;
+            }
+        }
+        Pipeline pipeline = new Lexer(line).pipeline();
+        synchronized (cache){
+            cache.put(line, pipeline);
+        }
+        return pipeline;
+    }
+
+    private static final class Lexer {
+        private final String line;
+        private int position = 0;
+        private final StringBuilder word = new StringBuilder();
+        // Whether the word read last has an unquoted glob character
+        private boolean pattern;
+
+        Lexer(String line){
+            this.line = line;
+        }
+
+        Pipeline pipeline(){
+            List<String> words = new ArrayList<>();
+            Set<Integer> patterns = new HashSet<>();
+            Operator operator = readWords(words, patterns);
+            Command source = command(words, patterns);
+            List<Step> steps = new ArrayList<>();
+            while (operator != null){
+                words.clear();
+                patterns.clear();
+                Operator next = readWords(words, patterns);
+                steps.add(new Step(operator, command(words, patterns)));
+                operator = next;
+            }
+            return new Pipeline(source, List.copyOf(steps));
+        }
+
+        // `patterns` are word indexes, the command name being word 0
+        private static Command command(List<String> words, Set<Integer> patterns){
+            if (words.isEmpty()){
+                return new Command("", List.of());
+            }
+            Set<Integer> args = new HashSet<>();
+            for (int index: patterns){
+                if (index > 0){
+                    args.add(index - 1);
+                }
+            }
+            return new Command(words.get(0), List.copyOf(words.subList(1, words.size())), Set.copyOf(args));
+        }
+
+        // Read words up to the next operator (returned) or the end of the line (null)
+        private Operator readWords(List<String> words, Set<Integer> patterns){
+            while (true){
+                while (position < line.length() && Character.isWhitespace(line.charAt(position))){
+                    position++;
+                }
+                if (position == line.length()){
+                    return null;
+                }
+                char c = line.charAt(position);
+                if (c == '|'){
+                    position++;
+                    return Operator.PIPE;
+                }
+                if (c == '>'){
+                    position++;
+                    if (position < line.length() && line.charAt(position) == '>'){
+                        position++;
+                        return Operator.APPEND;
+                    }
+                    return Operator.REDIRECT;
+                }
+                words.add(readWord());
+                if (pattern){
+                    patterns.add(words.size() - 1);
+                }
+            }
+        }
+
+        private String readWord(){
+            word.setLength(0);
+            pattern = false;
+            while (position < line.length()){
+                char c = line.charAt(position);
+                if (Character.isWhitespace(c) || c == '|' || c == '>'){
+                    break;
+                }
+                position++;
+                if (c == '\\' && position < line.length()){
+                    word.append(line.charAt(position++));
+                } else if (c == '\''){
+                    int end = line.indexOf('\'', position);
+                    end = (end < 0 ? line.length() : end);
+                    word.append(line, position, end);
+                    position = Math.min(end + 1, line.length());
+                } else if (c == '"'){
+                    readDoubleQuoted();
+                } else {
+                    pattern |= c == '*' || c == '?' || c == '[' || c == '{';
+                    word.append(c);
+                }
+            }
+            return word.toString();
+        }
+
+        private void readDoubleQuoted(){
+            while (position < line.length()){
+                char c = line.charAt(position++);
+                if (c == '"'){
+                    return;
+                }
+                if (c == '\\' && position < line.length()){
+                    char next = line.charAt(position);
+                    if (next == '"' || next == '\\'){
+                        word.append(next);
+                        position++;
+                        continue;
+                    }
+                }
+                word.append(c);
+            }
+        }
+    }
+}
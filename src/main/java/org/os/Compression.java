@@ -0,0 +1,486 @@
+package org.os;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+// Compressed files, recognized by their magic bytes: cat, tail and the byte block path read gzip
+// and zstd through open(), and > / >> compress when the target ends in .gz or .zst.
+// Files made of many independent members are decompressed on cli.compression.threads threads
+// (default one per CPU), about 1MB of compressed input per task, handed out in order: BGZF
+// (bgzip, and every .gz written here) whose members carry their size in a header field, and zstd
+// files of several frames (pzstd, every .zst written here) whose frames are sized by walking the
+// block headers. One big gzip member or zstd frame, and gzip members without the size field, are
+// decompressed as a stream on the reading thread; so is everything with a single thread.
+final class Compression {
+    enum Format { PLAIN, GZIP, ZSTD }
+
+    static final int THREADS = Integer.getInteger("cli.compression.threads", Runtime.getRuntime().availableProcessors());
+    private static final int LEVEL = Integer.getInteger("cli.compression.level", 6);
+    // Uncompressed bytes per BGZF member, so that a member always fits its 16 bit size field
+    private static final int GZIP_BLOCK = 65280;
+    private static final int ZSTD_FRAME = 1 << 20;
+    // Compressed bytes per task, and the largest member split off before streaming takes over
+    private static final int TASK_SIZE = 1 << 20, MAX_MEMBER = 16 << 20;
+    private static final int STREAM_BUFFER = 64 * 1024;
+    // The empty member bgzip ends its files with
+    private static final byte[] BGZF_EOF = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+            0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    private Compression(){}
+
+    static Format format(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            return format(channel);
+        }
+    }
+
+    // The format > and >> write in, by the target's extension
+    static Format target(String fileName){
+        if (fileName.endsWith(".gz")){
+            return Format.GZIP;
+        }
+        return fileName.endsWith(".zst") ? Format.ZSTD : Format.PLAIN;
+    }
+
+    // The file's content, decompressed as it is read
+    static ReadableByteChannel open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            return switch (format(channel)) {
+                case PLAIN -> channel;
+                case GZIP -> THREADS > 1 ? new ParallelChannel(channel, Format.GZIP) : gzipStream(channel, 0);
+                case ZSTD -> THREADS > 1 ? new ParallelChannel(channel, Format.ZSTD) : zstdStream(channel, 0);
+            };
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Lines compressed into `format`
+    static Iterator<ByteBuffer> compress(Format format, Iterator<String> lines){
+        return compressBytes(format, new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return lines.hasNext();
+            }
+
+            @Override
+            public ByteBuffer next() {
+                return ByteBuffer.wrap(lines.next().getBytes(StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    // Bytes compressed into BGZF members, or one zstd frame per 1MB. A chunk is only valid until the next call
+    static Iterator<ByteBuffer> compressBytes(Format format, Iterator<ByteBuffer> chunks){
+        return new Iterator<>() {
+            private final byte[] input = new byte[format == Format.GZIP ? GZIP_BLOCK : ZSTD_FRAME];
+            private final Deflater deflater = format == Format.GZIP ? new Deflater(LEVEL, true) : null;
+            private final CRC32 crc = new CRC32();
+            private byte[] output = new byte[0];
+            private ByteBuffer chunk, pending;
+            private boolean finished = false;
+
+            @Override
+            public boolean hasNext() {
+                while (chunk == null && !finished){
+                    int length = 0;
+                    while (length < input.length && (pending != null && pending.hasRemaining() || chunks.hasNext())){
+                        if (pending == null || !pending.hasRemaining()){
+                            pending = chunks.next();
+                            continue;
+                        }
+                        int n = Math.min(input.length - length, pending.remaining());
+                        pending.get(input, length, n);
+                        length += n;
+                    }
+                    if (length > 0){
+                        chunk = format == Format.GZIP ? bgzfMember(length) : zstdFrame(length);
+                    } else {
+                        finished = true;
+                        if (deflater != null){
+                            deflater.end();
+                        }
+                        chunk = format == Format.GZIP ? ByteBuffer.wrap(BGZF_EOF) : null;
+                    }
+                }
+                return chunk != null;
+            }
+
+            @Override
+            public ByteBuffer next() {
+                if (!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                ByteBuffer next = chunk;
+                chunk = null;
+                return next;
+            }
+
+            private ByteBuffer bgzfMember(int length){
+                if (output.length == 0){
+                    output = new byte[1 << 17];
+                }
+                int size = deflate(length, deflater);
+                if (size > 1 << 16){
+                    // Incompressible input that grew: stored blocks always fit
+                    Deflater stored = new Deflater(Deflater.NO_COMPRESSION, true);
+                    size = deflate(length, stored);
+                    stored.end();
+                }
+                System.arraycopy(BGZF_EOF, 0, output, 0, 16);
+                output[16] = (byte) (size - 1);
+                output[17] = (byte) ((size - 1) >>> 8);
+                crc.reset();
+                crc.update(input, 0, length);
+                putInt(output, size - 8, (int) crc.getValue());
+                putInt(output, size - 4, length);
+                return ByteBuffer.wrap(output, 0, size);
+            }
+
+            // The whole member's size: header, deflated data and trailer
+            private int deflate(int length, Deflater deflater){
+                deflater.reset();
+                deflater.setInput(input, 0, length);
+                deflater.finish();
+                int size = 18;
+                while (!deflater.finished()){
+                    size += deflater.deflate(output, size, output.length - 8 - size);
+                }
+                return size + 8;
+            }
+
+            private ByteBuffer zstdFrame(int length){
+                if (output.length == 0){
+                    output = new byte[ZstdFrames.bound(ZSTD_FRAME)];
+                }
+                return ByteBuffer.wrap(output, 0, ZstdFrames.compress(input, length, output));
+            }
+        };
+    }
+
+    private static Format format(FileChannel channel) throws IOException {
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        while (magic.hasRemaining() && channel.read(magic, magic.position()) >= 0){
+            // Read the first four bytes
+        }
+        byte[] head = magic.array();
+        int n = magic.position();
+        if (n >= 2 && head[0] == 0x1f && head[1] == (byte) 0x8b){
+            return Format.GZIP;
+        }
+        if (n == 4 && getInt(head, 0) == 0xFD2FB528){
+            return Format.ZSTD;
+        }
+        return Format.PLAIN;
+    }
+
+    private static ReadableByteChannel gzipStream(FileChannel channel, long position) throws IOException {
+        // GZIPInputStream goes on to the next member by itself
+        return Channels.newChannel(new GZIPInputStream(Channels.newInputStream(channel.position(position)), STREAM_BUFFER));
+    }
+
+    private static ReadableByteChannel zstdStream(FileChannel channel, long position) throws IOException {
+        return ZstdFrames.stream(new BufferedInputStream(Channels.newInputStream(channel.position(position)), 2 * STREAM_BUFFER));
+    }
+
+    // The size of the BGZF member at `offset`: 0 when it does not end within `available` bytes,
+    // -1 when it is not one (no gzip header, or no BC field telling the size)
+    private static int bgzfLength(byte[] data, int offset, int available){
+        if (available < 12){
+            return 0;
+        }
+        if (data[offset] != 0x1f || data[offset + 1] != (byte) 0x8b || data[offset + 2] != 8 || (data[offset + 3] & 4) == 0){
+            return -1;
+        }
+        int extra = getShort(data, offset + 10);
+        if (available < 12 + extra){
+            return 0;
+        }
+        for (int field = offset + 12; field + 4 <= offset + 12 + extra; field += 4 + getShort(data, field + 2)){
+            if (data[field] == 'B' && data[field + 1] == 'C' && getShort(data, field + 2) == 2){
+                int size = getShort(data, field + 4) + 1;
+                return size <= available ? size : 0;
+            }
+        }
+        return -1;
+    }
+
+    // Inflate whole gzip members, checking each CRC; the output size is the sum of their trailers
+    private static byte[] inflate(byte[] data, int length) throws IOException {
+        long total = 0;
+        for (int offset = 0; offset < length; ){
+            offset += bgzfLength(data, offset, length - offset);
+            total += getInt(data, offset - 4) & 0xFFFFFFFFL;
+        }
+        if (total > Integer.MAX_VALUE - 8){
+            throw new ZipException("gzip member too large");
+        }
+        byte[] out = new byte[(int) total];
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        try {
+            int written = 0;
+            for (int offset = 0; offset < length; ){
+                int end = offset + bgzfLength(data, offset, length - offset);
+                int start = headerEnd(data, offset);
+                int size = getInt(data, end - 4);
+                inflater.reset();
+                inflater.setInput(data, start, end - 8 - start);
+                int produced = 0;
+                while (produced < size){
+                    int n = inflater.inflate(out, written + produced, size - produced);
+                    if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())){
+                        break;
+                    }
+                    produced += n;
+                }
+                crc.reset();
+                crc.update(out, written, produced);
+                if (produced != size || (int) crc.getValue() != getInt(data, end - 8)){
+                    throw new ZipException("Corrupt gzip member");
+                }
+                written += size;
+                offset = end;
+            }
+            return out;
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int headerEnd(byte[] data, int offset){
+        int flags = data[offset + 3], position = offset + 10;
+        if ((flags & 4) != 0){
+            position += 2 + getShort(data, position);
+        }
+        for (int text: new int[]{8, 16}){
+            if ((flags & text) != 0){
+                while (data[position++] != 0){
+                    // Skip the file name or comment
+                }
+            }
+        }
+        return (flags & 2) != 0 ? position + 2 : position;
+    }
+
+    private static int getShort(byte[] data, int offset){
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int getInt(byte[] data, int offset){
+        return getShort(data, offset) | getShort(data, offset + 2) << 16;
+    }
+
+    private static void putInt(byte[] data, int offset, int value){
+        for (int i = 0; i < 4; i++){
+            data[offset + i] = (byte) (value >>> 8 * i);
+        }
+    }
+
+    // Splits the file into runs of whole members and decodes them on the pool, at most two tasks
+    // per thread ahead of the reader. From the first member that cannot be sized on, the rest of
+    // the file is streamed on the reading thread
+    private static final class ParallelChannel implements ReadableByteChannel {
+        private final FileChannel channel;
+        private final Format format;
+        private final long size;
+        private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        private ByteBuffer current = ByteBuffer.allocate(0);
+        private ReadableByteChannel rest;
+        private long position = 0, restPosition = -1;
+        private boolean open = true;
+
+        ParallelChannel(FileChannel channel, Format format) throws IOException {
+            this.channel = channel;
+            this.format = format;
+            size = channel.size();
+        }
+
+        @Override
+        public int read(ByteBuffer destination) throws IOException {
+            while (!current.hasRemaining()){
+                if (rest != null){
+                    return rest.read(destination);
+                }
+                split();
+                if (pending.isEmpty()){
+                    if (restPosition < 0){
+                        return -1;
+                    }
+                    rest = format == Format.GZIP ? gzipStream(channel, restPosition) : zstdStream(channel, restPosition);
+                    continue;
+                }
+                current = ByteBuffer.wrap(result(pending.poll()));
+            }
+            int n = Math.min(destination.remaining(), current.remaining());
+            destination.put(current.slice(current.position(), n));
+            current.position(current.position() + n);
+            return n;
+        }
+
+        // Hand out runs of members until enough tasks are queued or the members stop being splittable
+        private void split() throws IOException {
+            while (restPosition < 0 && position < size && pending.size() < 2 * THREADS){
+                int available = (int) Math.min(TASK_SIZE, size - position), used = 0;
+                byte[] data;
+                while (true){
+                    data = readAt(position, available);
+                    int length;
+                    while ((length = memberLength(data, used, available - used)) > 0){
+                        used += length;
+                    }
+                    if (used > 0 || length < 0 || available == size - position || available >= MAX_MEMBER){
+                        break;
+                    }
+                    // One member larger than a task
+                    available = (int) Math.min(2L * available, size - position);
+                }
+                if (used == 0){
+                    restPosition = position;
+                    return;
+                }
+                byte[] members = data;
+                int length = used;
+                pending.add(Workers.POOL.submit(() -> format == Format.GZIP ? inflate(members, length) : ZstdFrames.decompress(members, length)));
+                position += used;
+            }
+        }
+
+        private int memberLength(byte[] data, int offset, int available){
+            return format == Format.GZIP ? bgzfLength(data, offset, available) : ZstdFrames.frameLength(data, offset, available);
+        }
+
+        private byte[] readAt(long start, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) >= 0){
+                // Read the whole range
+            }
+            return buffer.array();
+        }
+
+        private static byte[] result(Future<byte[]> task) throws IOException {
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            pending.forEach(task -> task.cancel(false));
+            pending.clear();
+            if (rest != null){
+                rest.close();
+            }
+            channel.close();
+        }
+    }
+
+    // Decompression threads, started by the first parallel read
+    private static final class Workers {
+        static final ExecutorService POOL = Executors.newFixedThreadPool(THREADS, task -> {
+            Thread thread = new Thread(task, "decompress");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Everything that touches zstd-jni, so its classes and native library load only for zstd files
+    private static final class ZstdFrames {
+        private static final int SKIPPABLE = 0x184D2A50, MAGIC = 0xFD2FB528;
+        private static final int LEVEL = Integer.getInteger("cli.compression.zstdLevel", 3);
+
+        static ReadableByteChannel stream(InputStream compressed) throws IOException {
+            try {
+                return Channels.newChannel(new com.github.luben.zstd.ZstdInputStream(compressed));
+            } catch (LinkageError e) {
+                throw new IOException("zstd is not available: " + e.getMessage());
+            }
+        }
+
+        // The size of the frame (or skippable frame) at `offset`, from its header and block headers:
+        // 0 when it does not end within `available` bytes, -1 when it is not a frame
+        static int frameLength(byte[] data, int offset, int available){
+            if (available < 8){
+                return 0;
+            }
+            int magic = getInt(data, offset);
+            if ((magic & 0xFFFFFFF0) == SKIPPABLE){
+                long size = 8 + (getInt(data, offset + 4) & 0xFFFFFFFFL);
+                return size <= available ? (int) size : 0;
+            }
+            if (magic != MAGIC){
+                return -1;
+            }
+            int descriptor = data[offset + 4] & 0xFF;
+            int contentSize = descriptor >>> 6, singleSegment = descriptor >>> 5 & 1, dictionary = descriptor & 3;
+            int position = offset + 5 + (1 - singleSegment) + new int[]{0, 1, 2, 4}[dictionary]
+                    + (contentSize == 0 ? singleSegment : 1 << contentSize);
+            while (true){
+                if (position + 3 > offset + available){
+                    return 0;
+                }
+                int header = (data[position] & 0xFF) | (data[position + 1] & 0xFF) << 8 | (data[position + 2] & 0xFF) << 16;
+                int type = header >>> 1 & 3;
+                if (type == 3){
+                    return -1;
+                }
+                position += 3 + (type == 1 ? 1 : header >>> 3);
+                if ((header & 1) != 0){
+                    break;
+                }
+            }
+            position += (descriptor & 4) != 0 ? 4 : 0;
+            return position <= offset + available ? position - offset : 0;
+        }
+
+        static byte[] decompress(byte[] data, int length) throws IOException {
+            try (InputStream frames = new com.github.luben.zstd.ZstdInputStream(new ByteArrayInputStream(data, 0, length))){
+                return frames.readAllBytes();
+            } catch (LinkageError e) {
+                throw new IOException("zstd is not available: " + e.getMessage());
+            }
+        }
+
+        static int bound(int length){
+            try {
+                return (int) com.github.luben.zstd.Zstd.compressBound(length);
+            } catch (LinkageError e) {
+                throw new UncheckedIOException(new IOException("zstd is not available: " + e.getMessage()));
+            }
+        }
+
+        // One frame, with its content size, written to `output`; returns its size
+        static int compress(byte[] input, int length, byte[] output){
+            long size = com.github.luben.zstd.Zstd.compressByteArray(output, 0, output.length, input, 0, length, LEVEL);
+            if (com.github.luben.zstd.Zstd.isError(size)){
+                throw new UncheckedIOException(new IOException(com.github.luben.zstd.Zstd.getErrorName(size)));
+            }
+            return (int) size;
+        }
+    }
+}
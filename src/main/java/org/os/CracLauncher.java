@@ -0,0 +1,70 @@
+package org.os;
+import org.crac.CheckpointException;
+import org.crac.Core;
+import org.crac.RestoreException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Checkpoint/restore entry point for JDKs with CRaC:
+//   java -XX:CRaCCheckpointTo=cr -cp ... org.os.CracLauncher              warm up, then checkpoint
+//   java -XX:CRaCRestoreFrom=cr -Dcli.dir="$PWD" -Dcli.command="ls"      restore and run
+// The warm-up runs the usual commands once so classes are loaded and lambdas linked before the
+// image is taken. The restored process gets what to run from system properties on the restore
+// command line (cli.command, cli.script, cli.parallel) and its directory from cli.dir, the
+// original arguments and user.dir are part of the image. Without CRaC the checkpoint is skipped
+// and the launcher behaves like ShellSimulator.
+public class CracLauncher {
+    private static final String[] WARM_UP = {
+            "pwd", "ls", "ls -l -a", "help | uniq -c", "touch a.txt b.txt", "pwd > a.txt", "cat a.txt | grep -i a",
+            "cat *.txt | uniq", "mkdir d", "mv b.txt d", "find . -name *.txt", "cp -r d e", "rm -r d e a.txt"
+    };
+
+    public static void main(String[] args) throws IOException {
+        warmUp();
+        try {
+            Core.checkpointRestore();
+        } catch (CheckpointException | RestoreException | UnsupportedOperationException e) {
+            // Not running on a CRaC JDK (or the checkpoint failed): just carry on
+        }
+        // Properties given on the restore command line replace the arguments of the checkpointed run
+        String command = System.getProperty("cli.command"), script = System.getProperty("cli.script");
+        if (command != null || script != null){
+            List<String> restored = new ArrayList<>();
+            if (Boolean.getBoolean("cli.parallel")){
+                restored.add("-p");
+            }
+            restored.add(command != null ? "-c" : "-f");
+            restored.add(command != null ? command : script);
+            args = restored.toArray(new String[0]);
+        }
+        ShellSimulator.run(args, new CLI(Path.of(System.getProperty("cli.dir", System.getProperty("user.dir")))));
+    }
+
+    // Runs in a temp directory; no file or terminal may stay open across the checkpoint
+    private static void warmUp() throws IOException {
+        Path directory = Files.createTempDirectory("cli-warm-up");
+        try {
+            CLI cli = new CLI(directory);
+            cli.setPlainOutput(true);
+            for (String command: WARM_UP){
+                cli.executeCommand(command);
+            }
+        } finally {
+            try (Stream<Path> paths = Files.walk(directory)){
+                paths.sorted(Comparator.reverseOrder()).forEach(path -> {
+                    try {
+                        Files.deleteIfExists(path);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+        }
+    }
+}
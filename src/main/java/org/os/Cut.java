@@ -0,0 +1,97 @@
+package org.os;
+import java.util.BitSet;
+import java.util.List;
+import java.util.stream.Stream;
+
+// cut [-d <char>] -f <list>
+// Prints the selected fields of every line, split on one delimiter character (tab by default)
+// with indexOf instead of a regex. The list is comma separated numbers and ranges: 1,3-5,7-.
+// Fields come out in input order joined by the delimiter; lines without it are printed as they are.
+final class Cut {
+    static final String USAGE = "cut [-d <char>] -f <list>";
+
+    private Cut(){}
+
+    static Stream<String> filter(Stream<String> input, List<String> args){
+        char delimiter = '\t';
+        Fields fields = null;
+        for (int i = 0; i < args.size(); i++){
+            String arg = args.get(i);
+            // -d <char> or -d<char>, -f <list> or -f<list>
+            String value = arg.length() > 2 ? arg.substring(2) : i + 1 < args.size() ? args.get(++i) : null;
+            if (arg.startsWith("-d") && value != null && value.length() == 1){
+                delimiter = value.charAt(0);
+            } else if (arg.startsWith("-f") && value != null){
+                fields = Fields.parse(value);
+            } else {
+                throw new IllegalArgumentException("Usage: " + USAGE);
+            }
+        }
+        if (fields == null){
+            throw new IllegalArgumentException("Usage: " + USAGE);
+        }
+        Fields selected = fields;
+        char separator = delimiter;
+        return input.map(line -> cut(Lines.strip(line), separator, selected)).onClose(input::close);
+    }
+
+    private static String cut(String line, char delimiter, Fields fields){
+        int start = line.indexOf(delimiter);
+        if (start < 0){
+            return line + "\n";
+        }
+        StringBuilder out = new StringBuilder(line.length() + 1);
+        start = 0;
+        boolean first = true;
+        for (int field = 1; start <= line.length() && field <= fields.last; field++){
+            int end = line.indexOf(delimiter, start);
+            end = end < 0 ? line.length() : end;
+            if (fields.contains(field)){
+                if (!first){
+                    out.append(delimiter);
+                }
+                out.append(line, start, end);
+                first = false;
+            }
+            start = end + 1;
+        }
+        return out.append('\n').toString();
+    }
+
+    // Selected field numbers: explicit ones up to `from`, and every field from `from` on
+    private record Fields(BitSet selected, int from, int last) {
+        boolean contains(int field){
+            return field >= from || selected.get(field);
+        }
+
+        static Fields parse(String list){
+            BitSet selected = new BitSet();
+            int from = Integer.MAX_VALUE, last = 0;
+            for (String range: list.split(",", -1)){
+                if (!range.matches("[0-9]*-?[0-9]*") || range.isEmpty() || range.equals("-")){
+                    throw new IllegalArgumentException("Usage: " + USAGE);
+                }
+                int dash = range.indexOf('-');
+                int low = dash == 0 ? 1 : number(dash < 0 ? range : range.substring(0, dash));
+                if (dash >= 0 && dash == range.length() - 1){
+                    from = Math.min(from, low);
+                    continue;
+                }
+                int high = dash < 0 ? low : number(range.substring(dash + 1));
+                if (high < low){
+                    throw new IllegalArgumentException("Usage: " + USAGE);
+                }
+                selected.set(low, high + 1);
+                last = Math.max(last, high);
+            }
+            return new Fields(selected, from, from == Integer.MAX_VALUE ? last : Integer.MAX_VALUE);
+        }
+
+        private static int number(String text){
+            if (text.length() > 9 || Integer.parseInt(text) == 0){
+                throw new IllegalArgumentException("Usage: " + USAGE);
+            }
+            return Integer.parseInt(text);
+        }
+    }
+}
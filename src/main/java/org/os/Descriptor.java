@@ -0,0 +1,8 @@
+package org.os;
+
+// What help, stats and the pipeline need to know about a command or filter.
+//   usage       - synopsis shown by help, e.g. "wc [-l] [-c]"
+//   streaming   - output is produced while the input/source is read, so it works on unbounded input
+//   pure        - no side effects: the output only depends on the arguments and the files read
+public record Descriptor(String name, String usage, String description, boolean streaming, boolean pure) {
+}
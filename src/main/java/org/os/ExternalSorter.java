@@ -0,0 +1,225 @@
+package org.os;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Sorts strings within a memory budget. Input that fits is sorted in memory with Arrays.parallelSort;
+// beyond the budget sorted runs are written to temp files and k-way merged while streaming out. No
+// merge reads more than cli.sort.mergeFanIn runs at once: with more, groups of runs are first merged
+// into longer runs, pass after pass.
+final class ExternalSorter {
+    // Heap budget for one sort, in bytes (roughly: 2 bytes per char plus object overhead)
+    static final long DEFAULT_MEMORY_LIMIT = Long.getLong("cli.sort.memoryLimit", Runtime.getRuntime().maxMemory() / 8);
+    static final int DEFAULT_FAN_IN = Integer.getInteger("cli.sort.mergeFanIn", 64);
+    private static final int STRING_OVERHEAD = 64;
+
+    private final Comparator<String> comparator;
+    private final long memoryLimit;
+    private final int fanIn;
+
+    ExternalSorter(Comparator<String> comparator){
+        this(comparator, DEFAULT_MEMORY_LIMIT);
+    }
+
+    ExternalSorter(Comparator<String> comparator, long memoryLimit){
+        this(comparator, memoryLimit, DEFAULT_FAN_IN);
+    }
+
+    ExternalSorter(Comparator<String> comparator, long memoryLimit, int fanIn){
+        this.comparator = comparator;
+        this.memoryLimit = memoryLimit;
+        this.fanIn = Math.max(2, fanIn);
+    }
+
+    // The input is consumed on the first pull; temp files are deleted when the stream is closed
+    Stream<String> sort(Iterator<String> input){
+        List<Path> runs = new ArrayList<>();
+        List<RunReader> readers = new ArrayList<>();
+        Spliterator<String> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            private Iterator<String> sorted;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action) {
+                if (sorted == null){
+                    sorted = sortAll(input, runs, readers);
+                }
+                if (!sorted.hasNext()){
+                    return false;
+                }
+                action.accept(sorted.next());
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            readers.forEach(RunReader::close);
+            deleteRuns(runs);
+        });
+    }
+
+    private Iterator<String> sortAll(Iterator<String> input, List<Path> runs, List<RunReader> readers){
+        List<String> chunk = new ArrayList<>();
+        long used = 0;
+        while (input.hasNext()){
+            String value = input.next();
+            chunk.add(value);
+            used += STRING_OVERHEAD + 2L * value.length();
+            if (used >= memoryLimit){
+                runs.add(writeRun(Arrays.asList(sortChunk(chunk)).iterator()));
+                chunk.clear();
+                used = 0;
+            }
+        }
+        String[] last = sortChunk(chunk);
+        if (runs.isEmpty()){
+            return Arrays.asList(last).iterator();
+        }
+        if (last.length > 0){
+            runs.add(writeRun(Arrays.asList(last).iterator()));
+        }
+        while (runs.size() > fanIn){
+            mergePass(runs);
+        }
+        return new Merger(runs, readers);
+    }
+
+    // Merge every fanIn consecutive runs into one; a last run left alone is kept as it is
+    private void mergePass(List<Path> runs){
+        List<Path> merged = new ArrayList<>();
+        try {
+            for (int from = 0; from < runs.size(); from += fanIn){
+                List<Path> group = runs.subList(from, Math.min(from + fanIn, runs.size()));
+                if (group.size() == 1){
+                    merged.add(group.get(0));
+                    continue;
+                }
+                List<RunReader> readers = new ArrayList<>();
+                try {
+                    merged.add(writeRun(new Merger(group, readers)));
+                } finally {
+                    readers.forEach(RunReader::close);
+                }
+            }
+        } catch (RuntimeException e) {
+            merged.removeAll(runs);
+            deleteRuns(merged);
+            throw e;
+        }
+        deleteRuns(runs.stream().filter(run -> !merged.contains(run)).toList());
+        runs.clear();
+        runs.addAll(merged);
+    }
+
+    private String[] sortChunk(List<String> chunk){
+        String[] values = chunk.toArray(new String[0]);
+        Arrays.parallelSort(values, comparator);
+        return values;
+    }
+
+    // Runs are length-prefixed UTF-8 so values may contain any character, newlines included
+    private static Path writeRun(Iterator<String> values){
+        Path file;
+        try {
+            file = Files.createTempFile("sort", ".run");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))){
+            while (values.hasNext()){
+                byte[] bytes = values.next().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } catch (IOException e) {
+            deleteRuns(List.of(file));
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            // A run that failed while being merged
+            deleteRuns(List.of(file));
+            throw e;
+        }
+        return file;
+    }
+
+    private static void deleteRuns(List<Path> runs){
+        for (Path run: runs){
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException ignored) {
+                // Temp files are best effort
+            }
+        }
+    }
+
+    // k-way merge over the sorted runs
+    private final class Merger implements Iterator<String> {
+        private final PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> comparator.compare(a.head, b.head));
+
+        Merger(List<Path> runs, List<RunReader> readers){
+            for (Path run: runs){
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.advance()){
+                    queue.add(reader);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            RunReader reader = queue.poll();
+            if (reader == null){
+                throw new NoSuchElementException();
+            }
+            String value = reader.head;
+            if (reader.advance()){
+                queue.add(reader);
+            }
+            return value;
+        }
+    }
+
+    private static final class RunReader {
+        private final DataInputStream in;
+        private String head;
+
+        RunReader(Path run){
+            try {
+                in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 1 << 16));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Load the next value into head, closing the file at the end
+        boolean advance(){
+            try {
+                int length = in.readInt();
+                head = new String(in.readNBytes(length), StandardCharsets.UTF_8);
+                return true;
+            } catch (EOFException e) {
+                close();
+                return false;
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void close(){
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // Nothing left to read
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package org.os;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+// Recursive file operations on a fork-join directory walker: every directory is a task that
+// handles its files inline and forks one subtask per subdirectory. Used by rm -r, cp -r, mv across
+// filesystems and find. Parallelism is per call; progress (entries/bytes done) can be reported
+// periodically to a stream.
+final class FileTreeOps {
+    static final int DEFAULT_PARALLELISM = Integer.getInteger("cli.parallelism", Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+
+    private final int parallelism;
+    private final PrintStream progress;
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    // progress may be null for silent operation
+    FileTreeOps(int parallelism, PrintStream progress){
+        this.parallelism = parallelism;
+        this.progress = progress;
+    }
+
+    long entries(){
+        return entries.sum();
+    }
+
+    long bytes(){
+        return bytes.sum();
+    }
+
+    void delete(Path root) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attributes.isDirectory()){
+            Files.delete(root);
+            entries.increment();
+            return;
+        }
+        run("rm", new DeleteTask(root));
+    }
+
+    void copy(Path source, Path target) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attributes.isDirectory()){
+            copyFile(source, target, attributes);
+            return;
+        }
+        run("cp", new CopyTask(source, target));
+    }
+
+    // Rename when possible, otherwise (another filesystem) copy everything and delete the source
+    void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+            entries.increment();
+            return;
+        } catch (FileSystemException e) {
+            // Files.move cannot move a non-empty directory to another filesystem; on the same one
+            // DirectoryNotEmptyException means the target is a non-empty directory, which is an error
+            if (!isCrossDevice(source, target)){
+                throw e;
+            }
+        }
+        copy(source, target);
+        delete(source);
+    }
+
+    // Paths below root (root included) accepted by the predicate, sorted
+    List<Path> find(Path root, BiPredicate<Path, BasicFileAttributes> predicate) throws IOException {
+        Queue<Path> matches = new ConcurrentLinkedQueue<>();
+        BasicFileAttributes attributes = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (predicate.test(root, attributes)){
+            matches.add(root);
+        }
+        if (attributes.isDirectory()){
+            run("find", new FindTask(root, predicate, matches));
+        }
+        List<Path> sorted = new ArrayList<>(matches);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    private void run(String operation, RecursiveAction task) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        Thread reporter = progress == null ? null : Thread.ofVirtual().start(() -> report(operation));
+        try {
+            pool.invoke(task);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+            if (reporter != null){
+                reporter.interrupt();
+            }
+        }
+    }
+
+    private void report(String operation){
+        try {
+            while (true){
+                Thread.sleep(PROGRESS_INTERVAL_MILLIS);
+                progress.printf("%s: %d entries, %d bytes%n", operation, entries(), bytes());
+                progress.flush();
+            }
+        } catch (InterruptedException e) {
+            // Done
+        }
+    }
+
+    private void copyFile(Path source, Path target, BasicFileAttributes attributes) throws IOException {
+        Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+        entries.increment();
+        bytes.add(attributes.size());
+    }
+
+    private static boolean isCrossDevice(Path source, Path target){
+        try {
+            Path targetDirectory = target.toAbsolutePath().getParent();
+            return !Files.getFileStore(source).equals(Files.getFileStore(targetDirectory));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Children of a directory split into subdirectories and everything else
+    private static void list(Path directory, Map<Path, BasicFileAttributes> directories, Map<Path, BasicFileAttributes> others) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)){
+            for (Path child: stream){
+                BasicFileAttributes attributes = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isDirectory()){
+                    directories.put(child, attributes);
+                } else {
+                    others.put(child, attributes);
+                }
+            }
+        }
+    }
+
+    private static void joinAll(List<? extends RecursiveAction> tasks){
+        for (RecursiveAction task: tasks){
+            task.join();
+        }
+    }
+
+    private final class DeleteTask extends RecursiveAction {
+        private final Path directory;
+
+        DeleteTask(Path directory){
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Map<Path, BasicFileAttributes> directories = new HashMap<>();
+                Map<Path, BasicFileAttributes> files = new HashMap<>();
+                list(directory, directories, files);
+                List<DeleteTask> subtasks = new ArrayList<>();
+                for (Path child: directories.keySet()){
+                    subtasks.add((DeleteTask) new DeleteTask(child).fork());
+                }
+                for (Path file: files.keySet()){
+                    Files.delete(file);
+                    entries.increment();
+                }
+                joinAll(subtasks);
+                Files.delete(directory);
+                entries.increment();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private final class CopyTask extends RecursiveAction {
+        private final Path source, target;
+
+        CopyTask(Path source, Path target){
+            this.source = source;
+            this.target = target;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Files.createDirectories(target);
+                entries.increment();
+                Map<Path, BasicFileAttributes> directories = new HashMap<>();
+                Map<Path, BasicFileAttributes> files = new HashMap<>();
+                list(source, directories, files);
+                List<CopyTask> subtasks = new ArrayList<>();
+                for (Path child: directories.keySet()){
+                    subtasks.add((CopyTask) new CopyTask(child, target.resolve(child.getFileName().toString())).fork());
+                }
+                for (Map.Entry<Path, BasicFileAttributes> file: files.entrySet()){
+                    copyFile(file.getKey(), target.resolve(file.getKey().getFileName().toString()), file.getValue());
+                }
+                joinAll(subtasks);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private final class FindTask extends RecursiveAction {
+        private final Path directory;
+        private final BiPredicate<Path, BasicFileAttributes> predicate;
+        private final Queue<Path> matches;
+
+        FindTask(Path directory, BiPredicate<Path, BasicFileAttributes> predicate, Queue<Path> matches){
+            this.directory = directory;
+            this.predicate = predicate;
+            this.matches = matches;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                Map<Path, BasicFileAttributes> directories = new HashMap<>();
+                Map<Path, BasicFileAttributes> files = new HashMap<>();
+                list(directory, directories, files);
+                List<FindTask> subtasks = new ArrayList<>();
+                for (Map.Entry<Path, BasicFileAttributes> child: directories.entrySet()){
+                    subtasks.add((FindTask) new FindTask(child.getKey(), predicate, matches).fork());
+                    entries.increment();
+                    if (predicate.test(child.getKey(), child.getValue())){
+                        matches.add(child.getKey());
+                    }
+                }
+                for (Map.Entry<Path, BasicFileAttributes> file: files.entrySet()){
+                    entries.increment();
+                    if (predicate.test(file.getKey(), file.getValue())){
+                        matches.add(file.getKey());
+                    }
+                }
+                joinAll(subtasks);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package org.os;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Service provider interface for pipeline filters (`command | name args...`), listed in
+// META-INF/services/org.os.Filter. The input stream must be closed if it is not consumed.
+public interface Filter {
+    Descriptor descriptor();
+
+    Stream<String> apply(Command.Context context, Stream<String> input, List<String> args);
+}
@@ -0,0 +1,270 @@
+package org.os;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.regex.PatternSyntaxException;
+
+// Shell style expansion of command arguments: {a,b} alternatives first, then *, ? and [a-z] inside
+// one path segment and ** for any number of directories. A pattern is matched segment by segment:
+// literal segments are looked up directly, so only the directories a pattern can still match are
+// ever listed, and each glob segment is compiled once into a (cached) PathMatcher.
+// Expansions are cached per working directory and reused while the modification time of every
+// directory the walk looked at is unchanged. Words without matches, or that are not a valid
+// pattern (foo[), are kept as typed, like sh does.
+final class Glob {
+    private static final int MATCHER_CACHE_SIZE = 256;
+    private static final int EXPANSION_CACHE_SIZE = 256;
+    // Walks over more directories than this are not cached, checking them would cost about as much
+    private static final int MAX_CACHED_DIRECTORIES = 4096;
+    // Directories changed this recently may change again within the same timestamp tick
+    private static final long RACY_MILLIS = 2000;
+
+    private record Key(Path directory, String pattern) {}
+    private record Expansion(List<String> matches, Map<Path, FileTime> directories) {}
+
+    private static final Map<String, PathMatcher> matchers = lru(MATCHER_CACHE_SIZE);
+    private static final Map<Key, Expansion> expansions = lru(EXPANSION_CACHE_SIZE);
+
+    private Glob(){}
+
+    // Whether a word needs expanding at all
+    static boolean hasPattern(String word){
+        return isGlob(word) || word.indexOf('{') >= 0;
+    }
+
+    // Expand the words at the `patterns` indexes relative to `directory`, keeping the order of the
+    // words; the others (quoted) are taken as they are
+    static List<String> expand(Path directory, List<String> words, Set<Integer> patterns){
+        List<String> result = new ArrayList<>(words.size());
+        for (int i = 0; i < words.size(); i++){
+            String word = words.get(i);
+            if (!patterns.contains(i) || !hasPattern(word)){
+                result.add(word);
+                continue;
+            }
+            for (String alternative: expandBraces(word)){
+                List<String> matches = isGlob(alternative) ? match(directory, alternative) : List.of();
+                if (matches.isEmpty()){
+                    result.add(alternative);
+                } else {
+                    result.addAll(matches);
+                }
+            }
+        }
+        return result;
+    }
+
+    // a{b,c{d,e}}f -> abf acdf acef; braces without a top level comma are left alone
+    static List<String> expandBraces(String word){
+        int open = -1, depth = 0;
+        for (int i = 0; i < word.length(); i++){
+            char c = word.charAt(i);
+            if (c == '\\'){
+                i++;
+            } else if (c == '{'){
+                if (depth++ == 0){
+                    open = i;
+                }
+            } else if (c == '}' && depth > 0 && --depth == 0){
+                List<String> parts = splitAlternatives(word.substring(open + 1, i));
+                if (parts.size() > 1){
+                    String prefix = word.substring(0, open), suffix = word.substring(i + 1);
+                    List<String> result = new ArrayList<>();
+                    for (String part: parts){
+                        result.addAll(expandBraces(prefix + part + suffix));
+                    }
+                    return result;
+                }
+            }
+        }
+        return List.of(word);
+    }
+
+    private static List<String> splitAlternatives(String body){
+        List<String> parts = new ArrayList<>();
+        int depth = 0, start = 0;
+        for (int i = 0; i < body.length(); i++){
+            char c = body.charAt(i);
+            if (c == '\\'){
+                i++;
+            } else if (c == '{'){
+                depth++;
+            } else if (c == '}'){
+                depth--;
+            } else if (c == ',' && depth == 0){
+                parts.add(body.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(body.substring(start));
+        return parts;
+    }
+
+    private static boolean isGlob(String word){
+        return word.indexOf('*') >= 0 || word.indexOf('?') >= 0 || word.indexOf('[') >= 0;
+    }
+
+    private static List<String> match(Path directory, String pattern){
+        Key key = new Key(directory, pattern);
+        Expansion cached;
+        synchronized (expansions){
+            cached = expansions.get(key);
+        }
+        if (cached != null && unchanged(cached.directories())){
+            return cached.matches();
+        }
+        Walk walk = new Walk(pattern);
+        List<String> matches;
+        try {
+            matches = walk.run(directory);
+        } catch (PatternSyntaxException e) {
+            // foo[ or a{* is no pattern at all: keep the word as typed, like one without matches
+            return List.of();
+        }
+        if (walk.directories.size() <= MAX_CACHED_DIRECTORIES && !walk.racy()){
+            synchronized (expansions){
+                expansions.put(key, new Expansion(matches, Map.copyOf(walk.directories)));
+            }
+        }
+        return matches;
+    }
+
+    private static boolean unchanged(Map<Path, FileTime> directories){
+        for (Map.Entry<Path, FileTime> directory: directories.entrySet()){
+            try {
+                if (!Files.getLastModifiedTime(directory.getKey()).equals(directory.getValue())){
+                    return false;
+                }
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static PathMatcher matcher(String segment){
+        synchronized (matchers){
+            return matchers.computeIfAbsent(segment, s -> FileSystems.getDefault().getPathMatcher("glob:" + s));
+        }
+    }
+
+    private static <K, V> Map<K, V> lru(int capacity){
+        return new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // One expansion of one pattern; paths are reported the way they were typed (relative or absolute)
+    private static final class Walk {
+        private final String[] segments;
+        private final boolean absolute;
+        // Every directory looked at, listed or used for a lookup, with its modification time
+        private final Map<Path, FileTime> directories = new HashMap<>();
+        private final Map<Path, List<Path>> listings = new HashMap<>();
+        // Sorted and without duplicates, ** can reach the same path more than once
+        private final Set<String> matches = new TreeSet<>();
+
+        Walk(String pattern){
+            absolute = pattern.startsWith("/");
+            segments = Arrays.stream(pattern.split("/")).filter(segment -> !segment.isEmpty()).toArray(String[]::new);
+        }
+
+        List<String> run(Path directory){
+            if (absolute){
+                directory = directory.getRoot();
+            }
+            walk(directory, absolute ? "/" : "", 0);
+            return List.copyOf(matches);
+        }
+
+        boolean racy(){
+            long limit = System.currentTimeMillis() - RACY_MILLIS;
+            return directories.values().stream().anyMatch(time -> time.toMillis() > limit);
+        }
+
+        private void walk(Path directory, String shown, int index){
+            if (index == segments.length){
+                if (!shown.isEmpty()){
+                    matches.add(shown);
+                }
+                return;
+            }
+            String segment = segments[index];
+            boolean last = index == segments.length - 1;
+            if (segment.equals("**")){
+                // Zero directories, then one more level for every subdirectory
+                walk(directory, shown, index + 1);
+                for (Path child: list(directory)){
+                    String name = child.getFileName().toString();
+                    if (name.startsWith(".")){
+                        continue;
+                    }
+                    if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)){
+                        walk(child, join(shown, name), index);
+                    } else if (last){
+                        matches.add(join(shown, name));
+                    }
+                }
+            } else if (!isGlob(segment)){
+                // Literal segment: a lookup, no listing
+                Path child = directory.resolve(segment);
+                record(directory);
+                if (last ? Files.exists(child, LinkOption.NOFOLLOW_LINKS) : Files.isDirectory(child)){
+                    walk(child, join(shown, segment), index + 1);
+                }
+            } else {
+                PathMatcher matcher = matcher(segment);
+                for (Path child: list(directory)){
+                    Path name = child.getFileName();
+                    if (name.toString().startsWith(".") && !segment.startsWith(".") || !matcher.matches(name)){
+                        continue;
+                    }
+                    if (last){
+                        matches.add(join(shown, name.toString()));
+                    } else if (Files.isDirectory(child)){
+                        walk(child, join(shown, name.toString()), index + 1);
+                    }
+                }
+            }
+        }
+
+        private List<Path> list(Path directory){
+            List<Path> children = listings.get(directory);
+            if (children != null){
+                return children;
+            }
+            record(directory);
+            children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)){
+                for (Path child: stream){
+                    children.add(child);
+                }
+            } catch (IOException e) {
+                // Unreadable directories match nothing, as in sh
+            }
+            listings.put(directory, children);
+            return children;
+        }
+
+        private void record(Path directory){
+            if (!directories.containsKey(directory)){
+                try {
+                    directories.put(directory, Files.getLastModifiedTime(directory));
+                } catch (IOException e) {
+                    directories.put(directory, FileTime.fromMillis(0));
+                }
+            }
+        }
+
+        private static String join(String shown, String name){
+            if (shown.isEmpty()){
+                return name;
+            }
+            return shown.endsWith("/") ? shown + name : shown + "/" + name;
+        }
+    }
+}
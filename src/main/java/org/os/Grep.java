@@ -0,0 +1,162 @@
+package org.os;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// grep [-v] [-c] [-i] [-E] <pattern>
+// Literal patterns are found with a Boyer-Moore-Horspool search, -E goes through java.util.regex.
+// Compiled matchers are kept in a small LRU cache, and bounded inputs are matched in batches
+// split on line boundaries and searched in parallel on the fork-join pool.
+final class Grep {
+    static final String USAGE = "grep [-v] [-c] [-i] [-E] <pattern>";
+    private static final int CACHE_SIZE = 64;
+    private static final int BATCH_SIZE = 8192;
+    private static final int PARALLEL_THRESHOLD = 2048;
+
+    private static final Map<String, Predicate<String>> matcherCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Predicate<String>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private Grep(){}
+
+    // The flags and the pattern of a grep invocation
+    record Options(boolean invert, boolean count, boolean ignoreCase, boolean regex, String pattern) {
+        static Options parse(List<String> args){
+            boolean invert = false, count = false, ignoreCase = false, regex = false;
+            int i = 0;
+            for (; i < args.size() && args.get(i).startsWith("-") && args.get(i).length() > 1; i++){
+                if (args.get(i).equals("--")){
+                    i++;
+                    break;
+                }
+                for (char flag: args.get(i).substring(1).toCharArray()){
+                    switch (flag){
+                        case 'v' -> invert = true;
+                        case 'c' -> count = true;
+                        case 'i' -> ignoreCase = true;
+                        case 'E' -> regex = true;
+                        default -> throw new IllegalArgumentException("Usage: " + USAGE);
+                    }
+                }
+            }
+            // A quoted pattern is one argument; unquoted words are joined by single spaces
+            String pattern = String.join(" ", args.subList(i, args.size()));
+            return new Options(invert, count, ignoreCase, regex, pattern);
+        }
+    }
+
+    static Stream<String> filter(Stream<String> input, List<String> arguments){
+        Options options = Options.parse(arguments);
+        boolean count = options.count();
+        Predicate<String> matcher = compile(options.pattern(), options.ignoreCase(), options.regex());
+        Predicate<String> keep = options.invert() ? matcher.negate() : matcher;
+
+        Stream<String> selected = select(input, line -> keep.test(Lines.strip(line)));
+        if (count){
+            return Stream.of(selected).map(lines -> {
+                try (lines){
+                    return lines.count() + "\n";
+                }
+            });
+        }
+        return selected.map(Lines::terminate);
+    }
+
+    static Predicate<String> compile(String pattern, boolean ignoreCase, boolean regex){
+        String key = (regex ? "E" : "F") + (ignoreCase ? "i:" : ":") + pattern;
+        synchronized (matcherCache){
+            Predicate<String> matcher = matcherCache.get(key);
+            if (matcher == null){
+                if (regex){
+                    Pattern compiled = Pattern.compile(pattern, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+                    matcher = line -> compiled.matcher(line).find();
+                } else {
+                    matcher = new LiteralMatcher(pattern, ignoreCase);
+                }
+                matcherCache.put(key, matcher);
+            }
+            return matcher;
+        }
+    }
+
+    // Keep the lines accepted by `keep`, in order. Bounded inputs are read ahead one batch at a time
+    // and large batches are matched in parallel; unbounded ones (pipes, follow mode) line by line.
+    private static Stream<String> select(Stream<String> input, Predicate<String> keep){
+        Spliterator<String> upstream = input.spliterator();
+        if (!Lines.isBounded(upstream)){
+            return StreamSupport.stream(upstream, false).onClose(input::close).filter(keep);
+        }
+        Spliterator<String> batched = new Spliterators.AbstractSpliterator<>(upstream.estimateSize(), Spliterator.ORDERED | Spliterator.NONNULL) {
+            private Iterator<String> matches = Collections.emptyIterator();
+            private final List<String> batch = new ArrayList<>(BATCH_SIZE);
+
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action) {
+                while (!matches.hasNext()){
+                    batch.clear();
+                    while (batch.size() < BATCH_SIZE && upstream.tryAdvance(batch::add)){
+                    }
+                    if (batch.isEmpty()){
+                        return false;
+                    }
+                    Stream<String> lines = batch.size() >= PARALLEL_THRESHOLD ? batch.parallelStream() : batch.stream();
+                    matches = lines.filter(keep).toList().iterator();
+                }
+                action.accept(matches.next());
+                return true;
+            }
+        };
+        return StreamSupport.stream(batched, false).onClose(input::close);
+    }
+
+    // Boyer-Moore-Horspool substring search, optionally case-insensitive
+    private static final class LiteralMatcher implements Predicate<String> {
+        private final char[] needle;
+        private final int[] shift = new int[256];
+        private final boolean ignoreCase;
+
+        LiteralMatcher(String pattern, boolean ignoreCase){
+            this.ignoreCase = ignoreCase;
+            needle = pattern.toCharArray();
+            int m = needle.length;
+            for (int i = 0; i < m; i++){
+                needle[i] = fold(needle[i]);
+            }
+            // Chars share a slot by their low byte, keeping the smallest shift is always safe
+            Arrays.fill(shift, Math.max(m, 1));
+            for (int i = 0; i < m - 1; i++){
+                shift[needle[i] & 0xFF] = m - 1 - i;
+            }
+        }
+
+        private char fold(char c){
+            return ignoreCase ? Character.toLowerCase(Character.toUpperCase(c)) : c;
+        }
+
+        @Override
+        public boolean test(String line) {
+            int m = needle.length, n = line.length();
+            if (m == 0){
+                return true;
+            }
+            int i = 0;
+            while (i <= n - m){
+                int j = m - 1;
+                while (j >= 0 && fold(line.charAt(i + j)) == needle[j]){
+                    j--;
+                }
+                if (j < 0){
+                    return true;
+                }
+                i += shift[fold(line.charAt(i + m - 1)) & 0xFF];
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.os;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// head [-n N]
+// Passes the first N lines (default 10) and then closes its input right away, so the stages before
+// it stop reading: `cat huge.log | head` reads one buffer, `tail -f log | head -n 5` returns.
+final class Head {
+    static final String USAGE = "head [-n N]";
+
+    private Head(){}
+
+    // The number of lines to keep
+    static long limit(List<String> args){
+        if (args.size() == 2 && args.get(0).equals("-n") && args.get(1).matches("[0-9]{1,18}")){
+            return Long.parseLong(args.get(1));
+        }
+        if (args.size() == 1 && args.get(0).matches("-n?[0-9]{1,18}")){
+            return Long.parseLong(args.get(0).substring(args.get(0).startsWith("-n") ? 2 : 1));
+        }
+        if (args.isEmpty()){
+            return 10;
+        }
+        throw new IllegalArgumentException("Usage: " + USAGE);
+    }
+
+    static Stream<String> filter(Stream<String> input, List<String> arguments){
+        long lines = limit(arguments);
+        Spliterator<String> upstream = input.spliterator();
+        Spliterator<String> head = new Spliterators.AbstractSpliterator<>(upstream.estimateSize(), Spliterator.ORDERED | Spliterator.NONNULL) {
+            private long taken = 0;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action) {
+                if (taken < lines && upstream.tryAdvance(action)){
+                    if (++taken == lines){
+                        input.close();
+                    }
+                    return true;
+                }
+                input.close();
+                return false;
+            }
+        };
+        return StreamSupport.stream(head, false).onClose(input::close);
+    }
+}
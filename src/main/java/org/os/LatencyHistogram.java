@@ -0,0 +1,93 @@
+package org.os;
+import java.util.Arrays;
+
+// Log-linear histogram of nanosecond latencies, like HdrHistogram with 2 significant digits:
+// values below 128 have a bucket each, above that every power of two is split into 64 buckets,
+// so a recorded value is off by less than 1.6%. Values below 2^41 ns (36 minutes) get their own
+// buckets, longer ones all go to the last bucket.
+// Counts are kept for the current window (cli.metrics.windowSeconds) and the one before it;
+// quantiles are taken over both, so they always cover between one and two windows of recent
+// calls. The sum and count are kept since the start, the way Prometheus summaries report them.
+final class LatencyHistogram {
+    private static final long WINDOW_NANOS = Long.getLong("cli.metrics.windowSeconds", 60) * 1_000_000_000L;
+    private static final int LINEAR = 128, HALF = 64, MAX_BIT = 40;
+    private static final int BUCKETS = LINEAR + (MAX_BIT - 6) * HALF;
+
+    private long[] current = new long[BUCKETS], previous = new long[BUCKETS];
+    private long windowStart = System.nanoTime();
+    private long count = 0, sum = 0;
+
+    synchronized void record(long nanos){
+        roll(System.nanoTime());
+        long value = Math.max(0, nanos);
+        current[index(value)]++;
+        count++;
+        sum += value;
+    }
+
+    synchronized long count(){
+        return count;
+    }
+
+    synchronized long sum(){
+        return sum;
+    }
+
+    // The value (highest equivalent in its bucket) at or below which `quantile` of the recent calls fall
+    synchronized long quantile(double quantile){
+        roll(System.nanoTime());
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            total += current[i] + previous[i];
+        }
+        if (total == 0){
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total)), seen = 0;
+        for (int i = 0; i < BUCKETS; i++){
+            seen += current[i] + previous[i];
+            if (seen >= rank){
+                return highest(i);
+            }
+        }
+        return highest(BUCKETS - 1);
+    }
+
+    private void roll(long now){
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW_NANOS){
+            return;
+        }
+        if (elapsed >= 2 * WINDOW_NANOS){
+            // Nothing recorded for a whole window: the old counts are not recent any more
+            Arrays.fill(current, 0);
+            Arrays.fill(previous, 0);
+        } else {
+            long[] recycled = previous;
+            Arrays.fill(recycled, 0);
+            previous = current;
+            current = recycled;
+        }
+        windowStart = now - elapsed % WINDOW_NANOS;
+    }
+
+    private static int index(long value){
+        if (value < LINEAR){
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+        if (shift > MAX_BIT - 6){
+            return BUCKETS - 1;
+        }
+        return LINEAR + (shift - 1) * HALF + (int) (value >>> shift) - HALF;
+    }
+
+    private static long highest(int index){
+        if (index < LINEAR){
+            return index;
+        }
+        int shift = (index - LINEAR) / HALF + 1;
+        long sub = (index - LINEAR) % HALF + HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,522 @@
+package org.os;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// cat <file>... | grep | uniq | head | wc ... [> file] as one stage over byte blocks instead of a
+// String per line. The files (decompressed if need be) are read into one reused array
+// (cli.lineBlocks.blockSize, 1MB); each block of whole lines gets the offsets of its lines and a
+// selection vector of the ones still alive. grep (literal patterns) and uniq narrow the selection
+// in place, matching and hashing the UTF-8 bytes, head cuts it and stops the reading, wc and
+// grep -c count it. Only the surviving lines become Strings, and with a redirect not even those:
+// they are moved together in the block and written as bytes. Anything else (grep -E, uniq -c,
+// sort, ...) runs through the usual stages.
+final class LineBlocks implements AutoCloseable {
+    static final boolean ENABLED = !"false".equals(System.getProperty("cli.lineBlocks"));
+    private static final int BLOCK_SIZE = Integer.getInteger("cli.lineBlocks.blockSize", 1 << 20);
+
+    private final List<Path> files;
+    private final List<Step> steps;
+    private final String name;
+    private final long size;
+    // grep and uniq always end their lines, so the last line of a file gets its '\n' there
+    private final boolean terminate;
+
+    // The block: whole lines in bytes[0, starts[lines]), then the start of a line cut by the block end.
+    // One byte is kept spare for a '\n' added to the last line of a file.
+    private byte[] bytes = new byte[BLOCK_SIZE + 1];
+    private int length = 0, lines = 0, selected = 0;
+    private int[] starts = new int[1024], selection = new int[1024];
+    private int nextFile = 0;
+    private ReadableByteChannel channel;
+    private boolean done = false, closed = false;
+
+    private LineBlocks(List<Path> files, List<Step> steps, String name, long size, boolean terminate){
+        this.files = files;
+        this.steps = steps;
+        this.name = name;
+        this.size = size;
+        this.terminate = terminate;
+    }
+
+    // The fused form of `cat files | filters`, or null when a filter has no byte form here (or its
+    // arguments are wrong, which the usual stage reports)
+    static LineBlocks plan(List<Path> files, List<CommandParser.Command> filters){
+        if (!ENABLED || filters.isEmpty()){
+            return null;
+        }
+        List<Step> steps = new ArrayList<>();
+        StringBuilder name = new StringBuilder("cat");
+        boolean terminate = false;
+        for (int i = 0; i < filters.size(); i++){
+            CommandParser.Command filter = filters.get(i);
+            List<String> arguments = filter.args();
+            boolean last = i == filters.size() - 1;
+            Step step;
+            try {
+                step = switch (filter.name()) {
+                    case "grep" -> match(Grep.Options.parse(arguments), last);
+                    case "uniq" -> arguments.isEmpty() ? new Distinct() : arguments.equals(List.of("-a")) ? new Adjacent() : null;
+                    case "head" -> new Limit(Head.limit(arguments));
+                    case "wc" -> last ? new Count(WordCount.Columns.parse(arguments), terminate) : null;
+                    default -> null;
+                };
+            } catch (IllegalArgumentException e) {
+                step = null;
+            }
+            if (step == null){
+                steps.forEach(Step::close);
+                return null;
+            }
+            steps.add(step);
+            terminate |= !filter.name().equals("head");
+            name.append('|').append(filter.name());
+        }
+        long size = 0;
+        for (Path file: files){
+            size += file.toFile().length();
+        }
+        return new LineBlocks(files, steps, name.toString(), size, terminate);
+    }
+
+    private static Step match(Grep.Options options, boolean last){
+        if (options.regex() || (options.count() && !last)){
+            return null;
+        }
+        String pattern = options.pattern();
+        if (options.ignoreCase() && !pattern.chars().allMatch(c -> c < 0x80)){
+            return null;
+        }
+        return new Match(pattern, options.ignoreCase(), options.invert(), options.count());
+    }
+
+    // The stage name for metrics and time, e.g. cat|grep|uniq
+    String name(){
+        return name;
+    }
+
+    // The surviving lines, decoded one block at a time
+    Stream<String> lines(){
+        Spliterator<String> spliterator = new Spliterators.AbstractSpliterator<>(size, Spliterator.ORDERED | Spliterator.NONNULL) {
+            private int next = 0;
+            private boolean finished = false;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action) {
+                while (next == selected){
+                    if (finished){
+                        return false;
+                    }
+                    if (!advance()){
+                        finished = true;
+                        String result = result();
+                        if (result == null){
+                            return false;
+                        }
+                        action.accept(result);
+                        return true;
+                    }
+                    next = 0;
+                }
+                action.accept(line(selection[next++]));
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+
+    // The surviving lines as bytes, one chunk per block. A chunk is only valid until the next call
+    Iterator<ByteBuffer> chunks(){
+        return new Iterator<>() {
+            private ByteBuffer chunk;
+            private boolean finished = false;
+
+            @Override
+            public boolean hasNext() {
+                while (chunk == null && !finished){
+                    if (advance()){
+                        int n = compact();
+                        chunk = n > 0 ? ByteBuffer.wrap(bytes, 0, n) : null;
+                    } else {
+                        finished = true;
+                        String result = result();
+                        chunk = result == null ? null : ByteBuffer.wrap(result.getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+                return chunk != null;
+            }
+
+            @Override
+            public ByteBuffer next() {
+                if (!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                ByteBuffer next = chunk;
+                chunk = null;
+                return next;
+            }
+        };
+    }
+
+    @Override
+    public void close(){
+        if (closed){
+            return;
+        }
+        closed = true;
+        steps.forEach(Step::close);
+        closeChannel();
+    }
+
+    // Read the next block and run the steps over it; false at the end of the input
+    private boolean advance(){
+        if (done){
+            return false;
+        }
+        try {
+            if (!fill()){
+                done = true;
+                closeChannel();
+                return false;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        selected = lines;
+        for (int i = 0; i < lines; i++){
+            selection[i] = i;
+        }
+        for (Step step: steps){
+            if (!step.apply(this)){
+                // Nothing after this block is needed (head), the rest of the steps still run on it
+                done = true;
+            }
+        }
+        if (done){
+            closeChannel();
+        }
+        return true;
+    }
+
+    // What the last step prints at the end, when it counts
+    private String result(){
+        return steps.get(steps.size() - 1).result();
+    }
+
+    // Move the cut line to the front and read until the array is full or a file ends. Every file
+    // ends a block, so its last line (with or without '\n') is a line of its own, as with readFile
+    private boolean fill() throws IOException {
+        int end = starts[lines];
+        length -= end;
+        System.arraycopy(bytes, end, bytes, 0, length);
+        lines = 0;
+        starts[0] = 0;
+        while (true){
+            if (channel == null){
+                if (nextFile == files.size()){
+                    return false;
+                }
+                channel = Compression.open(files.get(nextFile++));
+            }
+            boolean eof = false;
+            while (!eof && length < bytes.length - 1){
+                int read = channel.read(ByteBuffer.wrap(bytes, length, bytes.length - 1 - length));
+                if (read < 0){
+                    eof = true;
+                } else {
+                    length += read;
+                }
+            }
+            index(eof);
+            if (eof){
+                closeChannel();
+            }
+            if (lines > 0){
+                return true;
+            }
+            if (!eof){
+                // A line longer than the block
+                bytes = Arrays.copyOf(bytes, 2 * bytes.length - 1);
+            }
+        }
+    }
+
+    private void index(boolean eof){
+        int count = 0;
+        for (int i = 0; i < length; i++){
+            if (bytes[i] == '\n'){
+                if (++count == starts.length){
+                    grow();
+                }
+                starts[count] = i + 1;
+            }
+        }
+        if (eof && starts[count] < length){
+            if (++count == starts.length){
+                grow();
+            }
+            starts[count] = length;
+        }
+        lines = count;
+    }
+
+    private void grow(){
+        starts = Arrays.copyOf(starts, 2 * starts.length);
+        selection = Arrays.copyOf(selection, starts.length);
+    }
+
+    private void closeChannel(){
+        if (channel == null){
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // Only read from
+        }
+        channel = null;
+    }
+
+    // Line i without its '\n'
+    private int start(int line){
+        return starts[line];
+    }
+
+    private int end(int line){
+        int end = starts[line + 1];
+        return end > starts[line] && bytes[end - 1] == '\n' ? end - 1 : end;
+    }
+
+    private boolean unterminated(int line){
+        return bytes[starts[line + 1] - 1] != '\n';
+    }
+
+    private String line(int line){
+        String text = new String(bytes, starts[line], starts[line + 1] - starts[line], StandardCharsets.UTF_8);
+        return terminate && unterminated(line) ? text + "\n" : text;
+    }
+
+    // Move the selected lines together at the start of the array, returns their length
+    private int compact(){
+        int out = 0;
+        for (int k = 0; k < selected; k++){
+            int line = selection[k], from = starts[line], n = starts[line + 1] - from;
+            System.arraycopy(bytes, from, bytes, out, n);
+            out += n;
+            if (terminate && bytes[out - 1] != '\n'){
+                // Only the last line of a file, so the spare byte is free
+                bytes[out++] = '\n';
+            }
+        }
+        return out;
+    }
+
+    private abstract static class Step {
+        // Narrow the block's selection; false once later blocks are not needed
+        abstract boolean apply(LineBlocks block);
+
+        // What a counting last step prints at the end
+        String result(){
+            return null;
+        }
+
+        void close(){}
+    }
+
+    // grep [-v] [-c] [-i] <literal>: Boyer-Moore-Horspool on the bytes. With -i the pattern is ASCII
+    // and bytes are folded to lower case; a line that does not match that way but has non-ASCII
+    // chars is decoded and tried with Grep's matcher, since chars like the Kelvin sign fold to ASCII
+    private static final class Match extends Step {
+        private static final byte[] LOWER = new byte[256], SAME = new byte[256];
+        static {
+            for (int i = 0; i < 256; i++){
+                SAME[i] = (byte) i;
+                LOWER[i] = (byte) (i >= 'A' && i <= 'Z' ? i + 32 : i);
+            }
+        }
+
+        private final byte[] needle;
+        private final byte[] fold;
+        private final int[] shift = new int[256];
+        private final boolean invert, count;
+        private final Predicate<String> decoded;
+        private long counted = 0;
+
+        Match(String pattern, boolean ignoreCase, boolean invert, boolean count){
+            this.invert = invert;
+            this.count = count;
+            fold = ignoreCase ? LOWER : SAME;
+            needle = pattern.getBytes(StandardCharsets.UTF_8);
+            int m = needle.length;
+            for (int i = 0; i < m; i++){
+                needle[i] = fold[needle[i] & 0xFF];
+            }
+            Arrays.fill(shift, Math.max(m, 1));
+            for (int i = 0; i < m - 1; i++){
+                shift[needle[i] & 0xFF] = m - 1 - i;
+            }
+            decoded = ignoreCase ? Grep.compile(pattern, true, false) : null;
+        }
+
+        @Override
+        boolean apply(LineBlocks block) {
+            int[] selection = block.selection;
+            int kept = 0;
+            for (int k = 0; k < block.selected; k++){
+                int line = selection[k];
+                if (matches(block.bytes, block.start(line), block.end(line)) != invert){
+                    selection[kept++] = line;
+                }
+            }
+            block.selected = kept;
+            if (count){
+                counted += kept;
+                block.selected = 0;
+            }
+            return true;
+        }
+
+        private boolean matches(byte[] text, int from, int to){
+            if (contains(text, from, to)){
+                return true;
+            }
+            if (decoded == null){
+                return false;
+            }
+            for (int i = from; i < to; i++){
+                if (text[i] < 0){
+                    return decoded.test(new String(text, from, to - from, StandardCharsets.UTF_8));
+                }
+            }
+            return false;
+        }
+
+        private boolean contains(byte[] text, int from, int to){
+            int m = needle.length;
+            if (m == 0){
+                return true;
+            }
+            int i = from;
+            while (i <= to - m){
+                int j = m - 1;
+                while (j >= 0 && fold[text[i + j] & 0xFF] == needle[j]){
+                    j--;
+                }
+                if (j < 0){
+                    return true;
+                }
+                i += shift[fold[text[i + m - 1] & 0xFF] & 0xFF];
+            }
+            return false;
+        }
+
+        @Override
+        String result() {
+            return count ? counted + "\n" : null;
+        }
+    }
+
+    // uniq: the first occurrence of every line, compared by its bytes
+    private static final class Distinct extends Step {
+        private final Uniq.LineSet seen = new Uniq.LineSet(Uniq.MEMORY_LIMIT);
+
+        @Override
+        boolean apply(LineBlocks block) {
+            int[] selection = block.selection;
+            int kept = 0;
+            for (int k = 0; k < block.selected; k++){
+                int line = selection[k];
+                if (seen.add(block.bytes, block.start(line), block.end(line))){
+                    selection[kept++] = line;
+                }
+            }
+            block.selected = kept;
+            return true;
+        }
+
+        @Override
+        void close() {
+            seen.close();
+        }
+    }
+
+    // uniq -a: drops a line equal to the one before it, which is copied out since blocks get reused
+    private static final class Adjacent extends Step {
+        private byte[] previous = new byte[256];
+        private int previousLength = -1;
+
+        @Override
+        boolean apply(LineBlocks block) {
+            int[] selection = block.selection;
+            int kept = 0;
+            for (int k = 0; k < block.selected; k++){
+                int line = selection[k], from = block.start(line), to = block.end(line);
+                if (to - from == previousLength && Arrays.equals(previous, 0, previousLength, block.bytes, from, to)){
+                    continue;
+                }
+                if (to - from > previous.length){
+                    previous = new byte[Math.max(to - from, 2 * previous.length)];
+                }
+                System.arraycopy(block.bytes, from, previous, 0, to - from);
+                previousLength = to - from;
+                selection[kept++] = line;
+            }
+            block.selected = kept;
+            return true;
+        }
+    }
+
+    // head [-n N]
+    private static final class Limit extends Step {
+        private long remaining;
+
+        Limit(long lines){
+            remaining = lines;
+        }
+
+        @Override
+        boolean apply(LineBlocks block) {
+            block.selected = (int) Math.min(block.selected, remaining);
+            remaining -= block.selected;
+            return remaining > 0;
+        }
+    }
+
+    // wc [-l] [-w] [-c] over the bytes of the selected lines
+    private static final class Count extends Step {
+        private final WordCount.Counter counter = new WordCount.Counter();
+        private final WordCount.Columns columns;
+        private final boolean terminated;
+
+        Count(WordCount.Columns columns, boolean terminated){
+            this.columns = columns;
+            this.terminated = terminated;
+        }
+
+        @Override
+        boolean apply(LineBlocks block) {
+            for (int k = 0; k < block.selected; k++){
+                int line = block.selection[k];
+                counter.add(block.bytes, block.starts[line], block.starts[line + 1]);
+                if (terminated && block.unterminated(line)){
+                    counter.add("\n");
+                }
+            }
+            block.selected = 0;
+            return true;
+        }
+
+        @Override
+        String result() {
+            return counter.format(columns);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.os;
+import org.jline.keymap.KeyMap;
+import org.jline.reader.*;
+import org.jline.reader.impl.LineReaderImpl;
+import org.jline.terminal.Terminal;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// Interactive input through JLine on the terminal shared with the pager. Up/down go through the
+// last RECENT commands; Ctrl-R searches the whole persistent history through its index instead
+// of JLine's own search, which walks every entry. Every line read is added to the history.
+final class LineEditor {
+    private static final int RECENT = 500;
+    private static final String SEARCH_WIDGET = "cli-history-search";
+
+    private final LineReaderImpl reader;
+    private final CommandHistory history;
+    private String prompt;
+
+    LineEditor(CommandHistory history) throws IOException {
+        this.history = history;
+        reader = (LineReaderImpl) LineReaderBuilder.builder().terminal(Pager.terminal())
+                .variable(LineReader.HISTORY_SIZE, RECENT).build();
+        int size = history.size();
+        for (int entry = Math.max(0, size - RECENT); entry < size; entry++){
+            reader.getHistory().add(history.get(entry));
+        }
+        reader.getWidgets().put(SEARCH_WIDGET, this::search);
+        reader.getKeyMaps().get(LineReader.MAIN).bind(new Reference(SEARCH_WIDGET), KeyMap.ctrl('R'));
+    }
+
+    // The next line, "" after Ctrl-C, null at the end of input
+    String readLine(String prompt) throws IOException {
+        this.prompt = prompt;
+        try {
+            String line = reader.readLine(prompt);
+            history.add(line);
+            return line;
+        } catch (UserInterruptException e) {
+            return "";
+        } catch (EndOfFileException e) {
+            return null;
+        }
+    }
+
+    // Runs a command with Ctrl-C interrupting it (ending `tail -f`) instead of the shell
+    void interruptibly(Runnable command){
+        Thread shell = Thread.currentThread();
+        Terminal terminal = reader.getTerminal();
+        Terminal.SignalHandler previous = terminal.handle(Terminal.Signal.INT, signal -> shell.interrupt());
+        try {
+            command.run();
+        } finally {
+            terminal.handle(Terminal.Signal.INT, previous);
+            Thread.interrupted();
+        }
+    }
+
+    // Ctrl-R: typed text narrows the search, Ctrl-R again goes to the next older match, Enter runs
+    // the match, Ctrl-G restores the line, any other key keeps the match and is handled as usual
+    private boolean search(){
+        Buffer buffer = reader.getBuffer();
+        String original = buffer.toString();
+        StringBuilder query = new StringBuilder();
+        int size, match = -1;
+        boolean failed = false;
+        try {
+            size = history.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        while (true){
+            reader.setPrompt((failed ? "(failed reverse-i-search)`" : "(reverse-i-search)`") + query + "': ");
+            buffer.clear();
+            buffer.write(match >= 0 ? history.get(match) : original);
+            reader.redisplay();
+            int key = reader.readCharacter();
+            if (key == KeyMap.ctrl('R').charAt(0)){
+                int older = history.search(query.toString(), match >= 0 ? match : size);
+                failed = older < 0;
+                match = failed ? match : older;
+                continue;
+            }
+            if (key == 127 || key == '\b'){
+                if (query.length() > 0){
+                    query.setLength(query.length() - 1);
+                    match = history.search(query.toString(), size);
+                    failed = match < 0;
+                }
+                continue;
+            }
+            if (key >= ' '){
+                query.appendCodePoint(key);
+                // The current match may still contain the longer text
+                int narrowed = history.search(query.toString(), match >= 0 ? match + 1 : size);
+                failed = narrowed < 0;
+                match = failed ? match : narrowed;
+                continue;
+            }
+            reader.setPrompt(prompt);
+            if (key == KeyMap.ctrl('G').charAt(0)){
+                buffer.clear();
+                buffer.write(original);
+            } else if (key == '\r' || key == '\n'){
+                reader.callWidget(LineReader.ACCEPT_LINE);
+            } else if (key >= 0){
+                reader.runMacro(new String(Character.toChars(key)));
+            }
+            return true;
+        }
+    }
+}
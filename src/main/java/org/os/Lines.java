@@ -0,0 +1,139 @@
+package org.os;
+import java.io.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// Line streams passed between pipeline stages.
+// Every element is one line *including* its trailing '\n' (only the last line may lack it),
+// so concatenating the elements gives back the exact text a command produced.
+// Finite sources report their size in characters/bytes as the spliterator estimate, unbounded or
+// interactive ones report Long.MAX_VALUE; filters use that to decide whether batching is safe.
+final class Lines {
+    private static final int BUFFER_SIZE = 8192;
+
+    private Lines(){}
+
+    // Lazily split an already materialized output (used by the String based adapters)
+    static Stream<String> of(String text){
+        if (text == null || text.isEmpty()){
+            return Stream.empty();
+        }
+        Spliterator<String> spliterator = new Spliterators.AbstractSpliterator<>(text.length(), Spliterator.ORDERED | Spliterator.NONNULL) {
+            private int position = 0;
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action) {
+                if (position >= text.length()){
+                    return false;
+                }
+                int end = text.indexOf('\n', position);
+                end = (end < 0 ? text.length() : end + 1);
+                action.accept(text.substring(position, end));
+                position = end;
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    // Lazily read lines from a reader, closing it when the stream is closed
+    static Stream<String> of(Reader reader){
+        return of(reader, Long.MAX_VALUE);
+    }
+
+    // Same, for a reader over a source of (roughly) known size
+    static Stream<String> of(Reader reader, long sizeEstimate){
+        return StreamSupport.stream(new ReaderSpliterator(reader, sizeEstimate), false).onClose(() -> {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // The line without its terminator
+    static String strip(String line){
+        return line.endsWith("\n") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    // The line with a terminator, the way the filters always emitted their results
+    static String terminate(String line){
+        return line.endsWith("\n") ? line : line + "\n";
+    }
+
+    // Whether the stream comes from a finite source that can be read ahead without stalling
+    static boolean isBounded(Spliterator<String> lines){
+        return lines.estimateSize() != Long.MAX_VALUE;
+    }
+
+    // Materialize a stream, used at the edges where a String is still required
+    static String join(Stream<String> lines){
+        StringBuilder builder = new StringBuilder();
+        try (lines){
+            lines.forEachOrdered(builder::append);
+        }
+        return builder.toString();
+    }
+
+    private static final class ReaderSpliterator extends Spliterators.AbstractSpliterator<String> {
+        private final Reader reader;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private int position = 0, limit = 0;
+        private boolean eof = false;
+
+        ReaderSpliterator(Reader reader, long sizeEstimate){
+            super(sizeEstimate, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            StringBuilder line = null;
+            while (true){
+                if (position == limit){
+                    if (eof || !fill()){
+                        if (line == null || line.isEmpty()){
+                            return false;
+                        }
+                        action.accept(line.toString());
+                        return true;
+                    }
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n'){
+                    position++;
+                }
+                if (position < limit){
+                    position++; // keep the '\n'
+                    if (line == null){
+                        action.accept(new String(buffer, start, position - start));
+                    } else {
+                        action.accept(line.append(buffer, start, position - start).toString());
+                    }
+                    return true;
+                }
+                if (line == null){
+                    line = new StringBuilder();
+                }
+                line.append(buffer, start, position - start);
+            }
+        }
+
+        private boolean fill(){
+            try {
+                int read = reader.read(buffer);
+                if (read < 0){
+                    eof = true;
+                    return false;
+                }
+                position = 0;
+                limit = read;
+                return true;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.os;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// ls -l: attributes are read in batches of names on a shared worker pool (stat calls are mostly
+// waiting on the filesystem, NFS in particular), output keeps the order of the incoming names.
+final class LongListing {
+    private static final int BATCH_SIZE = 512;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("MMM dd HH:mm", Locale.ROOT).withZone(ZoneId.systemDefault());
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+            Math.max(4, 2 * Runtime.getRuntime().availableProcessors()),
+            runnable -> {
+                Thread thread = new Thread(runnable, "ls-stat");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private LongListing(){}
+
+    static Stream<String> format(Path directory, Stream<String> names){
+        boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+        Iterator<String> upstream = names.iterator();
+        Spliterator<String> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            private final Deque<Future<String>> pending = new ArrayDeque<>();
+
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action) {
+                if (pending.isEmpty()){
+                    for (int i = 0; i < BATCH_SIZE && upstream.hasNext(); i++){
+                        String name = upstream.next();
+                        pending.add(POOL.submit(() -> describe(directory.resolve(name), name, posix)));
+                    }
+                }
+                Future<String> next = pending.poll();
+                if (next == null){
+                    return false;
+                }
+                try {
+                    action.accept(next.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pending.forEach(future -> future.cancel(true));
+                    pending.clear();
+                    return false;
+                } catch (ExecutionException e) {
+                    throw new CompletionException(e.getCause());
+                }
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(names::close);
+    }
+
+    private static String describe(Path path, String name, boolean posix){
+        try {
+            if (posix){
+                PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                return String.format("%s%s %-8s %-8s %10d %s %s", type(attributes),
+                        PosixFilePermissions.toString(attributes.permissions()), attributes.owner().getName(),
+                        attributes.group().getName(), attributes.size(),
+                        TIME_FORMAT.format(attributes.lastModifiedTime().toInstant()), name) + "\n";
+            }
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return String.format("%s %10d %s %s", type(attributes), attributes.size(),
+                    TIME_FORMAT.format(attributes.lastModifiedTime().toInstant()), name) + "\n";
+        } catch (IOException e) {
+            // Entry vanished or is unreadable, still list it
+            return "?????????? " + name + "\n";
+        }
+    }
+
+    private static String type(BasicFileAttributes attributes){
+        if (attributes.isDirectory()){
+            return "d";
+        }
+        return attributes.isSymbolicLink() ? "l" : "-";
+    }
+}
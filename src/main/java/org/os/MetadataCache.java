@@ -0,0 +1,205 @@
+package org.os;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Optional in-process cache of file attributes and directory listings, keyed by Path.
+// Directories that had something cached are watched with a WatchService and their entries are
+// dropped on any change; entries also expire after a TTL because remote changes on network
+// filesystems are not always reported. LRU eviction once `capacity` entries are held.
+final class MetadataCache {
+    static final int DEFAULT_CAPACITY = Integer.getInteger("cli.metadataCache.capacity", 10_000);
+    private static final long TTL_NANOS = Long.getLong("cli.metadataCache.ttlMillis", 5_000) * 1_000_000;
+    // Bigger listings are not worth holding on the heap
+    private static final int MAX_LISTING_SIZE = 100_000;
+    private static final Object MISSING = new Object();
+
+    private static MetadataCache shared;
+
+    private record Key(Path path, boolean listing) {}
+    private record Entry(Object value, long loadedAt) {}
+
+    private final Map<Key, Entry> entries;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final WatchService watcher;
+    private final Map<WatchKey, Path> watchedKeys = new HashMap<>();
+    private final Set<Path> watchedDirectories = new HashSet<>();
+
+    MetadataCache(int capacity){
+        entries = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+        // Assigned before the thread starts, watch() reads it
+        watcher = newWatchService();
+        if (watcher != null){
+            Thread thread = new Thread(this::watch, "metadata-cache-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static WatchService newWatchService(){
+        try {
+            return FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException e) {
+            return null; // TTL only
+        }
+    }
+
+    // One cache for the whole process, shared by every CLI that enables it
+    static synchronized MetadataCache shared(){
+        if (shared == null){
+            shared = new MetadataCache(DEFAULT_CAPACITY);
+        }
+        return shared;
+    }
+
+    // Attributes (following links), or null if the path does not exist
+    BasicFileAttributes attributes(Path path){
+        Key key = new Key(path, false);
+        Entry entry = lookup(key);
+        if (entry != null){
+            return entry.value() == MISSING ? null : (BasicFileAttributes) entry.value();
+        }
+        Object value;
+        try {
+            value = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            value = MISSING;
+        } catch (IOException e) {
+            return null; // Not cached, might be transient
+        }
+        store(key, value, path.getParent());
+        return value == MISSING ? null : (BasicFileAttributes) value;
+    }
+
+    boolean exists(Path path){
+        return attributes(path) != null;
+    }
+
+    boolean isDirectory(Path path){
+        BasicFileAttributes attributes = attributes(path);
+        return attributes != null && attributes.isDirectory();
+    }
+
+    boolean isRegularFile(Path path){
+        BasicFileAttributes attributes = attributes(path);
+        return attributes != null && attributes.isRegularFile();
+    }
+
+    // Names of the entries of a directory, in directory order
+    @SuppressWarnings("unchecked")
+    List<String> list(Path directory) throws IOException {
+        Key key = new Key(directory, true);
+        Entry entry = lookup(key);
+        if (entry != null){
+            return (List<String>) entry.value();
+        }
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)){
+            for (Path path: stream){
+                names.add(path.getFileName().toString());
+            }
+        }
+        names = Collections.unmodifiableList(names);
+        if (names.size() <= MAX_LISTING_SIZE){
+            store(key, names, directory);
+        }
+        return names;
+    }
+
+    // Drop what is known about `path` and the listing of its parent (used after our own changes)
+    synchronized void invalidate(Path path){
+        entries.remove(new Key(path, false));
+        entries.remove(new Key(path, true));
+        Path parent = path.getParent();
+        if (parent != null){
+            entries.remove(new Key(parent, false));
+            entries.remove(new Key(parent, true));
+        }
+    }
+
+    long hits(){
+        return hits.sum();
+    }
+
+    long misses(){
+        return misses.sum();
+    }
+
+    synchronized int size(){
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = hits(), total = hitCount + misses();
+        return String.format("metadata cache: %d entries, %d hits, %d misses (%.1f%% hit rate)",
+                size(), hitCount, total - hitCount, total == 0 ? 0.0 : 100.0 * hitCount / total);
+    }
+
+    private synchronized Entry lookup(Key key){
+        Entry entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.loadedAt() > TTL_NANOS){
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null){
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return entry;
+    }
+
+    private synchronized void store(Key key, Object value, Path watchedDirectory){
+        entries.put(key, new Entry(value, System.nanoTime()));
+        if (watcher != null && watchedDirectory != null && watchedDirectories.add(watchedDirectory)){
+            try {
+                WatchKey watchKey = watchedDirectory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                watchedKeys.put(watchKey, watchedDirectory);
+            } catch (IOException | UnsupportedOperationException e) {
+                // Not watchable, the TTL still applies
+            }
+        }
+    }
+
+    private void watch(){
+        while (true){
+            WatchKey watchKey;
+            try {
+                watchKey = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            synchronized (this){
+                Path directory = watchedKeys.get(watchKey);
+                if (directory == null){
+                    continue;
+                }
+                for (WatchEvent<?> event: watchKey.pollEvents()){
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW){
+                        entries.keySet().removeIf(key -> directory.equals(key.path().getParent()));
+                    } else {
+                        Path child = directory.resolve((Path) event.context());
+                        entries.remove(new Key(child, false));
+                        entries.remove(new Key(child, true));
+                    }
+                }
+                entries.remove(new Key(directory, true));
+                entries.remove(new Key(directory, false));
+                if (!watchKey.reset()){
+                    watchedKeys.remove(watchKey);
+                    watchedDirectories.remove(directory);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package org.os;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Redirect targets (> and >>): one open append-mode FileChannel and a byte buffer per file, shared
+// by every CLI in the process and reused across commands, so scripts doing `... >> log` in a loop
+// do not open and close the file each time. Commands writing to the same target at once interleave
+// by line. Buffers are written under an exclusive FileLock, so appends from other processes that
+// lock too never land inside one. Targets are keyed by the file (its inode where the platform has
+// one), so paths reaching it through a link share one. A cached channel is reopened when the path no
+// longer refers to the same file (deleted, replaced), closed once unused for cli.output.idleMillis,
+// and rm/mv close the targets they touch.
+// By default each command's output is written when the command ends. With cli.output.async a
+// writer thread commits dirty buffers every cli.output.groupCommitMillis instead, batching many
+// small appends into one write; flushAll() is the flush point before anything reads files.
+final class OutputTargets {
+    static final boolean ASYNC = Boolean.getBoolean("cli.output.async");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_OPEN = Integer.getInteger("cli.output.maxOpen", 64);
+    private static final long GROUP_COMMIT_MILLIS = Long.getLong("cli.output.groupCommitMillis", 5);
+    private static final long IDLE_MILLIS = Long.getLong("cli.output.idleMillis", 1000);
+
+    private static final Map<Object, Target> targets = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Target> eldest) {
+            if (size() <= MAX_OPEN){
+                return false;
+            }
+            eldest.getValue().retire();
+            return true;
+        }
+    };
+    private static final LinkedBlockingQueue<Target> dirty = new LinkedBlockingQueue<>();
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(OutputTargets::closeAll, "output-targets-shutdown"));
+        if (ASYNC){
+            Thread writer = new Thread(OutputTargets::groupCommit, "output-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        Thread closer = new Thread(OutputTargets::closeIdle, "output-closer");
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    private OutputTargets(){}
+
+    // Write the lines to `file`, replacing its content unless `append`. The target is only opened
+    // once the first line is there (or there is none), so `ls > file` does not list file
+    static void write(Path file, Iterator<String> lines, boolean append) throws IOException {
+        String first = lines.hasNext() ? lines.next() : null;
+        Target target = acquire(file);
+        try {
+            target.write(first, lines, append);
+        } finally {
+            release(target);
+        }
+    }
+
+    // Write byte chunks to `file`, replacing its content unless `append`, opening it with the first
+    // chunk like write; each chunk is copied before the next one is asked for, so the producer can
+    // reuse its array
+    static void writeBytes(Path file, Iterator<ByteBuffer> chunks, boolean append) throws IOException {
+        ByteBuffer first = chunks.hasNext() ? chunks.next() : null;
+        Target target = acquire(file);
+        try {
+            target.writeBytes(first, chunks, append);
+        } finally {
+            release(target);
+        }
+    }
+
+    // Copy a whole file to `file` channel to channel, after whatever is already buffered for `file`
+    static void transfer(Path file, FileChannel source, boolean append) throws IOException {
+        Target target = acquire(file);
+        try {
+            target.transfer(source, append);
+        } finally {
+            release(target);
+        }
+    }
+
+    // Write out everything still buffered
+    static void flushAll(){
+        List<Target> open;
+        synchronized (targets){
+            open = new ArrayList<>(targets.values());
+        }
+        open.forEach(OutputTargets::commit);
+    }
+
+    // Flush and close the targets at or below `path`, or of the file it links to, before it is
+    // removed or moved
+    static void close(Path path){
+        Path normalized = path.toAbsolutePath().normalize();
+        Object key;
+        try {
+            key = key(normalized);
+        } catch (IOException e) {
+            key = normalized;
+        }
+        synchronized (targets){
+            Iterator<Map.Entry<Object, Target>> entries = targets.entrySet().iterator();
+            while (entries.hasNext()){
+                Map.Entry<Object, Target> entry = entries.next();
+                if (entry.getKey().equals(key) || entry.getValue().path.startsWith(normalized)){
+                    entry.getValue().retire();
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    // Close the targets nobody has written to for `idleMillis`
+    static void retireIdle(long idleMillis){
+        long now = System.nanoTime();
+        synchronized (targets){
+            Iterator<Target> open = targets.values().iterator();
+            while (open.hasNext()){
+                Target target = open.next();
+                if (target.users == 0 && now - target.released >= TimeUnit.MILLISECONDS.toNanos(idleMillis)){
+                    target.retire();
+                    open.remove();
+                }
+            }
+        }
+    }
+
+    static int openCount(){
+        synchronized (targets){
+            return targets.size();
+        }
+    }
+
+    private static void closeAll(){
+        synchronized (targets){
+            targets.values().forEach(Target::retire);
+            targets.clear();
+        }
+    }
+
+    // The file is created here if it is missing, it has no inode to be keyed by before
+    private static Target acquire(Path file) throws IOException {
+        Path path = file.toAbsolutePath().normalize();
+        Object identity = identity(path);
+        if (identity == null){
+            try {
+                Files.createFile(path);
+            } catch (FileAlreadyExistsException e) {
+                // Created meanwhile
+            }
+            identity = identity(path);
+        }
+        Object key = key(path);
+        synchronized (targets){
+            Target target = targets.get(key);
+            if (target != null && (identity == null || !identity.equals(target.identity))){
+                targets.remove(key);
+                target.retire();
+                target = null;
+            }
+            if (target == null){
+                target = new Target(path);
+                targets.put(key, target);
+            }
+            target.users++;
+            return target;
+        }
+    }
+
+    private static void release(Target target){
+        synchronized (targets){
+            target.released = System.nanoTime();
+            if (--target.users == 0 && target.retired){
+                target.close();
+            }
+        }
+    }
+
+    // The inode, or the path where the platform has no file keys
+    private static Object key(Path path) throws IOException {
+        try {
+            Object fileKey = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            return fileKey != null ? fileKey : path;
+        } catch (NoSuchFileException e) {
+            return path;
+        }
+    }
+
+    // What tells two files at the same path apart: the inode where there is one
+    private static Object identity(Path path) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private static void groupCommit(){
+        List<Target> batch = new ArrayList<>();
+        while (true){
+            try {
+                batch.add(dirty.take());
+                // Let more writes pile up, then commit them together
+                TimeUnit.MILLISECONDS.sleep(GROUP_COMMIT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            dirty.drainTo(batch);
+            batch.forEach(OutputTargets::commit);
+            batch.clear();
+        }
+    }
+
+    private static void closeIdle(){
+        while (true){
+            try {
+                TimeUnit.MILLISECONDS.sleep(Math.max(1, IDLE_MILLIS / 2));
+            } catch (InterruptedException e) {
+                return;
+            }
+            retireIdle(IDLE_MILLIS);
+        }
+    }
+
+    // Nobody waits for these writes: report a failure now and to the next write to the target
+    private static void commit(Target target){
+        try {
+            target.flush();
+        } catch (IOException e) {
+            target.failure = e;
+            System.err.println("Error writing to " + target.path + ": " + e.getMessage());
+        }
+    }
+
+    private static final class Target {
+        private final Path path;
+        private final FileChannel channel;
+        private final Object identity;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        // Guarded by the targets map
+        private int users = 0;
+        private boolean retired = false;
+        private long released = System.nanoTime();
+        // Guarded by this
+        private boolean closed = false, queued = false;
+        private volatile Exception failure;
+
+        Target(Path path) throws IOException {
+            this.path = path;
+            channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            identity = identity(path);
+        }
+
+        // Lines are pulled and encoded without holding the target, which is only locked to append
+        // them: a command blocking between lines (tail -f x > copy) does not hold up flushAll or
+        // the group commit. `first` is the line already taken from `lines`, null when there are none
+        void write(String first, Iterator<String> lines, boolean append) throws IOException {
+            begin(append);
+            if (first != null){
+                append(ByteBuffer.wrap(first.getBytes(StandardCharsets.UTF_8)));
+            }
+            while (lines.hasNext()){
+                append(ByteBuffer.wrap(lines.next().getBytes(StandardCharsets.UTF_8)));
+            }
+            end();
+        }
+
+        void writeBytes(ByteBuffer first, Iterator<ByteBuffer> chunks, boolean append) throws IOException {
+            begin(append);
+            if (first != null){
+                append(first);
+            }
+            while (chunks.hasNext()){
+                append(chunks.next());
+            }
+            end();
+        }
+
+        // Copy into the buffer, writing it out whenever it is full
+        private synchronized void append(ByteBuffer chunk) throws IOException {
+            while (chunk.hasRemaining()){
+                if (!buffer.hasRemaining()){
+                    writeBuffer();
+                }
+                int n = Math.min(buffer.remaining(), chunk.remaining());
+                buffer.put(chunk.slice(chunk.position(), n));
+                chunk.position(chunk.position() + n);
+            }
+        }
+
+        private synchronized void begin(boolean append) throws IOException {
+            checkFailure();
+            if (!append){
+                writeBuffer();
+                channel.truncate(0);
+            }
+        }
+
+        // Queue the buffer for the writer thread, or write it now
+        private synchronized void end() throws IOException {
+            if (ASYNC){
+                if (!queued){
+                    queued = true;
+                    dirty.add(this);
+                }
+            } else {
+                writeBuffer();
+            }
+        }
+
+        synchronized void transfer(FileChannel source, boolean append) throws IOException {
+            checkFailure();
+            writeBuffer();
+            if (!append){
+                channel.truncate(0);
+            }
+            try (FileLock lock = lock()){
+                long position = 0, size = source.size();
+                while (position < size){
+                    position += source.transferTo(position, size - position, channel);
+                }
+            }
+        }
+
+        synchronized void flush() throws IOException {
+            queued = false;
+            if (!closed){
+                writeBuffer();
+            }
+        }
+
+        // Called with the targets map locked: close now, or when the last user is done
+        void retire(){
+            retired = true;
+            if (users == 0){
+                close();
+            }
+        }
+
+        synchronized void close(){
+            if (closed){
+                return;
+            }
+            try {
+                writeBuffer();
+            } catch (IOException e) {
+                System.err.println("Error writing to " + path + ": " + e.getMessage());
+            }
+            closed = true;
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Nothing left to write
+            }
+        }
+
+        // One locked write of the buffered bytes
+        private void writeBuffer() throws IOException {
+            if (buffer.position() == 0){
+                return;
+            }
+            buffer.flip();
+            try (FileLock lock = lock()){
+                while (buffer.hasRemaining()){
+                    channel.write(buffer);
+                }
+            } finally {
+                buffer.clear();
+            }
+        }
+
+        // Where files have no keys, a file reached through a link can have a second target in this
+        // process, whose lock on it makes lock() throw instead of wait: wait for it here
+        private FileLock lock() throws IOException {
+            while (true){
+                try {
+                    return channel.lock();
+                } catch (OverlappingFileLockException e) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+        }
+
+        // A failed group commit is reported to the next command writing here
+        private void checkFailure() throws IOException {
+            if (failure != null){
+                Exception reported = failure;
+                failure = null;
+                throw new IOException("Earlier output was lost", reported);
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.os;
+import org.jline.terminal.Attributes;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.TerminalBuilder;
+import org.jline.utils.AttributedString;
+import org.jline.utils.AttributedStyle;
+import org.jline.utils.InfoCmp;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+// `more` and `less`: lines are pulled from the upstream only when they are about to be shown.
+// Output that fits on one page is printed as is; otherwise the JLine terminal (created once and
+// shared) is used for key input and drawing. `less` keeps a bounded window of lines in memory and
+// spills older lines to a temp file plus an offset index to scroll back further.
+final class Pager {
+    static final int PAGE_SIZE = 10;
+    private static final int WINDOW_SIZE = 1024;
+    private static final AttributedString MORE_PROMPT = new AttributedString(
+            "-- More -- (Enter/space to continue, 'q' to quit)", AttributedStyle.INVERSE);
+    private static final AttributedString LESS_PROMPT = new AttributedString(
+            ": (s/j/Enter down, w/k up, space page, q quit)", AttributedStyle.INVERSE);
+
+    private static Terminal terminal;
+
+    private Pager(){}
+
+    static void more(Stream<String> output){
+        try (output){
+            Iterator<String> lines = output.iterator();
+            List<String> page = nextPage(lines);
+            if (!lines.hasNext()){
+                page.forEach(System.out::println);
+                return;
+            }
+            Terminal terminal = terminal();
+            Attributes previous = terminal.enterRawMode();
+            try {
+                while (true){
+                    page.forEach(terminal.writer()::println);
+                    if (!lines.hasNext()){
+                        break;
+                    }
+                    int key = prompt(terminal, MORE_PROMPT);
+                    if (key == 'q' || key == 'Q' || key < 0){
+                        break;
+                    }
+                    page = nextPage(lines);
+                }
+            } finally {
+                terminal.setAttributes(previous);
+                terminal.flush();
+            }
+        }
+    }
+
+    static void less(Stream<String> output){
+        try (output; Scrollback scrollback = new Scrollback(output.iterator())){
+            if (!scrollback.available(PAGE_SIZE + 1)){
+                for (int i = 0; i < scrollback.size(); i++){
+                    System.out.println(scrollback.get(i));
+                }
+                return;
+            }
+            Terminal terminal = terminal();
+            Attributes previous = terminal.enterRawMode();
+            try {
+                int top = 0;
+                while (true){
+                    draw(terminal, scrollback, top);
+                    int key = prompt(terminal, LESS_PROMPT);
+                    if (key == 'q' || key == 'Q' || key < 0){
+                        break;
+                    }
+                    if (key == 'w' || key == 'k'){
+                        top = Math.max(0, top - 1);
+                    } else if ((key == 's' || key == 'j' || key == '\r' || key == '\n') && scrollback.available(top + PAGE_SIZE + 1)){
+                        top++;
+                    } else if (key == ' '){
+                        scrollback.available(top + 2 * PAGE_SIZE);
+                        top = Math.max(0, Math.min(top + PAGE_SIZE, scrollback.size() - PAGE_SIZE));
+                    }
+                }
+            } finally {
+                terminal.setAttributes(previous);
+                terminal.flush();
+            }
+        }
+    }
+
+    private static List<String> nextPage(Iterator<String> lines){
+        List<String> page = new ArrayList<>(PAGE_SIZE);
+        while (page.size() < PAGE_SIZE && lines.hasNext()){
+            page.add(Lines.strip(lines.next()));
+        }
+        return page;
+    }
+
+    private static void draw(Terminal terminal, Scrollback scrollback, int top){
+        terminal.puts(InfoCmp.Capability.clear_screen);
+        for (int i = top; i < top + PAGE_SIZE && i < scrollback.size(); i++){
+            terminal.writer().println(scrollback.get(i));
+        }
+    }
+
+    // Show the prompt, wait for one key and erase the prompt again
+    private static int prompt(Terminal terminal, AttributedString prompt){
+        terminal.writer().print(prompt.toAnsi(terminal));
+        terminal.flush();
+        int key;
+        try {
+            key = terminal.reader().read();
+            if (isDumb(terminal)){
+                // Line buffered: the key arrives with the rest of the line
+                int next = key;
+                while (next != '\n' && next >= 0){
+                    next = terminal.reader().read();
+                }
+            }
+        } catch (IOException e) {
+            key = -1;
+        }
+        terminal.puts(InfoCmp.Capability.carriage_return);
+        terminal.puts(InfoCmp.Capability.clr_eol);
+        terminal.flush();
+        return key;
+    }
+
+    private static boolean isDumb(Terminal terminal){
+        return terminal.getType().startsWith(Terminal.TYPE_DUMB);
+    }
+
+    static synchronized Terminal terminal(){
+        if (terminal == null){
+            try {
+                terminal = TerminalBuilder.builder().system(true).dumb(true).build();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return terminal;
+    }
+
+    // Lines read so far by `less`: the last WINDOW_SIZE in memory, older ones in a temp file
+    // (UTF-8 text plus an index of 8 byte offsets) for scrolling back beyond the window.
+    private static final class Scrollback implements Closeable {
+        private final Iterator<String> upstream;
+        private final String[] window = new String[WINDOW_SIZE];
+        private int size = 0;
+        private Path dataFile, indexFile;
+        private FileChannel data, index;
+        private long dataPosition = 0;
+
+        Scrollback(Iterator<String> upstream){
+            this.upstream = upstream;
+        }
+
+        int size(){
+            return size;
+        }
+
+        // Read ahead until `count` lines are known; false if the upstream ends first
+        boolean available(int count){
+            while (size < count && upstream.hasNext()){
+                append(Lines.strip(upstream.next()));
+            }
+            return size >= count;
+        }
+
+        String get(int line){
+            if (line >= size - WINDOW_SIZE){
+                return window[line % WINDOW_SIZE];
+            }
+            try {
+                ByteBuffer offsets = ByteBuffer.allocate(2 * Long.BYTES);
+                index.read(offsets, (long) line * Long.BYTES);
+                offsets.flip();
+                long start = offsets.getLong();
+                long end = offsets.remaining() >= Long.BYTES ? offsets.getLong() : dataPosition;
+                ByteBuffer text = ByteBuffer.allocate((int) (end - start));
+                data.read(text, start);
+                return new String(text.array(), 0, text.position(), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void append(String line){
+            if (size >= WINDOW_SIZE){
+                spill(window[size % WINDOW_SIZE], size - WINDOW_SIZE);
+            }
+            window[size % WINDOW_SIZE] = line;
+            size++;
+        }
+
+        // Write a line leaving the window to the temp file
+        private void spill(String line, int number){
+            try {
+                if (data == null){
+                    dataFile = Files.createTempFile("less", ".data");
+                    indexFile = Files.createTempFile("less", ".index");
+                    data = FileChannel.open(dataFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    index = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                index.write(ByteBuffer.allocate(Long.BYTES).putLong(0, dataPosition), (long) number * Long.BYTES);
+                ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+                while (bytes.hasRemaining()){
+                    dataPosition += data.write(bytes, dataPosition);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void close(){
+            if (data == null){
+                return;
+            }
+            try {
+                data.close();
+                index.close();
+                Files.deleteIfExists(dataFile);
+                Files.deleteIfExists(indexFile);
+            } catch (IOException ignored) {
+                // Temp files are best effort
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.os;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// A bounded ring buffer between two pipeline stages, like a real pipe.
+// The upstream stage is drained on its own virtual thread and blocks when the buffer is full;
+// closing the downstream stream (e.g. `more` after 'q') cancels the producer and closes the upstream.
+final class Pipe {
+    static final int DEFAULT_CAPACITY = 16;
+    private static final int BATCH_SIZE = 256;
+
+    private final Object[] slots;
+    private int head = 0, tail = 0, count = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private boolean closed = false;
+    private volatile boolean cancelled = false;
+    private volatile boolean consumerWaiting = false;
+    private RuntimeException failure;
+
+    private Pipe(int capacity){
+        slots = new Object[capacity];
+    }
+
+    // Run `upstream` on a new virtual thread and return the stream read from the other end of the pipe
+    static Stream<String> connect(Stream<String> upstream, int capacity){
+        Pipe pipe = new Pipe(capacity);
+        Thread producer = Thread.ofVirtual().name("pipeline-stage").start(() -> pipe.drain(upstream));
+        return StreamSupport.stream(pipe.new Reader(), false).onClose(() -> {
+            pipe.cancel();
+            producer.interrupt();
+        });
+    }
+
+    private void drain(Stream<String> upstream){
+        try (upstream){
+            List<String> batch = new ArrayList<>(BATCH_SIZE);
+            Iterator<String> lines = upstream.iterator();
+            while (!cancelled && lines.hasNext()){
+                batch.add(lines.next());
+                // Publish early when the reader is starving so the first lines are not held back
+                if (batch.size() == BATCH_SIZE || consumerWaiting){
+                    if (!put(batch)){
+                        return;
+                    }
+                    batch = new ArrayList<>(BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()){
+                put(batch);
+            }
+        } catch (RuntimeException e) {
+            if (!cancelled){
+                fail(e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private boolean put(List<String> batch){
+        lock.lock();
+        try {
+            while (count == slots.length && !cancelled){
+                notFull.await();
+            }
+            if (cancelled){
+                return false;
+            }
+            slots[tail] = batch;
+            tail = (tail + 1) % slots.length;
+            count++;
+            notEmpty.signal();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Next batch, or null once the producer is done and everything was read
+    @SuppressWarnings("unchecked")
+    private List<String> take(){
+        lock.lock();
+        try {
+            while (count == 0 && !closed){
+                consumerWaiting = true;
+                notEmpty.await();
+            }
+            consumerWaiting = false;
+            if (count == 0){
+                if (failure != null){
+                    throw failure;
+                }
+                return null;
+            }
+            List<String> batch = (List<String>) slots[head];
+            slots[head] = null;
+            head = (head + 1) % slots.length;
+            count--;
+            notFull.signal();
+            return batch;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void fail(RuntimeException e){
+        lock.lock();
+        try {
+            failure = e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void close(){
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cancel(){
+        lock.lock();
+        try {
+            cancelled = true;
+            Arrays.fill(slots, null);
+            count = 0;
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private final class Reader extends Spliterators.AbstractSpliterator<String> {
+        private List<String> batch = List.of();
+        private int index = 0;
+
+        Reader(){
+            super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            while (index == batch.size()){
+                batch = take();
+                index = 0;
+                if (batch == null){
+                    batch = List.of();
+                    return false;
+                }
+            }
+            action.accept(batch.get(index++));
+            return true;
+        }
+    }
+}
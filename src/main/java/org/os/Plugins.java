@@ -0,0 +1,39 @@
+package org.os;
+import java.util.*;
+import java.util.function.Function;
+
+// Commands and filters found through ServiceLoader. Loaded on first use only, so plain runs of
+// built-in commands never scan the class path.
+final class Plugins {
+    private Plugins(){}
+
+    private static final class Loaded {
+        static final Map<String, Command> commands = load(Command.class, command -> command.descriptor().name());
+        static final Map<String, Filter> filters = load(Filter.class, filter -> filter.descriptor().name());
+    }
+
+    static Command command(String name){
+        return Loaded.commands.get(name);
+    }
+
+    static Filter filter(String name){
+        return Loaded.filters.get(name);
+    }
+
+    static Collection<Command> commands(){
+        return Loaded.commands.values();
+    }
+
+    static Collection<Filter> filters(){
+        return Loaded.filters.values();
+    }
+
+    private static <T> Map<String, T> load(Class<T> type, Function<T, String> name){
+        Map<String, T> loaded = new TreeMap<>();
+        for (T provider: ServiceLoader.load(type)){
+            // First one on the class path wins, like for classes
+            loaded.putIfAbsent(name.apply(provider).toLowerCase(), provider);
+        }
+        return Collections.unmodifiableMap(loaded);
+    }
+}
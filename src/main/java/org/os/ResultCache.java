@@ -0,0 +1,312 @@
+package org.os;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32C;
+
+// Output of pure pipelines (cat/ls followed by built-in or pure plugin filters, no redirects),
+// keyed by the parsed pipeline, the directory it ran in and the (path, size, mtime) of every input:
+// the files cat reads, the directory ls lists. With cli.resultCache.hash the content CRC32C of the
+// files is part of the fingerprint too; without it, results whose inputs changed within the last
+// RACY_MILLIS are not stored (a change in the same mtime tick could go unnoticed).
+// A result is recorded while the caller consumes it and stored once it was read to the end. The
+// in-memory LRU holds at most cli.resultCache.maxBytes; evicted results spill to files under
+// cli.resultCache.dir, ~/.cli_result_cache by default (at most cli.resultCache.maxDiskBytes,
+// oldest deleted first).
+final class ResultCache {
+    private static final long MAX_BYTES = Long.getLong("cli.resultCache.maxBytes", 64L << 20);
+    private static final long MAX_DISK_BYTES = Long.getLong("cli.resultCache.maxDiskBytes", 1L << 30);
+    private static final boolean HASH = Boolean.getBoolean("cli.resultCache.hash");
+    private static final long RACY_MILLIS = 2_000;
+    private static final int FILE_MAGIC = 0x52434331;
+    private static final Set<String> COMMANDS = Set.of("cat", "ls");
+    private static final Set<String> FILTERS = Set.of("grep", "uniq", "sort", "wc", "head", "cut");
+
+    private static ResultCache shared;
+
+    private record Fingerprint(String path, long size, long modified, long hash) {}
+    private record Entry(List<Fingerprint> inputs, String output) {}
+    // A pipeline that may be cached: its key and the state of its inputs before it runs
+    record Lookup(String key, List<Fingerprint> inputs) {}
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes = 0;
+    private final Path directory;
+    // Spilled files, least recently used first, loaded on first use
+    private Map<String, Long> diskEntries;
+    private long diskBytes = 0;
+    private final LongAdder hits = new LongAdder(), diskHits = new LongAdder(), misses = new LongAdder();
+    private final LongAdder stores = new LongAdder(), spills = new LongAdder();
+
+    static synchronized ResultCache shared(){
+        if (shared == null){
+            shared = new ResultCache(Path.of(System.getProperty("cli.resultCache.dir",
+                    Path.of(System.getProperty("user.home"), ".cli_result_cache").toString())));
+        }
+        return shared;
+    }
+
+    ResultCache(Path directory){
+        this.directory = directory;
+    }
+
+    // null when the pipeline is not pure or an input cannot be read
+    static Lookup lookup(Path currentDirectory, boolean plainOutput, CommandParser.Command source, List<CommandParser.Step> steps){
+        String command = source.name().toLowerCase();
+        if (!COMMANDS.contains(command)){
+            return null;
+        }
+        List<Path> inputs = new ArrayList<>();
+        if (command.equals("ls")){
+            if (source.args().stream().anyMatch(arg -> arg.contains("l"))){
+                // Sizes and times of the entries are not part of the directory's fingerprint
+                return null;
+            }
+            inputs.add(currentDirectory);
+        } else {
+            for (String arg: source.args()){
+                if (arg.startsWith("-")){
+                    return null;
+                }
+                inputs.add(currentDirectory.resolve(arg));
+            }
+        }
+        StringBuilder key = new StringBuilder().append(currentDirectory).append('\0').append(plainOutput)
+                .append('\0').append(command).append('\0').append(String.join("\0", source.args()));
+        for (CommandParser.Step step: steps){
+            String filter = step.target().name();
+            if (step.operator() != CommandParser.Operator.PIPE || !isPureFilter(filter)){
+                return null;
+            }
+            key.append("\0|\0").append(filter).append('\0').append(String.join("\0", step.target().args()));
+        }
+        try {
+            List<Fingerprint> fingerprints = new ArrayList<>();
+            for (Path input: inputs){
+                fingerprints.add(fingerprint(input));
+            }
+            return new Lookup(key.toString(), fingerprints);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isPureFilter(String name){
+        if (FILTERS.contains(name)){
+            return true;
+        }
+        Filter plugin = Plugins.filter(name);
+        return plugin != null && plugin.descriptor().pure();
+    }
+
+    private static Fingerprint fingerprint(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            // Errors are results too, until the file shows up
+            return new Fingerprint(path.toString(), -1, -1, -1);
+        }
+        long hash = HASH && attributes.isRegularFile() ? crc32c(path) : -1;
+        return new Fingerprint(path.toString(), attributes.size(), attributes.lastModifiedTime().toMillis(), hash);
+    }
+
+    private static long crc32c(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            while (channel.read(buffer.clear()) > 0){
+                crc.update(buffer.flip());
+            }
+        }
+        return crc.getValue();
+    }
+
+    // The cached output, or null
+    synchronized Stream<String> get(Lookup lookup){
+        Entry entry = entries.get(lookup.key());
+        if (entry != null && entry.inputs().equals(lookup.inputs())){
+            hits.increment();
+            return Lines.of(entry.output());
+        }
+        entry = entry == null ? readSpilled(lookup.key()) : null;
+        if (entry != null && entry.inputs().equals(lookup.inputs())){
+            diskHits.increment();
+            put(lookup.key(), entry);
+            return Lines.of(entry.output());
+        }
+        misses.increment();
+        return null;
+    }
+
+    // Passes the output through, storing it if it is read to the end
+    Stream<String> record(Lookup lookup, Stream<String> output){
+        if (!HASH && changedRecently(lookup.inputs())){
+            return output;
+        }
+        Spliterator<String> upstream = output.spliterator();
+        Spliterator<String> recording = new Spliterators.AbstractSpliterator<>(upstream.estimateSize(), upstream.characteristics() & ~Spliterator.SIZED & ~Spliterator.SUBSIZED) {
+            private StringBuilder text = new StringBuilder();
+
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action) {
+                boolean advanced = upstream.tryAdvance(line -> {
+                    if (text != null){
+                        // Too big to be worth keeping
+                        text = text.length() + line.length() > MAX_BYTES / 4 ? null : text.append(line);
+                    }
+                    action.accept(line);
+                });
+                if (!advanced && text != null){
+                    store(lookup, text.toString());
+                    text = null;
+                }
+                return advanced;
+            }
+        };
+        return StreamSupport.stream(recording, false).onClose(output::close);
+    }
+
+    private static boolean changedRecently(List<Fingerprint> inputs){
+        long racy = System.currentTimeMillis() - RACY_MILLIS;
+        return inputs.stream().anyMatch(input -> input.modified() > racy);
+    }
+
+    private synchronized void store(Lookup lookup, String output){
+        stores.increment();
+        put(lookup.key(), new Entry(lookup.inputs(), output));
+    }
+
+    private void put(String key, Entry entry){
+        Entry previous = entries.put(key, entry);
+        bytes += entry.output().length() - (previous == null ? 0 : previous.output().length());
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (bytes > MAX_BYTES && eldest.hasNext()){
+            Map.Entry<String, Entry> evicted = eldest.next();
+            eldest.remove();
+            bytes -= evicted.getValue().output().length();
+            spill(evicted.getKey(), evicted.getValue());
+        }
+    }
+
+    // File per key: magic, key, inputs, output; named by the key's SHA-256
+    private void spill(String key, Entry entry){
+        try {
+            loadDiskEntries();
+            Path file = directory.resolve(fileName(key));
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))){
+                out.writeInt(FILE_MAGIC);
+                writeString(out, key);
+                out.writeInt(entry.inputs().size());
+                for (Fingerprint input: entry.inputs()){
+                    writeString(out, input.path());
+                    out.writeLong(input.size());
+                    out.writeLong(input.modified());
+                    out.writeLong(input.hash());
+                }
+                writeString(out, entry.output());
+            }
+            long size = Files.size(file);
+            Long previous = diskEntries.put(file.getFileName().toString(), size);
+            diskBytes += size - (previous == null ? 0 : previous);
+            spills.increment();
+            Iterator<Map.Entry<String, Long>> eldest = diskEntries.entrySet().iterator();
+            while (diskBytes > MAX_DISK_BYTES && eldest.hasNext()){
+                Map.Entry<String, Long> deleted = eldest.next();
+                eldest.remove();
+                diskBytes -= deleted.getValue();
+                Files.deleteIfExists(directory.resolve(deleted.getKey()));
+            }
+        } catch (IOException e) {
+            // The disk cache is only an optimization
+        }
+    }
+
+    private Entry readSpilled(String key){
+        try {
+            loadDiskEntries();
+            String name = fileName(key);
+            if (diskEntries.get(name) == null){
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(directory.resolve(name)), 1 << 16))){
+                if (in.readInt() != FILE_MAGIC || !readString(in).equals(key)){
+                    return null;
+                }
+                List<Fingerprint> inputs = new ArrayList<>();
+                for (int i = in.readInt(); i > 0; i--){
+                    inputs.add(new Fingerprint(readString(in), in.readLong(), in.readLong(), in.readLong()));
+                }
+                return new Entry(inputs, readString(in));
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Files left by earlier runs, oldest first
+    private void loadDiskEntries() throws IOException {
+        if (diskEntries != null){
+            return;
+        }
+        diskEntries = new LinkedHashMap<>(64, 0.75f, true);
+        // Only readable by the user, the results show what their files contain
+        if (directory.getFileSystem().supportedFileAttributeViews().contains("posix")){
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(directory);
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)){
+            stream.forEach(files::add);
+        }
+        Map<Path, FileTime> modified = new HashMap<>();
+        for (Path file: files){
+            modified.put(file, Files.getLastModifiedTime(file));
+        }
+        files.sort(Comparator.comparing(modified::get));
+        for (Path file: files){
+            long size = Files.size(file);
+            diskEntries.put(file.getFileName().toString(), size);
+            diskBytes += size;
+        }
+    }
+
+    private static String fileName(String key){
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public synchronized String toString() {
+        long hitCount = hits.sum() + diskHits.sum(), total = hitCount + misses.sum();
+        return String.format("result cache: %d entries (%d bytes), %d hits (%d from disk), %d misses (%.1f%% hit rate), %d stored, %d spilled",
+                entries.size(), bytes, hitCount, diskHits.sum(), misses.sum(), total == 0 ? 0.0 : 100.0 * hitCount / total,
+                stores.sum(), spills.sum());
+    }
+}
@@ -0,0 +1,132 @@
+package org.os;
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Non-interactive execution of script lines: no prompt, output through one buffered stream.
+// With parallel enabled, consecutive lines that only create/move/remove/read unrelated paths
+// (mkdir, touch, mv, rm, rmdir, cat without pipes) run concurrently; anything else, or a line
+// touching a path that overlaps one already in the group (or using a glob pattern), waits for the
+// group to finish. Between begin and commit lines run one at a time, a transaction's plan is not
+// shared between threads.
+// Output is always printed in script order.
+final class ScriptRunner {
+    private static final Set<String> INDEPENDENT_COMMANDS = Set.of("mkdir", "touch", "mv", "rm", "rmdir", "cat");
+    private static final int MAX_GROUP_SIZE = 1024;
+
+    private final CLI cli;
+    private final PrintStream out;
+    private final boolean parallel;
+
+    // Current group of independent lines
+    private final List<String> group = new ArrayList<>();
+    private final Set<Path> touched = new HashSet<>();
+    private final Set<Path> ancestors = new HashSet<>();
+
+    ScriptRunner(CLI cli, PrintStream out, boolean parallel){
+        this.cli = cli;
+        this.out = out;
+        this.parallel = parallel;
+    }
+
+    // Runs lines until the end of input or an `exit` line
+    void run(BufferedReader script) throws IOException {
+        try (ExecutorService executor = parallel ? Executors.newVirtualThreadPerTaskExecutor() : null){
+            String line;
+            while ((line = script.readLine()) != null){
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")){
+                    continue;
+                }
+                if (line.equals("exit")){
+                    break;
+                }
+                List<Path> paths = parallel && !cli.inTransaction() ? independentPaths(line) : null;
+                if (paths == null || conflicts(paths) || group.size() == MAX_GROUP_SIZE){
+                    flush(executor);
+                }
+                if (paths == null){
+                    print(cli.executeCommand(line));
+                } else {
+                    group.add(line);
+                    for (Path path: paths){
+                        touched.add(path);
+                        for (Path parent = path.getParent(); parent != null; parent = parent.getParent()){
+                            ancestors.add(parent);
+                        }
+                    }
+                }
+            }
+            flush(executor);
+        }
+        OutputTargets.flushAll();
+        out.flush();
+    }
+
+    // The paths a line works on, or null if it has to run on its own
+    private List<Path> independentPaths(String line){
+        CommandParser.Pipeline pipeline = CommandParser.parse(line);
+        CommandParser.Command command = pipeline.source();
+        if (!pipeline.steps().isEmpty() || !INDEPENDENT_COMMANDS.contains(command.name().toLowerCase())){
+            return null;
+        }
+        Path directory = Path.of(cli.getCurrentDirectory());
+        if (!command.patterns().isEmpty()){
+            // What a pattern matches depends on the lines before it
+            return null;
+        }
+        List<Path> paths = new ArrayList<>();
+        for (String arg: command.args()){
+            paths.add(directory.resolve(arg).normalize());
+        }
+        return paths;
+    }
+
+    private boolean conflicts(List<Path> paths){
+        for (Path path: paths){
+            if (ancestors.contains(path)){
+                return true;
+            }
+            for (Path current = path; current != null; current = current.getParent()){
+                if (touched.contains(current)){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void flush(ExecutorService executor){
+        if (group.isEmpty()){
+            return;
+        }
+        List<Future<String>> results = new ArrayList<>(group.size());
+        for (String line: group){
+            results.add(executor.submit(() -> cli.executeCommand(line)));
+        }
+        for (Future<String> result: results){
+            try {
+                print(result.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                print("Error! " + e.getCause());
+            }
+        }
+        group.clear();
+        touched.clear();
+        ancestors.clear();
+    }
+
+    private void print(String output){
+        if (output.isEmpty()){
+            return;
+        }
+        out.print(output);
+        if (!output.endsWith("\n")){
+            out.print('\n');
+        }
+    }
+}
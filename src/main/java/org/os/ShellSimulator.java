@@ -1,18 +1,96 @@
 package org.os;
-import java.io.IOException;
-import java.util.Scanner;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 
+// Usage: ShellSimulator [-p] [-c "command" | -f script]
+//   no arguments on a terminal: interactive shell
+//   -c / -f / input piped on stdin: batch mode, no prompt and no colors
+//   -p: let independent script lines run concurrently
 public class ShellSimulator {
+    private static final String USAGE = "Usage: ShellSimulator [-p] [-c \"command\" | -f script]";
+    // How long interactive output may sit in the buffer while a command is still running
+    private static final long FLUSH_INTERVAL_MILLIS = 50;
+
     public static void main(String[] args) throws IOException {
-        CLI cli = new CLI();
-        Scanner scanner = new Scanner(System.in);
+        run(args, new CLI());
+    }
+
+    // Also used by CracLauncher after a restore, with a CLI for the restored process' directory
+    static void run(String[] args, CLI cli) throws IOException {
+        String command = null, script = null;
+        boolean parallel = false;
+        for (int i = 0; i < args.length; i++){
+            if (args[i].equals("-p")){
+                parallel = true;
+            } else if (args[i].equals("-c") && i + 1 < args.length){
+                command = args[++i];
+            } else if (args[i].equals("-f") && i + 1 < args.length){
+                script = args[++i];
+            } else {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+        }
+        if (command == null && script == null && onTerminal()){
+            interactive(cli);
+            return;
+        }
+
+        cli.setPlainOutput(true);
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, StandardCharsets.UTF_8);
+        System.setOut(out);
+        BufferedReader lines;
+        if (command != null){
+            lines = new BufferedReader(new StringReader(command));
+        } else if (script != null){
+            lines = Files.newBufferedReader(Path.of(script));
+        } else {
+            lines = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        }
+        try (lines){
+            new ScriptRunner(cli, out, parallel).run(lines);
+        }
+    }
+
+    // Since JDK 22 System.console() is there even when stdin or stdout is redirected
+    private static boolean onTerminal(){
+        Console console = System.console();
+        return console != null && console.isTerminal();
+    }
+
+    private static void interactive(CLI cli) throws IOException {
+        cli.setInteractive(true);
+        // Buffered instead of one terminal write per line; long running commands still show
+        // their output every FLUSH_INTERVAL_MILLIS
+        PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, StandardCharsets.UTF_8);
+        System.setOut(out);
+        Thread flusher = new Thread(() -> {
+            try {
+                while (true){
+                    Thread.sleep(FLUSH_INTERVAL_MILLIS);
+                    out.flush();
+                }
+            } catch (InterruptedException e) {
+                // Shell exited
+            }
+        }, "stdout-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        // Line editing, and history kept across sessions with Ctrl-R search
+        LineEditor editor = new LineEditor(CommandHistory.shared());
         while (true){
-            System.out.print(cli.getCurrentDirectory() + "$ ");
-            String cmd = scanner.nextLine();
-            if (cmd.equals("exit"))
+            out.flush();
+            String cmd = editor.readLine(cli.getCurrentDirectory() + "$ ");
+            if (cmd == null || cmd.equals("exit"))
                 break;
-            System.out.println(cli.executeCommand(cmd));
+            // Print lines as the pipeline produces them instead of waiting for the whole result
+            editor.interruptibly(() -> cli.executeCommand(cmd, out::print));
+            out.println();
+            out.flush();
         }
-        scanner.close();
+        flusher.interrupt();
+        OutputTargets.flushAll();
+        out.flush();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,182 @@
+package org.os;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// sort [-n] [-r] [-k N]
+// Lines are compared by their key: the whole line, or with -k from the N-th blank separated field
+// to the end of the line. -n compares the number the key starts with (no number counts as 0),
+// -r reverses the order; lines with equal keys keep to plain text order. The sorting itself is
+// ExternalSorter's: parallel in memory up to cli.sort.memoryLimit, then sorted runs in temp files
+// merged k-way, so the heap needed does not grow with the input.
+final class Sort {
+    static final String USAGE = "sort [-n] [-r] [-k N]";
+
+    private Sort(){}
+
+    static Stream<String> filter(Stream<String> input, List<String> args){
+        boolean numeric = false, reversed = false;
+        int field = 0;
+        for (int i = 0; i < args.size(); i++){
+            String arg = args.get(i);
+            if (!arg.startsWith("-") || arg.length() < 2){
+                throw new IllegalArgumentException("Usage: " + USAGE);
+            }
+            for (int j = 1; j < arg.length(); j++){
+                switch (arg.charAt(j)){
+                    case 'n' -> numeric = true;
+                    case 'r' -> reversed = true;
+                    case 'k' -> {
+                        // -k N or -kN, the number ends the argument
+                        String number = j + 1 < arg.length() ? arg.substring(j + 1) : i + 1 < args.size() ? args.get(++i) : "";
+                        field = parseField(number);
+                        j = arg.length();
+                    }
+                    default -> throw new IllegalArgumentException("Usage: " + USAGE);
+                }
+            }
+        }
+        Comparator<String> order = new KeyComparator(field, numeric).thenComparing(Comparator.naturalOrder());
+        return new ExternalSorter(reversed ? order.reversed() : order).sort(input.map(Lines::strip).iterator())
+                .map(line -> line + "\n")
+                .onClose(input::close);
+    }
+
+    private static int parseField(String number){
+        if (!number.matches("[1-9][0-9]{0,8}")){
+            throw new IllegalArgumentException("Usage: " + USAGE);
+        }
+        return Integer.parseInt(number);
+    }
+
+    private static boolean isBlank(char c){
+        return c == ' ' || c == '\t';
+    }
+
+    private static boolean isDigit(char c){
+        return c >= '0' && c <= '9';
+    }
+
+    // Compares keys where they are in the lines, without substrings or parsing: sorts compare
+    // every line about log2(n) times, so nothing is allocated per comparison
+    private static final class KeyComparator implements Comparator<String> {
+        private final int field;
+        private final boolean numeric;
+
+        KeyComparator(int field, boolean numeric){
+            this.field = field;
+            this.numeric = numeric;
+        }
+
+        @Override
+        public int compare(String a, String b) {
+            int i = keyStart(a), j = keyStart(b);
+            if (numeric){
+                return compareNumbers(a, i, b, j);
+            }
+            int n = a.length(), m = b.length();
+            for (; i < n && j < m; i++, j++){
+                if (a.charAt(i) != b.charAt(j)){
+                    return Character.compare(a.charAt(i), b.charAt(j));
+                }
+            }
+            return Integer.compare(n - i, m - j);
+        }
+
+        // Offset of field `field` (1-based, from its first non-blank), 0 for the whole line
+        private int keyStart(String line){
+            int position = 0, n = line.length();
+            if (field == 0){
+                return 0;
+            }
+            for (int skipped = 0; skipped < field - 1; skipped++){
+                while (position < n && isBlank(line.charAt(position))){
+                    position++;
+                }
+                while (position < n && !isBlank(line.charAt(position))){
+                    position++;
+                }
+            }
+            while (position < n && isBlank(line.charAt(position))){
+                position++;
+            }
+            return position;
+        }
+
+        // [-+]digits[.digits] at the keys' starts, compared digit by digit like sort -n does;
+        // a key not starting with a number counts as 0
+        private static int compareNumbers(String a, int i, String b, int j){
+            int signA = sign(a, i), signB = sign(b, j);
+            if (signA != signB || signA == 0){
+                return Integer.compare(signA, signB);
+            }
+            int magnitude = compareMagnitudes(a, skipSign(a, i), b, skipSign(b, j));
+            return signA > 0 ? magnitude : -magnitude;
+        }
+
+        private static int skipSign(String text, int position){
+            return position < text.length() && (text.charAt(position) == '-' || text.charAt(position) == '+') ? position + 1 : position;
+        }
+
+        // -1, 0 or 1; 0 also for -0, 0.00 and no number at all
+        private static int sign(String text, int position){
+            int n = text.length(), digit = skipSign(text, position);
+            boolean negative = digit > position && text.charAt(position) == '-';
+            boolean dot = false;
+            for (int k = digit; k < n; k++){
+                char c = text.charAt(k);
+                if (c == '.' && !dot){
+                    dot = true;
+                } else if (!isDigit(c)){
+                    break;
+                } else if (c != '0'){
+                    return negative ? -1 : 1;
+                }
+            }
+            return 0;
+        }
+
+        private static int compareMagnitudes(String a, int i, String b, int j){
+            int n = a.length(), m = b.length();
+            while (i < n && a.charAt(i) == '0'){
+                i++;
+            }
+            while (j < m && b.charAt(j) == '0'){
+                j++;
+            }
+            int endA = i, endB = j;
+            while (endA < n && isDigit(a.charAt(endA))){
+                endA++;
+            }
+            while (endB < m && isDigit(b.charAt(endB))){
+                endB++;
+            }
+            // More integer digits is bigger, then the first differing digit decides
+            if (endA - i != endB - j){
+                return Integer.compare(endA - i, endB - j);
+            }
+            for (; i < endA; i++, j++){
+                if (a.charAt(i) != b.charAt(j)){
+                    return Character.compare(a.charAt(i), b.charAt(j));
+                }
+            }
+            // Fractions, a missing digit counts as 0
+            i = endA < n && a.charAt(endA) == '.' ? endA + 1 : n;
+            j = endB < m && b.charAt(endB) == '.' ? endB + 1 : m;
+            while (true){
+                char x = i < n && isDigit(a.charAt(i)) ? a.charAt(i) : 0;
+                char y = j < m && isDigit(b.charAt(j)) ? b.charAt(j) : 0;
+                if (x == 0 && y == 0){
+                    return 0;
+                }
+                x = x == 0 ? '0' : x;
+                y = y == 0 ? '0' : y;
+                if (x != y){
+                    return Character.compare(x, y);
+                }
+                i++;
+                j++;
+            }
+        }
+    }
+}
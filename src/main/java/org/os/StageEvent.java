@@ -0,0 +1,38 @@
+package org.os;
+import jdk.jfr.*;
+
+// One command or filter invocation in a Flight Recorder recording, from the stage's creation
+// until its output was read to the end or closed. Costs a few field writes when no recording runs.
+@Name("org.os.Stage")
+@Label("Pipeline Stage")
+@Category({"CLI", "Pipeline"})
+@Description("A command or filter invocation, from its start until its output was consumed or closed")
+@StackTrace(false)
+final class StageEvent extends Event {
+    @Label("Stage")
+    String stage;
+
+    @Label("Own Time")
+    @Description("Time spent in the stage itself, without the stages before it and its consumer")
+    @Timespan(Timespan.NANOSECONDS)
+    long ownTime;
+
+    @Label("CPU Time")
+    @Description("Own thread CPU time, partly estimated from sampled pulls; -1 when not measured")
+    @Timespan(Timespan.NANOSECONDS)
+    long cpuTime;
+
+    @Label("Allocated")
+    @Description("Own allocation, -1 when not sampled")
+    @DataAmount
+    long allocated;
+
+    @Label("Lines")
+    long lines;
+
+    @Label("Characters")
+    long characters;
+
+    @Label("Failed")
+    boolean failed;
+}
@@ -0,0 +1,237 @@
+package org.os;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// tail [-n N] [-f] <file>
+// The last N lines are found by reading fixed size blocks backwards from the end, counting line
+// breaks, so only the tail of the file is read. With -f the stream then never ends: a WatchService
+// on the directory wakes it up, and only the bytes appended since are read (positional reads).
+// A file replaced under the same name (log rotation) is read to its end and the new one followed
+// from its start, like a file truncated in place. Following stops when the reading thread is
+// interrupted (Ctrl-C in the interactive shell).
+final class Tail {
+    static final String USAGE = "tail [-n N] [-f] <file>";
+    private static final int BLOCK_SIZE = 64 * 1024;
+    // Also checked without an event: some filesystems (NFS, bind mounts) report none
+    private static final long POLL_MILLIS = Long.getLong("cli.tail.pollMillis", 1000);
+
+    private Tail(){}
+
+    // `lines` < 0: the whole file
+    static Stream<String> open(Path file, long lines, boolean follow) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long start = lines < 0 ? 0 : lastLines(channel, lines);
+            Reader reader = new Reader(file, channel, start, follow);
+            return StreamSupport.stream(reader, false).onClose(reader::close);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // The last `lines` lines of a stream that can only be read forwards (a compressed file)
+    static Stream<String> last(Stream<String> input, long lines){
+        ArrayDeque<String> kept = new ArrayDeque<>();
+        try (input){
+            input.forEachOrdered(line -> {
+                if (kept.size() == lines){
+                    kept.poll();
+                }
+                if (lines > 0){
+                    kept.add(line);
+                }
+            });
+        }
+        return kept.stream();
+    }
+
+    // Offset of the first of the last `lines` lines; a final line break ends the last line
+    private static long lastLines(FileChannel channel, long lines) throws IOException {
+        long end = channel.size();
+        if (lines == 0){
+            return end;
+        }
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        long breaks = 0;
+        for (long position = end; position > 0; ){
+            int length = (int) Math.min(BLOCK_SIZE, position);
+            position -= length;
+            block.clear().limit(length);
+            while (block.hasRemaining() && channel.read(block, position + block.position()) >= 0){
+                // Read the whole block
+            }
+            for (int i = length - 1; i >= 0; i--){
+                if (block.get(i) == '\n' && position + i != end - 1 && ++breaks == lines){
+                    return position + i + 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static Object identity(BasicFileAttributes attributes){
+        return attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime();
+    }
+
+    private static final class Reader extends Spliterators.AbstractSpliterator<String> {
+        private final Path file;
+        private final boolean follow;
+        private FileChannel channel;
+        private Object identity;
+        private long position;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_SIZE);
+        // Bytes of a line whose end has not been read yet
+        private byte[] partial = new byte[256];
+        private int partialLength = 0;
+        private WatchService watcher;
+        // The last line of a rotated or truncated file is complete even without a line break
+        private boolean lineEnded = false;
+        private boolean done = false;
+
+        Reader(Path file, FileChannel channel, long start, boolean follow) throws IOException {
+            super(follow ? Long.MAX_VALUE : channel.size() - start, Spliterator.ORDERED | Spliterator.NONNULL);
+            this.file = file;
+            this.follow = follow;
+            this.channel = channel;
+            this.position = start;
+            identity = identity(Files.readAttributes(file, BasicFileAttributes.class));
+            buffer.limit(0);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super String> action) {
+            try {
+                while (!done){
+                    if (lineEnded && partialLength > 0){
+                        lineEnded = false;
+                        action.accept(take(partialLength));
+                        return true;
+                    }
+                    String line = nextLine();
+                    if (line != null){
+                        action.accept(line);
+                        return true;
+                    }
+                    if (!follow){
+                        done = true;
+                        if (partialLength > 0){
+                            action.accept(take(partialLength));
+                            return true;
+                        }
+                    } else {
+                        await();
+                    }
+                }
+                return false;
+            } catch (ClosedByInterruptException e) {
+                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // The next complete line from what is readable now, null at the current end of the file
+        private String nextLine() throws IOException {
+            while (true){
+                while (buffer.hasRemaining()){
+                    byte b = buffer.get();
+                    if (partialLength == partial.length){
+                        partial = Arrays.copyOf(partial, partialLength * 2);
+                    }
+                    partial[partialLength++] = b;
+                    if (b == '\n'){
+                        return take(partialLength);
+                    }
+                }
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                buffer.flip();
+                if (read <= 0){
+                    return null;
+                }
+                position += read;
+            }
+        }
+
+        private String take(int length){
+            String line = new String(partial, 0, length, StandardCharsets.UTF_8);
+            partialLength = 0;
+            return line;
+        }
+
+        // Block until the file may have changed, then switch files or rewind if it was rotated or truncated
+        private void await() throws IOException {
+            if (watcher == null){
+                watcher = file.getFileSystem().newWatchService();
+                Path directory = file.toAbsolutePath().getParent();
+                directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                // Something may have been appended before the watch was set up
+                return;
+            }
+            try {
+                WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (key != null){
+                    key.pollEvents();
+                    key.reset();
+                }
+            } catch (InterruptedException e) {
+                done = true;
+                return;
+            }
+            if (Thread.currentThread().isInterrupted()){
+                done = true;
+                return;
+            }
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            } catch (NoSuchFileException e) {
+                // Rotated away and not recreated yet
+                return;
+            }
+            if (!Objects.equals(identity(attributes), identity)){
+                if (channel.size() > position){
+                    // Finish the old file first, the next wait switches over
+                    return;
+                }
+                FileChannel next = FileChannel.open(file, StandardOpenOption.READ);
+                channel.close();
+                channel = next;
+                identity = identity(attributes);
+                position = 0;
+                lineEnded = true;
+            } else if (channel.size() < position){
+                // Truncated in place (copytruncate): what is there now was written since
+                position = 0;
+                lineEnded = true;
+            }
+        }
+
+        void close(){
+            try {
+                channel.close();
+                if (watcher != null){
+                    watcher.close();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,825 @@
+package org.os;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+// begin ... commit: between the two, mkdir, touch, mv, rm and rmdir only add to a plan. The plan has
+// its own view of the tree (the disk plus the planned changes) that the commands check against, so
+// errors still show up when a command is typed. Redundant steps are coalesced as they come: what is
+// created and then removed leaves nothing, removing a moved path removes its source, renames chain
+// (mv a b; mv b c is mv a c) and a created path that is renamed is created under its new name.
+//
+// commit checks that the paths the plan looked at were not created, removed or replaced since, writes
+// the plan to a journal (cli.journal.dir, ~/.cli_journal by default) and applies it in steps;
+// operations on unrelated paths share a step and run in parallel, anything on the same path, an
+// ancestor or a descendant waits for the earlier ones. Removed and overwritten entries are renamed
+// into a trash directory next to the batch, so every applied operation can be undone: a failure rolls
+// the batch back, and recover resumes or rolls back a batch interrupted by a crash. The trash is
+// deleted once the commit is recorded.
+final class Transaction {
+    static final String RECOVER_USAGE = "recover [resume|rollback]";
+    static final Path JOURNALS = Path.of(System.getProperty("cli.journal.dir", Path.of(System.getProperty("user.home"), ".cli_journal").toString()));
+    private static final int MAGIC = 0x434c494a;
+    private static final byte PLAN = 'P', DONE = 'D', COMMITTED = 'C';
+
+    private enum Kind { MKDIR, TOUCH, MOVE, REMOVE, RMDIR }
+
+    private enum Type { ABSENT, FILE, DIRECTORY }
+
+    // What a path is in the planned tree, and the disk path its content comes from (null when the plan creates it)
+    private record Entry(Type type, Path origin) {
+        static final Entry ABSENT = new Entry(Type.ABSENT, null);
+    }
+
+    // A disk path as the plan saw it: the entry and which file it was (the inode where there is one)
+    private record Snapshot(Entry entry, Object identity) {
+        static final Snapshot ABSENT = new Snapshot(Entry.ABSENT, null);
+    }
+
+    private static final class Op {
+        Kind kind;
+        Path path;
+        // Destination of a move
+        Path target;
+        // Topmost directory a mkdir creates (mkdir a/b/c where only a exists: a/b)
+        Path top;
+        boolean recursive;
+        // A move replacing an existing entry
+        boolean overwrites;
+        // Recording order; an op rewritten by coalescing keeps its place
+        long sequence;
+
+        Op(Kind kind, Path path, long sequence){
+            this.kind = kind;
+            this.path = path;
+            this.sequence = sequence;
+        }
+
+        List<Path> paths(){
+            return kind == Kind.MOVE ? List.of(path, target) : kind == Kind.MKDIR ? List.of(path, top) : List.of(path);
+        }
+
+        boolean touches(Path root){
+            return path.startsWith(root) || target != null && target.startsWith(root);
+        }
+    }
+
+    private final Path base;
+    private final Path journals;
+    private final List<Op> ops = new ArrayList<>();
+    // Planned entries by path; an entry stands for its whole subtree until something below it changes
+    private final TreeMap<String, Entry> overlay = new TreeMap<>();
+    // The op whose result is at a path, for coalescing
+    private final Map<Path, Op> producers = new HashMap<>();
+    // Last sequence touching exactly a path, and anything at or below it
+    private final Map<Path, Long> touchedAt = new HashMap<>();
+    private final Map<Path, Long> touchedBelow = new HashMap<>();
+    // The disk as first seen by the plan; commit applies nothing if any of it changed since
+    private final Map<Path, Snapshot> disk = new HashMap<>();
+    private long recorded = 0;
+
+    // base: the directory the trash goes into, normally the current directory at begin;
+    // journals: where commit writes its journal
+    Transaction(Path base, Path journals){
+        this.base = base.toAbsolutePath().normalize();
+        this.journals = journals;
+    }
+
+    int recorded(){
+        return (int) recorded;
+    }
+
+    // The planned view, for the checks of the commands
+    boolean exists(Path path){
+        return lookup(normalize(path)).type() != Type.ABSENT;
+    }
+
+    boolean isDirectory(Path path){
+        return lookup(normalize(path)).type() == Type.DIRECTORY;
+    }
+
+    // Files.createDirectories
+    void createDirectories(Path directory) throws IOException {
+        Path path = normalize(directory);
+        Entry entry = lookup(path);
+        if (entry.type() == Type.DIRECTORY){
+            return;
+        }
+        if (entry.type() == Type.FILE){
+            throw new FileAlreadyExistsException(path.toString());
+        }
+        Path top = path;
+        while (top.getParent() != null && lookup(top.getParent()).type() == Type.ABSENT){
+            top = top.getParent();
+        }
+        if (top.getParent() != null && lookup(top.getParent()).type() == Type.FILE){
+            throw new FileAlreadyExistsException(top.getParent().toString());
+        }
+        Op op = add(Kind.MKDIR, path);
+        op.top = top;
+        // Parents first, an entry replaces what was planned below it
+        put(top, new Entry(Type.DIRECTORY, null));
+        for (Path created = top; !created.equals(path); ){
+            created = created.resolve(path.getName(created.getNameCount()).toString());
+            overlay.put(created.toString(), new Entry(Type.DIRECTORY, null));
+        }
+        produced(op, path);
+    }
+
+    // Files.createFile
+    void createFile(Path file) throws IOException {
+        Path path = normalize(file);
+        if (lookup(path).type() != Type.ABSENT){
+            throw new FileAlreadyExistsException(path.toString());
+        }
+        if (path.getParent() == null || lookup(path.getParent()).type() != Type.DIRECTORY){
+            throw new NoSuchFileException(path.toString());
+        }
+        Op op = add(Kind.TOUCH, path);
+        put(path, new Entry(Type.FILE, null));
+        produced(op, path);
+    }
+
+    // rm, -r for whole directories
+    void delete(Path file, boolean recursive) throws IOException {
+        Path path = normalize(file);
+        Entry entry = lookup(path);
+        if (entry.type() == Type.ABSENT){
+            throw new NoSuchFileException(path.toString());
+        }
+        if (!recursive && entry.type() == Type.DIRECTORY && !isEmptyDirectory(path)){
+            throw new DirectoryNotEmptyException(path.toString());
+        }
+        if (cancelCreated(path) || cancelMoved(path, recursive)){
+            recorded++;
+        } else {
+            Op op = add(Kind.REMOVE, path);
+            op.recursive = recursive;
+        }
+        put(path, Entry.ABSENT);
+        producers.remove(path);
+    }
+
+    // rmdir
+    void removeDirectory(Path directory) throws IOException {
+        Path path = normalize(directory);
+        if (!isEmptyDirectory(path)){
+            throw new DirectoryNotEmptyException(path.toString());
+        }
+        if (cancelCreated(path)){
+            recorded++;
+        } else {
+            add(Kind.RMDIR, path);
+        }
+        put(path, Entry.ABSENT);
+        producers.remove(path);
+    }
+
+    // mv; destination is the final path, not the directory it goes into
+    void move(Path source, Path destination) throws IOException {
+        Path from = normalize(source), to = normalize(destination);
+        if (from.equals(to)){
+            return;
+        }
+        Entry entry = lookup(from);
+        if (entry.type() == Type.ABSENT){
+            throw new NoSuchFileException(from.toString());
+        }
+        if (to.startsWith(from)){
+            throw new FileSystemException(from.toString(), to.toString(), "Cannot move a directory into itself");
+        }
+        if (to.getParent() == null || lookup(to.getParent()).type() != Type.DIRECTORY){
+            throw new NoSuchFileException(to.toString());
+        }
+        Type replaced = lookup(to).type();
+        if (replaced == Type.DIRECTORY && !isEmptyDirectory(to)){
+            throw new DirectoryNotEmptyException(to.toString());
+        }
+        boolean overwrites = replaced != Type.ABSENT;
+        long sequence = ++recorded;
+        Op producer = producers.get(from);
+        Op op = null;
+        boolean coalesced = false;
+        if (producer != null && !touchedSince(from, producer.sequence) && !touchedSince(to, producer.sequence)){
+            if (producer.kind == Kind.MOVE && !producer.overwrites){
+                // mv a b; mv b c is mv a c, mv a b; mv b a is nothing
+                if (producer.path.equals(to) && !overwrites){
+                    ops.remove(producer);
+                } else {
+                    producer.target = to;
+                    producer.overwrites = overwrites;
+                    op = producer;
+                }
+                coalesced = true;
+            } else if (!overwrites && (producer.kind == Kind.TOUCH || producer.kind == Kind.MKDIR && producer.top.equals(from))){
+                // Created under its final name
+                producer.path = to;
+                if (producer.kind == Kind.MKDIR){
+                    producer.top = to;
+                }
+                op = producer;
+                coalesced = true;
+            }
+        }
+        if (coalesced){
+            // In the place of the op it was merged into
+            sequence = producer.sequence;
+        } else {
+            op = new Op(Kind.MOVE, from, sequence);
+            op.target = to;
+            op.overwrites = overwrites;
+            ops.add(op);
+        }
+        moveEntries(from, to, entry);
+        touched(from, sequence);
+        touched(to, sequence);
+        producers.remove(from);
+        producers.remove(to);
+        if (op != null){
+            producers.put(to, op);
+        }
+    }
+
+    private Op add(Kind kind, Path path){
+        Op op = new Op(kind, path, ++recorded);
+        ops.add(op);
+        touched(path, op.sequence);
+        return op;
+    }
+
+    private void produced(Op op, Path path){
+        producers.put(path, op);
+        if (op.top != null){
+            touched(op.top, op.sequence);
+        }
+    }
+
+    // Dropped with everything created below it, when all of that was created by the plan
+    private boolean cancelCreated(Path path){
+        Op producer = producers.get(path);
+        if (producer == null || producer.kind == Kind.MOVE || producer.kind == Kind.MKDIR && !producer.top.equals(path)
+                || ancestorTouchedSince(path, producer.sequence)){
+            return false;
+        }
+        List<Op> created = new ArrayList<>();
+        for (Op op: ops){
+            if (op.sequence < producer.sequence || !op.touches(path)){
+                continue;
+            }
+            if (op.kind != Kind.TOUCH && !(op.kind == Kind.MKDIR && op.top.startsWith(path))){
+                return false;
+            }
+            created.add(op);
+        }
+        ops.removeAll(created);
+        return true;
+    }
+
+    // mv a b; rm b is rm a, when nothing used b in between and the move replaced nothing
+    private boolean cancelMoved(Path path, boolean recursive){
+        Op producer = producers.get(path);
+        if (producer == null || producer.kind != Kind.MOVE || producer.overwrites || touchedSince(path, producer.sequence)){
+            return false;
+        }
+        producer.kind = Kind.REMOVE;
+        producer.target = null;
+        producer.recursive = recursive;
+        return true;
+    }
+
+    private void touched(Path path, long sequence){
+        touchedAt.merge(path, sequence, Math::max);
+        for (Path ancestor = path; ancestor != null; ancestor = ancestor.getParent()){
+            touchedBelow.merge(ancestor, sequence, Math::max);
+        }
+    }
+
+    private boolean touchedSince(Path path, long sequence){
+        return touchedBelow.getOrDefault(path, 0L) > sequence || ancestorTouchedSince(path, sequence);
+    }
+
+    private boolean ancestorTouchedSince(Path path, long sequence){
+        for (Path ancestor = path.getParent(); ancestor != null; ancestor = ancestor.getParent()){
+            if (touchedAt.getOrDefault(ancestor, 0L) > sequence){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Path normalize(Path path){
+        return path.toAbsolutePath().normalize();
+    }
+
+    private Entry lookup(Path path){
+        for (Path ancestor = path; ancestor != null; ancestor = ancestor.getParent()){
+            Entry entry = overlay.get(ancestor.toString());
+            if (entry == null){
+                continue;
+            }
+            if (ancestor.equals(path)){
+                return entry;
+            }
+            if (entry.type() != Type.DIRECTORY || entry.origin() == null){
+                return Entry.ABSENT;
+            }
+            return disk(entry.origin().resolve(ancestor.relativize(path)));
+        }
+        return disk(path);
+    }
+
+    private Entry disk(Path path){
+        return disk.computeIfAbsent(path, Transaction::stat).entry();
+    }
+
+    private static Snapshot stat(Path path){
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return Snapshot.ABSENT;
+        }
+        // Links to directories count as directories, as they do for the commands
+        boolean directory = attributes.isDirectory() || attributes.isSymbolicLink() && Files.isDirectory(path);
+        return new Snapshot(new Entry(directory ? Type.DIRECTORY : Type.FILE, path),
+                attributes.fileKey() != null ? attributes.fileKey() : attributes.creationTime());
+    }
+
+    // Something created, removed or replaced behind the plan's back since it looked
+    private void checkDisk() throws IOException {
+        for (Map.Entry<Path, Snapshot> seen: disk.entrySet()){
+            if (!seen.getValue().equals(stat(seen.getKey()))){
+                throw new IOException("Changed since it was planned: " + seen.getKey());
+            }
+        }
+    }
+
+    private boolean isEmptyDirectory(Path directory) throws IOException {
+        Entry entry = lookup(directory);
+        if (entry.type() != Type.DIRECTORY){
+            throw new NotDirectoryException(directory.toString());
+        }
+        for (Entry below: below(directory).values()){
+            if (below.type() != Type.ABSENT){
+                return false;
+            }
+        }
+        if (entry.origin() != null){
+            try (DirectoryStream<Path> children = Files.newDirectoryStream(entry.origin())){
+                for (Path child: children){
+                    if (lookup(directory.resolve(child.getFileName().toString())).type() != Type.ABSENT){
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // The overlay entries strictly below a path
+    private SortedMap<String, Entry> below(Path path){
+        String prefix = path.toString();
+        String separator = path.getFileSystem().getSeparator();
+        if (!prefix.endsWith(separator)){
+            prefix += separator;
+        }
+        String end = prefix.substring(0, prefix.length() - 1) + (char) (prefix.charAt(prefix.length() - 1) + 1);
+        return overlay.subMap(prefix, end);
+    }
+
+    private void put(Path path, Entry entry){
+        below(path).clear();
+        overlay.put(path.toString(), entry);
+    }
+
+    // The planned entries below a moved path move with it
+    private void moveEntries(Path from, Path to, Entry entry){
+        Map<String, Entry> moved = new HashMap<>(below(from));
+        put(from, Entry.ABSENT);
+        put(to, entry);
+        for (Map.Entry<String, Entry> below: moved.entrySet()){
+            overlay.put(to.resolve(from.relativize(Path.of(below.getKey()))).toString(), below.getValue());
+        }
+    }
+
+    // Applies the plan, or undoes what was applied and rethrows the first failure
+    String commit(int parallelism, Consumer<Path> invalidate) throws IOException {
+        if (ops.isEmpty()){
+            return "Nothing to commit (" + recorded + " operations coalesced)";
+        }
+        checkDisk();
+        String id = Long.toString(System.currentTimeMillis(), 36) + "-" + ProcessHandle.current().pid();
+        Files.createDirectories(journals);
+        Batch batch = new Batch(ops, base.resolve(".cli-trash-" + id));
+        List<List<Integer>> steps = steps(ops);
+        try (Journal journal = Journal.create(journals.resolve(id + ".journal"), batch)){
+            IOException failure = null;
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                for (List<Integer> step: steps){
+                    List<Callable<Void>> tasks = new ArrayList<>();
+                    for (int index: step){
+                        tasks.add(() -> {
+                            batch.apply(index);
+                            journal.done(index);
+                            return null;
+                        });
+                    }
+                    for (Future<Void> result: pool.invokeAll(tasks)){
+                        try {
+                            result.get();
+                        } catch (ExecutionException e) {
+                            if (failure == null){
+                                failure = cause(e);
+                            }
+                        }
+                    }
+                    if (failure != null){
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException("Commit interrupted");
+            } finally {
+                pool.shutdown();
+            }
+            if (failure != null){
+                batch.rollback(journal.done, false);
+                journal.delete();
+                throw failure;
+            }
+            journal.committed();
+            batch.finish();
+            journal.delete();
+        } finally {
+            batch.invalidate(invalidate);
+        }
+        return "Committed: " + ops.size() + " operations in " + steps.size() + " steps (" + recorded + " recorded)";
+    }
+
+    // The pool wraps what a task throws
+    private static IOException cause(ExecutionException e){
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()){
+            if (cause instanceof IOException io){
+                return io;
+            }
+        }
+        return new IOException(e.getCause());
+    }
+
+    // An op waits for the last step with an op on the same path, an ancestor or a descendant
+    private static List<List<Integer>> steps(List<Op> ops){
+        Map<Path, Integer> at = new HashMap<>(), below = new HashMap<>();
+        List<List<Integer>> steps = new ArrayList<>();
+        for (int i = 0; i < ops.size(); i++){
+            List<Path> paths = ops.get(i).paths();
+            int step = 0;
+            for (Path path: paths){
+                step = Math.max(step, below.getOrDefault(path, -1) + 1);
+                for (Path ancestor = path; ancestor != null; ancestor = ancestor.getParent()){
+                    step = Math.max(step, at.getOrDefault(ancestor, -1) + 1);
+                }
+            }
+            for (Path path: paths){
+                at.merge(path, step, Math::max);
+                for (Path ancestor = path; ancestor != null; ancestor = ancestor.getParent()){
+                    below.merge(ancestor, step, Math::max);
+                }
+            }
+            while (steps.size() <= step){
+                steps.add(new ArrayList<>());
+            }
+            steps.get(step).add(i);
+        }
+        return steps;
+    }
+
+    // Finishes the batches whose commit was interrupted: resumes them, or rolls them back. Journals
+    // locked by a running commit are left alone.
+    static String recover(Path journals, boolean rollback, Consumer<Path> invalidate) throws IOException {
+        if (!Files.isDirectory(journals)){
+            return "Nothing to recover";
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(journals, "*.journal")){
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        StringJoiner result = new StringJoiner("\n");
+        for (Path file: files){
+            Journal opened;
+            try {
+                opened = Journal.open(file);
+            } catch (IOException e) {
+                // Left in place to be looked at, the other batches are still recovered
+                result.add("Damaged: " + file + " (" + e.getMessage() + ")");
+                continue;
+            }
+            try (Journal journal = opened){
+                if (journal == null){
+                    result.add("In progress: " + file);
+                    continue;
+                }
+                Batch batch = journal.batch;
+                if (batch == null){
+                    // Died while writing the plan, before anything was applied
+                    journal.delete();
+                    continue;
+                }
+                if (journal.committed){
+                    batch.finish();
+                    result.add("Completed: " + file + " (" + batch.ops.size() + " operations)");
+                } else if (rollback){
+                    batch.rollback(journal.done, true);
+                    result.add("Rolled back: " + file + " (" + batch.ops.size() + " operations)");
+                } else {
+                    batch.resume(journal.done);
+                    journal.committed();
+                    batch.finish();
+                    result.add("Resumed: " + file + " (" + batch.ops.size() + " operations)");
+                }
+                journal.delete();
+                batch.invalidate(invalidate);
+            }
+        }
+        return result.length() == 0 ? "Nothing to recover" : result.toString();
+    }
+
+    // The plan being applied: how to do, detect and undo each op. Removed and replaced entries go to
+    // trash/<op index>.
+    private static final class Batch {
+        final List<Op> ops;
+        final Path trash;
+        private volatile boolean trashCreated;
+
+        Batch(List<Op> ops, Path trash){
+            this.ops = ops;
+            this.trash = trash;
+        }
+
+        void apply(int index) throws IOException {
+            Op op = ops.get(index);
+            switch (op.kind){
+                case MKDIR -> Files.createDirectories(op.path);
+                case TOUCH -> Files.createFile(op.path);
+                case MOVE -> {
+                    OutputTargets.close(op.path);
+                    OutputTargets.close(op.target);
+                    if (Files.exists(op.target, LinkOption.NOFOLLOW_LINKS)){
+                        move(op.target, stash(index));
+                    }
+                    move(op.path, op.target);
+                }
+                case REMOVE -> {
+                    OutputTargets.close(op.path);
+                    if (!op.recursive && Files.isDirectory(op.path, LinkOption.NOFOLLOW_LINKS)){
+                        try (DirectoryStream<Path> children = Files.newDirectoryStream(op.path)){
+                            if (children.iterator().hasNext()){
+                                throw new DirectoryNotEmptyException(op.path.toString());
+                            }
+                        }
+                    }
+                    move(op.path, stash(index));
+                }
+                case RMDIR -> Files.delete(op.path);
+            }
+        }
+
+        // Whether an op without a done record got applied before a crash
+        boolean applied(int index){
+            Op op = ops.get(index);
+            return switch (op.kind){
+                case MKDIR -> Files.isDirectory(op.path);
+                case TOUCH -> Files.exists(op.path, LinkOption.NOFOLLOW_LINKS);
+                case MOVE -> !Files.exists(op.path, LinkOption.NOFOLLOW_LINKS) && Files.exists(op.target, LinkOption.NOFOLLOW_LINKS);
+                case REMOVE -> Files.exists(trash.resolve(Integer.toString(index)), LinkOption.NOFOLLOW_LINKS);
+                case RMDIR -> !Files.exists(op.path, LinkOption.NOFOLLOW_LINKS);
+            };
+        }
+
+        void undo(int index) throws IOException {
+            Op op = ops.get(index);
+            Path stashed = trash.resolve(Integer.toString(index));
+            switch (op.kind){
+                case MKDIR -> {
+                    for (Path directory = op.path; directory.startsWith(op.top); directory = directory.getParent()){
+                        try {
+                            Files.deleteIfExists(directory);
+                        } catch (DirectoryNotEmptyException e) {
+                            break;
+                        }
+                    }
+                }
+                case TOUCH -> Files.deleteIfExists(op.path);
+                case MOVE -> {
+                    if (Files.exists(op.target, LinkOption.NOFOLLOW_LINKS) && !Files.exists(op.path, LinkOption.NOFOLLOW_LINKS)){
+                        move(op.target, op.path);
+                    }
+                    if (Files.exists(stashed, LinkOption.NOFOLLOW_LINKS)){
+                        move(stashed, op.target);
+                    }
+                }
+                case REMOVE -> {
+                    if (Files.exists(stashed, LinkOption.NOFOLLOW_LINKS)){
+                        move(stashed, op.path);
+                    }
+                }
+                case RMDIR -> Files.createDirectories(op.path);
+            }
+        }
+
+        // Latest first; ops of one step are independent, so plan order reversed is a valid order.
+        // After a crash the ops without a done record are checked on disk.
+        void rollback(BitSet done, boolean crashed) throws IOException {
+            for (int i = ops.size() - 1; i >= 0; i--){
+                if (done.get(i) || Files.exists(trash.resolve(Integer.toString(i)), LinkOption.NOFOLLOW_LINKS) || crashed && applied(i)){
+                    undo(i);
+                }
+            }
+            Files.deleteIfExists(trash);
+        }
+
+        void resume(BitSet done) throws IOException {
+            for (int i = 0; i < ops.size(); i++){
+                if (!done.get(i) && !applied(i)){
+                    apply(i);
+                }
+            }
+        }
+
+        void finish() throws IOException {
+            if (Files.exists(trash, LinkOption.NOFOLLOW_LINKS)){
+                new FileTreeOps(FileTreeOps.DEFAULT_PARALLELISM, null).delete(trash);
+            }
+        }
+
+        void invalidate(Consumer<Path> invalidate){
+            for (Op op: ops){
+                op.paths().forEach(invalidate);
+            }
+        }
+
+        private Path stash(int index) throws IOException {
+            if (!trashCreated){
+                Files.createDirectories(trash);
+                trashCreated = true;
+            }
+            return trash.resolve(Integer.toString(index));
+        }
+
+        // A rename, or a copy and delete across filesystems
+        private static void move(Path source, Path target) throws IOException {
+            new FileTreeOps(1, null).move(source, target);
+        }
+    }
+
+    // Write-ahead journal of a commit: the trash directory and the plan, forced to disk before the
+    // first op runs, then a done record per applied op and a commit record, forced before the trash
+    // is deleted. Held under an exclusive lock while the commit runs.
+    private static final class Journal implements Closeable {
+        private final Path file;
+        private final FileChannel channel;
+        private final FileLock lock;
+        final BitSet done = new BitSet();
+        Batch batch;
+        boolean committed;
+
+        private Journal(Path file, FileChannel channel, FileLock lock){
+            this.file = file;
+            this.channel = channel;
+            this.lock = lock;
+        }
+
+        static Journal create(Path file, Batch batch) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            Journal journal;
+            try {
+                journal = new Journal(file, channel, channel.lock());
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            journal.batch = batch;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeUTF(batch.trash.toString());
+            out.writeByte(PLAN);
+            out.writeInt(batch.ops.size());
+            for (Op op: batch.ops){
+                out.writeByte(op.kind.ordinal());
+                out.writeUTF(op.path.toString());
+                out.writeUTF(op.target == null ? "" : op.target.toString());
+                out.writeUTF(op.top == null ? "" : op.top.toString());
+                out.writeBoolean(op.recursive);
+            }
+            try {
+                journal.write(bytes.toByteArray(), true);
+            } catch (IOException e) {
+                journal.close();
+                throw e;
+            }
+            return journal;
+        }
+
+        // null when another process holds the journal
+        static Journal open(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileLock lock;
+            try {
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                lock = null;
+            }
+            if (lock == null){
+                channel.close();
+                return null;
+            }
+            Journal journal = new Journal(file, channel, lock);
+            try {
+                journal.read();
+            } catch (IOException | RuntimeException e) {
+                // Unlocked and closed, so a later recover can look at it again
+                journal.close();
+                throw e instanceof IOException failure ? failure : new IOException("Damaged journal: " + file, e);
+            }
+            return journal;
+        }
+
+        private void read() throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            try {
+                if (in.readInt() != MAGIC){
+                    throw new IOException("Not a journal: " + file);
+                }
+                Path trash = Path.of(in.readUTF());
+                if (in.readByte() != PLAN){
+                    throw new IOException("Damaged journal: " + file);
+                }
+                int count = in.readInt();
+                List<Op> ops = new ArrayList<>();
+                for (int i = 0; i < count; i++){
+                    Op op = new Op(Kind.values()[in.readByte()], Path.of(in.readUTF()), i);
+                    String target = in.readUTF(), top = in.readUTF();
+                    op.target = target.isEmpty() ? null : Path.of(target);
+                    op.top = top.isEmpty() ? null : Path.of(top);
+                    op.recursive = in.readBoolean();
+                    ops.add(op);
+                }
+                batch = new Batch(ops, trash);
+                while (true){
+                    byte record = in.readByte();
+                    if (record == DONE){
+                        done.set(in.readInt());
+                    } else if (record == COMMITTED){
+                        committed = true;
+                    } else {
+                        throw new IOException("Damaged journal: " + file);
+                    }
+                }
+            } catch (EOFException e) {
+                // A record cut short by the crash was never acted on
+            }
+            channel.position(channel.size());
+        }
+
+        // Written straight to the file, so a record survives the process even when it is not forced
+        synchronized void done(int index) throws IOException {
+            done.set(index);
+            write(ByteBuffer.allocate(5).put(DONE).putInt(index).array(), false);
+        }
+
+        synchronized void committed() throws IOException {
+            committed = true;
+            write(new byte[]{COMMITTED}, true);
+        }
+
+        private void write(byte[] record, boolean force) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+            if (force){
+                channel.force(true);
+            }
+        }
+
+        void delete() throws IOException {
+            Files.deleteIfExists(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (lock.isValid()){
+                lock.release();
+            }
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package org.os;
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+// uniq [-a] [-c]
+// Default: drop every repeated line, keeping the first occurrence in input order. Seen lines are
+// found by 64 bit fingerprints and compared in full; they spill to temp files once too many are held.
+// -a: POSIX behaviour, only adjacent repeats are dropped (constant memory).
+// -c: prefix every line with its number of occurrences, counted in the same spilling set.
+final class Uniq {
+    static final String USAGE = "uniq [-a] [-c]";
+    // Lines kept on the heap before spilling to disk (16 bytes each in a table at most half full,
+    // plus the line)
+    static final int MEMORY_LIMIT = Integer.getInteger("cli.uniq.memoryLimit", 1 << 22);
+    // Bytes of lines kept on the heap, an eighth of the heap by default like sort
+    static final int ARENA_LIMIT = (int) Math.min(Integer.MAX_VALUE - 8, Long.getLong("cli.uniq.lineMemory", Runtime.getRuntime().maxMemory() / 8));
+
+    private Uniq(){}
+
+    static Stream<String> filter(Stream<String> input, List<String> arguments){
+        boolean adjacent = false, count = false;
+        for (String arg: arguments){
+            switch (arg){
+                case "-a" -> adjacent = true;
+                case "-c" -> count = true;
+                case "-ac", "-ca" -> adjacent = count = true;
+                default -> throw new IllegalArgumentException("Usage: " + USAGE);
+            }
+        }
+        Stream<String> lines = input.map(Lines::strip);
+        if (adjacent){
+            return adjacent(lines, count).onClose(input::close);
+        }
+        if (count){
+            return Stream.of(lines).flatMap(Uniq::countAll);
+        }
+        LineSet seen = new LineSet(MEMORY_LIMIT);
+        return lines.filter(seen::add)
+                .map(line -> line + "\n")
+                .onClose(seen::close);
+    }
+
+    // Adjacent duplicates only, one line of lookahead
+    private static Stream<String> adjacent(Stream<String> lines, boolean count){
+        Iterator<String> upstream = lines.iterator();
+        Spliterator<String> spliterator = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+            private String pending;
+            private boolean started = false;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super String> action) {
+                if (!started){
+                    started = true;
+                    pending = upstream.hasNext() ? upstream.next() : null;
+                }
+                if (pending == null){
+                    return false;
+                }
+                String line = pending;
+                long occurrences = 1;
+                pending = null;
+                while (upstream.hasNext()){
+                    String next = upstream.next();
+                    if (!next.equals(line)){
+                        pending = next;
+                        break;
+                    }
+                    occurrences++;
+                }
+                action.accept(count ? formatCount(occurrences, line) : line + "\n");
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false);
+    }
+
+    // Counting needs the whole input; distinct lines come out in first-seen order
+    private static Stream<String> countAll(Stream<String> lines){
+        LineSet counts = new LineSet(MEMORY_LIMIT, ARENA_LIMIT, true);
+        try (lines){
+            lines.forEachOrdered(counts::add);
+        } catch (RuntimeException e) {
+            counts.close();
+            throw e;
+        }
+        return counts.counts().onClose(counts::close);
+    }
+
+    private static String formatCount(long count, String line){
+        return String.format("%7d %s", count, line) + "\n";
+    }
+
+    // FNV-1a over the bytes followed by the murmur3 finalizer
+    static long fingerprint(byte[] line, int from, int to){
+        long hash = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++){
+            hash ^= line[i] & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash; // 0 marks an empty slot
+    }
+
+    // The lines seen so far. A line is looked up by its fingerprint and then compared with the stored
+    // bytes, so lines whose fingerprints collide are still told apart. The table holds (fingerprint,
+    // offset) pairs, the lines are appended length-prefixed to an arena. Once `limit` lines or
+    // ARENA_LIMIT bytes are held, the arena is appended to a temp store file and the table is written
+    // to a temp file and mapped read-only; lookups then probe those tables too and read candidate
+    // lines back from the store. When counting, every line is followed by its count, updated in
+    // place in the arena or the store; the arena and the store hold the lines in first-seen order, so
+    // counts() reads them back in one pass.
+    static final class LineSet implements Closeable {
+        private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+        private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+        private static final VarHandle CHAR = MethodHandles.byteArrayViewVarHandle(char[].class, ByteOrder.BIG_ENDIAN);
+        private final int limit, arenaLimit;
+        private final boolean counting;
+        private long[] fingerprints = new long[1024];
+        private long[] offsets = new long[1024];
+        private int size = 0;
+        private long distinct = 0;
+        private byte[] arena = new byte[4096];
+        private int arenaSize = 0;
+        // Bytes already in the store; smaller offsets are read from there
+        private long stored = 0;
+        private FileChannel store;
+        private ByteBuffer read = ByteBuffer.allocate(256);
+        private final ByteBuffer count = ByteBuffer.allocate(Long.BYTES);
+        private byte[] scratch = new byte[256];
+        private final List<LongBuffer[]> runs = new ArrayList<>();
+        private final List<Path> spillFiles = new ArrayList<>();
+
+        LineSet(int limit){
+            this(limit, ARENA_LIMIT);
+        }
+
+        LineSet(int limit, int arenaLimit){
+            this(limit, arenaLimit, false);
+        }
+
+        LineSet(int limit, int arenaLimit, boolean counting){
+            this.limit = limit;
+            this.arenaLimit = arenaLimit;
+            this.counting = counting;
+        }
+
+        // Strings are stored as their UTF-16 code units, which is exact for any String
+        boolean add(String line){
+            if (scratch.length < line.length() * 2){
+                scratch = new byte[Math.max(line.length() * 2, scratch.length * 2)];
+            }
+            for (int i = 0; i < line.length(); i++){
+                CHAR.set(scratch, 2 * i, line.charAt(i));
+            }
+            return add(scratch, 0, line.length() * 2);
+        }
+
+        // true if the line was not present
+        boolean add(byte[] line, int from, int to){
+            long fingerprint = fingerprint(line, from, to);
+            long offset = find(fingerprint, line, from, to);
+            if (offset >= 0){
+                if (counting){
+                    increment(offset + Integer.BYTES + (to - from));
+                }
+                return false;
+            }
+            if (size == limit || size > 0 && arenaSize + recordSize(to - from) > arenaLimit){
+                spill();
+            }
+            if ((size + 1) * 2 > fingerprints.length){
+                resize();
+            }
+            insert(fingerprints, offsets, fingerprint, stored + arenaSize);
+            append(line, from, to);
+            size++;
+            distinct++;
+            return true;
+        }
+
+        // Offset of the stored line, -1 if it was not seen
+        private long find(long fingerprint, byte[] line, int from, int to){
+            int mask = fingerprints.length - 1;
+            for (int i = (int) fingerprint & mask; fingerprints[i] != 0; i = (i + 1) & mask){
+                if (fingerprints[i] == fingerprint && equals(offsets[i], line, from, to)){
+                    return offsets[i];
+                }
+            }
+            for (LongBuffer[] run: runs){
+                long offset = find(run[0], run[1], fingerprint, line, from, to);
+                if (offset >= 0){
+                    return offset;
+                }
+            }
+            return -1;
+        }
+
+        // A spilled table
+        private long find(LongBuffer fingerprints, LongBuffer offsets, long fingerprint, byte[] line, int from, int to){
+            int mask = fingerprints.limit() - 1;
+            for (int i = (int) fingerprint & mask; fingerprints.get(i) != 0; i = (i + 1) & mask){
+                if (fingerprints.get(i) == fingerprint && equals(offsets.get(i), line, from, to)){
+                    return offsets.get(i);
+                }
+            }
+            return -1;
+        }
+
+        private int recordSize(int length){
+            return Integer.BYTES + length + (counting ? Long.BYTES : 0);
+        }
+
+        // Add one to the count at `position`, in the arena or read and written back in the store
+        private void increment(long position){
+            if (position >= stored){
+                int at = (int) (position - stored);
+                LONG.set(arena, at, (long) LONG.get(arena, at) + 1);
+                return;
+            }
+            try {
+                count.clear();
+                while (count.hasRemaining() && store.read(count, position + count.position()) >= 0){
+                    // Positional reads until the count is in
+                }
+                count.putLong(0, count.getLong(0) + 1).clear();
+                write(store, count, position);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Every line (added as a String) with its count, in first-seen order: the store, then the arena
+        Stream<String> counts(){
+            InputStream records = new ByteArrayInputStream(arena, 0, arenaSize);
+            try {
+                if (store != null){
+                    records = new SequenceInputStream(Channels.newInputStream(store.position(0)), records);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(records, 64 * 1024));
+            return LongStream.range(0, distinct).mapToObj(i -> {
+                try {
+                    char[] chars = new char[in.readInt() / 2];
+                    for (int c = 0; c < chars.length; c++){
+                        chars[c] = in.readChar();
+                    }
+                    return formatCount(in.readLong(), new String(chars));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+
+        private boolean equals(long offset, byte[] line, int from, int to){
+            int length = to - from;
+            if (offset >= stored){
+                int at = (int) (offset - stored);
+                return (int) INT.get(arena, at) == length
+                        && Arrays.equals(arena, at + Integer.BYTES, at + Integer.BYTES + length, line, from, to);
+            }
+            if (read.capacity() < Integer.BYTES + length){
+                read = ByteBuffer.allocate(Integer.BYTES + length);
+            }
+            read.clear().limit(Integer.BYTES + length);
+            try {
+                while (read.hasRemaining() && store.read(read, offset + read.position()) >= 0){
+                    // Positional reads until the line is in, or the store ends (a shorter line)
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return read.position() == Integer.BYTES + length && read.getInt(0) == length
+                    && Arrays.equals(read.array(), Integer.BYTES, Integer.BYTES + length, line, from, to);
+        }
+
+        private void append(byte[] line, int from, int to){
+            int needed = arenaSize + recordSize(to - from);
+            if (needed > arena.length){
+                arena = Arrays.copyOf(arena, Math.max(needed, arena.length * 2));
+            }
+            INT.set(arena, arenaSize, to - from);
+            System.arraycopy(line, from, arena, arenaSize + Integer.BYTES, to - from);
+            if (counting){
+                LONG.set(arena, arenaSize + Integer.BYTES + (to - from), 1L);
+            }
+            arenaSize = needed;
+        }
+
+        private static void insert(long[] fingerprints, long[] offsets, long fingerprint, long offset){
+            int mask = fingerprints.length - 1;
+            int i = (int) fingerprint & mask;
+            while (fingerprints[i] != 0){
+                i = (i + 1) & mask;
+            }
+            fingerprints[i] = fingerprint;
+            offsets[i] = offset;
+        }
+
+        private void resize(){
+            long[] biggerFingerprints = new long[fingerprints.length * 2];
+            long[] biggerOffsets = new long[offsets.length * 2];
+            for (int i = 0; i < fingerprints.length; i++){
+                if (fingerprints[i] != 0){
+                    insert(biggerFingerprints, biggerOffsets, fingerprints[i], offsets[i]);
+                }
+            }
+            fingerprints = biggerFingerprints;
+            offsets = biggerOffsets;
+        }
+
+        private void spill(){
+            try {
+                if (store == null){
+                    Path file = Files.createTempFile("uniq", ".lines");
+                    spillFiles.add(file);
+                    store = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                }
+                write(store, ByteBuffer.wrap(arena, 0, arenaSize), stored);
+                stored += arenaSize;
+                arenaSize = 0;
+                Path file = Files.createTempFile("uniq", ".spill");
+                spillFiles.add(file);
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+                    ByteBuffer buffer = ByteBuffer.allocate(fingerprints.length * 2 * Long.BYTES);
+                    buffer.asLongBuffer().put(fingerprints).put(offsets);
+                    write(channel, buffer, 0);
+                    LongBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, buffer.capacity()).asLongBuffer();
+                    runs.add(new LongBuffer[]{mapped.slice(0, fingerprints.length), mapped.slice(fingerprints.length, offsets.length)});
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Arrays.fill(fingerprints, 0);
+            size = 0;
+        }
+
+        private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()){
+                position += channel.write(buffer, position);
+            }
+        }
+
+        @Override
+        public void close(){
+            runs.clear();
+            try {
+                if (store != null){
+                    store.close();
+                }
+            } catch (IOException ignored) {
+                // Temp files are best effort
+            }
+            for (Path file: spillFiles){
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                    // Temp files are best effort
+                }
+            }
+            spillFiles.clear();
+        }
+    }
+}
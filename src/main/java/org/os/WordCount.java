@@ -0,0 +1,104 @@
+package org.os;
+import java.util.List;
+import java.util.stream.Stream;
+
+// wc [-l] [-w] [-c]
+// Lines, words and bytes in one pass: bytes are the UTF-8 length, counted from the chars
+// without encoding them. Without flags all three are printed, in that order.
+final class WordCount {
+    static final String USAGE = "wc [-l] [-w] [-c]";
+
+    private WordCount(){}
+
+    // Which counts to print
+    record Columns(boolean lines, boolean words, boolean bytes) {
+        static Columns parse(List<String> arguments){
+            boolean lines = false, words = false, bytes = false;
+            for (String arg: arguments){
+                if (!arg.startsWith("-") || arg.length() < 2){
+                    throw new IllegalArgumentException("Usage: " + USAGE);
+                }
+                for (char flag: arg.substring(1).toCharArray()){
+                    switch (flag){
+                        case 'l' -> lines = true;
+                        case 'w' -> words = true;
+                        case 'c' -> bytes = true;
+                        default -> throw new IllegalArgumentException("Usage: " + USAGE);
+                    }
+                }
+            }
+            return lines || words || bytes ? new Columns(lines, words, bytes) : new Columns(true, true, true);
+        }
+    }
+
+    static Stream<String> filter(Stream<String> input, List<String> arguments){
+        Columns columns = Columns.parse(arguments);
+        return Stream.of(input).map(text -> {
+            Counter counter = new Counter();
+            try (text){
+                text.forEachOrdered(counter::add);
+            }
+            return counter.format(columns);
+        });
+    }
+
+    static final class Counter {
+        private long lines = 0, words = 0, bytes = 0;
+        private boolean inWord = false;
+
+        void add(String line){
+            int n = line.length();
+            for (int i = 0; i < n; i++){
+                char c = line.charAt(i);
+                if (c < 0x80){
+                    bytes++;
+                    if (c == '\n'){
+                        lines++;
+                    }
+                } else if (c < 0x800){
+                    bytes += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(line.charAt(i + 1))){
+                    bytes += 4;
+                    i++;
+                } else {
+                    bytes += 3;
+                }
+                boolean space = c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f' || c == 0x0B;
+                if (!space && !inWord){
+                    words++;
+                }
+                inWord = !space;
+            }
+        }
+
+        // The same counts straight from UTF-8 bytes: every byte counts, and the word separators are all ASCII
+        void add(byte[] line, int from, int to){
+            bytes += to - from;
+            for (int i = from; i < to; i++){
+                byte b = line[i];
+                if (b == '\n'){
+                    lines++;
+                }
+                boolean space = b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+                if (!space && !inWord){
+                    words++;
+                }
+                inWord = !space;
+            }
+        }
+
+        // A single count alone, several right-aligned in columns like wc on standard input
+        String format(Columns columns){
+            boolean showLines = columns.lines(), showWords = columns.words(), showBytes = columns.bytes();
+            StringBuilder counts = new StringBuilder();
+            int shown = (showLines ? 1 : 0) + (showWords ? 1 : 0) + (showBytes ? 1 : 0);
+            String column = shown == 1 ? "%d" : "%7d";
+            for (long count: new long[]{showLines ? lines : -1, showWords ? words : -1, showBytes ? bytes : -1}){
+                if (count >= 0){
+                    counts.append(counts.isEmpty() ? "" : " ").append(String.format(column, count));
+                }
+            }
+            return counts.append('\n').toString();
+        }
+    }
+}
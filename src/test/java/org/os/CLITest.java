@@ -5,7 +5,25 @@ import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
 import java.nio.file.*;
-import java.io.IOException;
+import java.nio.file.attribute.FileTime;
+import java.io.*;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 class CLITest {
 
@@ -90,7 +108,7 @@ class CLITest {
     @Test
     void wrongLSArguments(){
         var cli = new CLI();
-        assertEquals(cli.executeCommand("ls ? abc xyz"),"\u001B[31mError! Usage: \u001B[0m\u001B[33mls [-a] [-r]\u001B[0m");
+        assertEquals(cli.executeCommand("ls ? abc xyz"),"\u001B[31mError! Usage: \u001B[0m\u001B[33mls [-a] [-r] [-l]\u001B[0m");
     }
 
     //mkdir and rmdir Unit Test
@@ -119,6 +137,24 @@ class CLITest {
                 "README.md\n");
     }
 
+    // grep flags
+    @Test
+    void grepFlags(){
+        var cli = new CLI();
+        assertEquals("1\n", cli.executeCommand("pwd | grep -c -E ."));
+        assertEquals("", cli.executeCommand("pwd | grep -v -E ."));
+        assertEquals(cli.executeCommand("ls | grep -i readme"), cli.executeCommand("ls | grep README"));
+    }
+
+    // Quoted words and operators without spaces
+    @Test
+    void quotingAndOperators(){
+        var cli = new CLI();
+        assertEquals(cli.executeCommand("ls | grep ."), cli.executeCommand("ls|grep \".\""));
+        assertEquals(cli.executeCommand("ls | grep ."), cli.executeCommand("ls | grep '.'"));
+        assertEquals("\u001B[31mError! Unknown filter: \u001B[0m\u001B[33mnot a filter\u001B[0m", cli.executeCommand("ls | 'not a filter'"));
+    }
+
     // more and less pipline unit tests
     @Test
     void moreAndLessInPipline(){
@@ -131,12 +167,62 @@ class CLITest {
     @Test
     void uniquePiplineFilter(){
         var cli = new CLI();
-        assertEquals(cli.executeCommand("ls | uniq"), "src\n" +
-                "pom.xml\n" +
-                "README.md\n" +
-                "target\n");
+        // uniq keeps the first occurrence of every line in input order
+        assertEquals(cli.executeCommand("ls | uniq"), cli.executeCommand("ls"));
     }
 
+    @Test
+    void uniqueCountAndAdjacent(){
+        var cli = new CLI();
+        cli.executeCommand("pwd | grep -E . > test.txt");
+        cli.executeCommand("pwd | grep -E . >> test.txt");
+        String expectedLine = cli.getCurrentDirectory() + "\n";
+        assertEquals(expectedLine, cli.executeCommand("cat test.txt | uniq"));
+        assertEquals(expectedLine, cli.executeCommand("cat test.txt | uniq -a"));
+        assertEquals("      2 " + expectedLine, cli.executeCommand("cat test.txt | uniq -c"));
+        cli.executeCommand("rm test.txt");
+    }
+
+    @Test
+    void uniqComparesLinesAcrossSpills(){
+        // Tiny limits: most lookups go to spilled tables and lines read back from the store
+        Set<String> expected = new HashSet<>();
+        try (var bytes = new Uniq.LineSet(7, 64); var strings = new Uniq.LineSet(5, 32)){
+            for (int i = 0; i < 2000; i++){
+                String line = "line " + (i * 7919 % 613) + (i % 3 == 0 ? "" : "é");
+                byte[] encoded = ("x" + line).getBytes(StandardCharsets.UTF_8);
+                boolean added = expected.add(line);
+                assertEquals(added, bytes.add(encoded, 1, encoded.length), line);
+                assertEquals(added, strings.add(line), line);
+            }
+            // A lone surrogate and the '?' it would become in UTF-8 stay distinct
+            assertTrue(strings.add("\uD800"));
+            assertTrue(strings.add("?"));
+        }
+    }
+    @Test
+    void sortMergesRunsInPasses(){
+        // About 15 values per run and at most 3 runs merged at once: several passes before the last merge
+        List<String> values = IntStream.range(0, 2000).mapToObj(i -> "value " + (i * 7919 % 2000)).toList();
+        try (Stream<String> sorted = new ExternalSorter(Comparator.naturalOrder(), 1000, 3).sort(values.iterator())){
+            assertEquals(values.stream().sorted().toList(), sorted.toList());
+        }
+    }
+    @Test
+    void uniqCountsAcrossSpills(){
+        // Counts of lines spilled long ago are updated in the store, the order is first-seen
+        Map<String, Long> expected = new LinkedHashMap<>();
+        List<String> counted;
+        try (var counts = new Uniq.LineSet(5, 48, true)){
+            for (int i = 0; i < 2000; i++){
+                String line = "line " + (i * 7919 % 613) + (i % 3 == 0 ? "" : "é");
+                expected.merge(line, 1L, Long::sum);
+                counts.add(line);
+            }
+            counted = counts.counts().toList();
+        }
+        assertEquals(expected.entrySet().stream().map(entry -> String.format("%7d %s", entry.getValue(), entry.getKey()) + "\n").toList(), counted);
+    }
     // > operator and file generation
     @Test
     void writeOperatorTest(){
@@ -188,8 +274,8 @@ class CLITest {
     @Test
     void moveTestTxtToTestDirectory(){
         var cli = new CLI();
-        assertEquals(cli.executeCommand("mv test.txt"),"\u001B[31mError! Usage: \u001B[0m\u001B[33mmv <source> <destination>\u001B[0m");
-        assertEquals(cli.executeCommand("mv test.txt test xyz"),"\u001B[31mError! Usage: \u001B[0m\u001B[33mmv <source> <destination>\u001B[0m");
+        assertEquals(cli.executeCommand("mv test.txt"),"\u001B[31mError! Usage: \u001B[0m\u001B[33mmv <source>... <destination>\u001B[0m");
+        assertEquals(cli.executeCommand("mv test.txt test xyz"),"\u001B[31mError! Not a directory: \u001B[0m\u001B[33m" + Paths.get(cli.getCurrentDirectory(), "xyz") + "\u001B[0m");
         cli.executeCommand("cd ..");
         cli.executeCommand("cd ..");
         cli.executeCommand("mkdir test");
@@ -201,6 +287,382 @@ class CLITest {
         assertEquals(cli.executeCommand("rmdir test"), "Directory removed: D:\\FCAI materials\\Level 3 Term 1\\Operating Systems\\Assignments\\test");
     }
 
+    // The metadata cache must not hide changes made through the CLI
+    @Test
+    void metadataCacheSeesOwnChanges(){
+        var cli = new CLI();
+        cli.setMetadataCache(true);
+        String before = cli.executeCommand("ls");
+        cli.executeCommand("touch test.txt");
+        assertTrue(cli.executeCommand("ls").contains("test.txt\n"));
+        cli.executeCommand("rm test.txt");
+        assertEquals(before, cli.executeCommand("ls"));
+        assertNotNull(cli.getMetadataCacheStats());
+    }
+    @Test
+    void recursiveCopyFindAndRemove(){
+        var cli = new CLI();
+        cli.executeCommand("mkdir test");
+        cli.executeCommand("touch test/a.txt");
+        cli.executeCommand("mkdir test/sub");
+        cli.executeCommand("touch test/sub/b.txt");
+        assertTrue(cli.executeCommand("cp -r -j 2 test test2").startsWith("Copied:"));
+        assertEquals("test2/a.txt\ntest2/sub/b.txt\n", cli.executeCommand("find test2 -name *.txt"));
+        assertTrue(cli.executeCommand("rm -r test test2").contains("Removed:"));
+        assertFalse(cli.executeCommand("ls").contains("test"));
+    }
+    @Test
+    void globAndBraceExpansion(){
+        var cli = new CLI();
+        cli.executeCommand("mkdir test");
+        cli.executeCommand("touch test/{a,b,c}.txt test/d.log");
+        cli.executeCommand("pwd > test/a.txt");
+        cli.executeCommand("pwd > test/b.txt");
+        assertEquals(cli.executeCommand("cat test/a.txt test/b.txt"), cli.executeCommand("cat test/[ab].txt"));
+        // Quoted or escaped glob characters are literal
+        assertTrue(cli.executeCommand("cat \"test/[ab].txt\"").contains("File not found"));
+        assertTrue(cli.executeCommand("cat 'test/*.txt'").contains("File not found"));
+        assertTrue(cli.executeCommand("cat test/\\*.txt").contains("File not found"));
+        // Malformed patterns are kept as typed
+        assertTrue(cli.executeCommand("cat foo[").contains("File not found"));
+        assertTrue(cli.executeCommand("cat test/a{*").contains("File not found"));
+        assertEquals(3, cli.executeCommand("rm test/*.txt").split("\n").length);
+        assertEquals("Removed: " + Paths.get(cli.getCurrentDirectory(), "test", "d.log"), cli.executeCommand("rm test/**/*.log"));
+        cli.executeCommand("rmdir test");
+    }
+    // Found through src/test/resources/META-INF/services/org.os.Command
+    public static class ShoutCommand implements Command {
+        @Override
+        public Descriptor descriptor() {
+            return new Descriptor("shout", "shout <word>...", "Prints its arguments in upper case.", true, true);
+        }
+        @Override
+        public Stream<String> run(Context context, List<String> args) {
+            return Stream.of(String.join(" ", args).toUpperCase() + "\n");
+        }
+    }
+    @Test
+    void pluginCommandAndStats(){
+        var cli = new CLI();
+        assertEquals("HELLO WORLD\n", cli.executeCommand("shout hello world"));
+        assertEquals("1\n", cli.executeCommand("shout hello | grep -c HELLO"));
+        assertTrue(cli.executeCommand("help").contains("Usage: shout <word>..."));
+        String stats = cli.executeCommand("stats");
+        assertTrue(stats.contains("shout"));
+        assertTrue(stats.contains("grep"));
+    }
+    @Test
+    void appendInLoopAndRedirect() throws IOException {
+        var cli = new CLI(Files.createTempDirectory("cli"));
+        for (int i = 0; i < 100; i++){
+            assertEquals("", cli.executeCommand("echo line " + i + " >> log.txt"));
+        }
+        assertEquals("100\n", cli.executeCommand("cat log.txt | grep -c line"));
+        assertEquals("", cli.executeCommand("echo héllo > log.txt"));
+        assertEquals("héllo\n", Files.readString(Path.of(cli.getCurrentDirectory(), "log.txt")));
+        assertTrue(cli.executeCommand("rm log.txt").startsWith("Removed"));
+        assertEquals("", cli.executeCommand("echo again >> log.txt"));
+        assertEquals("again\n", cli.executeCommand("cat log.txt"));
+    }
+    // A redirect whose command blocks between lines (tail -f x > copy) must not hold up other
+    // targets or flushAll
+    @Test
+    void blockedRedirectDoesNotHoldUpOtherTargets() throws Exception {
+        Path directory = Files.createTempDirectory("cli");
+        LinkedBlockingQueue<String> upstream = new LinkedBlockingQueue<>();
+        Iterator<String> lines = new Iterator<>() {
+            private String next;
+            @Override
+            public boolean hasNext() {
+                try {
+                    next = upstream.take();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return !next.isEmpty();
+            }
+            @Override
+            public String next() {
+                return next;
+            }
+        };
+        upstream.add("first\n");
+        Thread writer = Thread.ofVirtual().start(() -> {
+            try {
+                OutputTargets.write(directory.resolve("blocked.txt"), lines, false);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            while (!Files.exists(directory.resolve("blocked.txt"))){
+                Thread.sleep(10);
+            }
+            OutputTargets.write(directory.resolve("other.txt"), List.of("other\n").iterator(), false);
+            OutputTargets.flushAll();
+            assertEquals("other\n", Files.readString(directory.resolve("other.txt")));
+            // What the blocked command has written so far is flushed too
+            while (!Files.readString(directory.resolve("blocked.txt")).equals("first\n")){
+                OutputTargets.flushAll();
+                Thread.sleep(10);
+            }
+        });
+        upstream.add("second\n");
+        upstream.add("");
+        writer.join();
+        assertEquals("first\nsecond\n", Files.readString(directory.resolve("blocked.txt")));
+        OutputTargets.close(directory);
+    }
+    @Test
+    void redirectsThroughLinksShareOneTarget() throws Exception {
+        Path directory = Files.createTempDirectory("cli");
+        Files.createFile(directory.resolve("log.txt"));
+        Files.createLink(directory.resolve("hard.txt"), directory.resolve("log.txt"));
+        Files.createSymbolicLink(directory.resolve("soft.txt"), directory.resolve("log.txt"));
+        List<Thread> writers = Stream.of("log.txt", "hard.txt", "soft.txt").map(name -> Thread.ofVirtual().start(() -> {
+            var cli = new CLI(directory);
+            for (int i = 0; i < 200; i++){
+                assertEquals("", cli.executeCommand("echo " + name + " >> " + name));
+            }
+        })).toList();
+        for (Thread writer: writers){
+            writer.join();
+        }
+        OutputTargets.flushAll();
+        List<String> lines = Files.readAllLines(directory.resolve("log.txt"));
+        assertEquals(600, lines.size());
+        assertEquals(200, lines.stream().filter("soft.txt"::equals).count());
+        // Unused targets are closed after a while
+        OutputTargets.retireIdle(0);
+        assertEquals(0, OutputTargets.openCount());
+    }
+    @Test
+    void historySearchAndReload() throws IOException {
+        Path file = Files.createTempDirectory("cli").resolve("history");
+        try (var history = new CommandHistory(file)){
+            for (int i = 0; i < 10_000; i++){
+                history.add("echo " + i);
+            }
+            history.add("cat notes.txt | grep todo");
+            history.add("cat notes.txt | grep todo");
+            history.add("cd src");
+            assertEquals(10_002, history.size());
+            assertEquals("cat notes.txt | grep todo", history.get(history.search("grep to", Integer.MAX_VALUE)));
+            assertEquals(-1, history.search("grep to", 10_000));
+            assertEquals(4242, history.search("echo 4242", Integer.MAX_VALUE));
+        }
+        // Appended by another shell after the index was saved
+        Files.writeString(file, "pwd\n", StandardOpenOption.APPEND);
+        try (var history = new CommandHistory(file)){
+            assertEquals(10_003, history.size());
+            assertEquals(10_002, history.search("pwd", Integer.MAX_VALUE));
+            assertEquals(4242, history.search("echo 4242", Integer.MAX_VALUE));
+            assertEquals("10001  cat notes.txt | grep todo\n", history.line(10_000));
+        }
+        // Only the interactive shell shows the user's history
+        assertEquals("\u001B[31mError! Only available in the interactive shell: \u001B[0m\u001B[33mhistory\u001B[0m", new CLI().executeCommand("history"));
+    }
+    @Test
+    void tailLastLinesAndFollowAcrossRotation() throws Exception {
+        var cli = new CLI(Files.createTempDirectory("cli"));
+        Path log = Path.of(cli.getCurrentDirectory(), "app.log");
+        StringBuilder content = new StringBuilder();
+        for (int i = 1; i <= 100_000; i++){
+            content.append("line ").append(i).append('\n');
+        }
+        Files.writeString(log, content);
+        assertEquals("line 99999\nline 100000\n", cli.executeCommand("tail -n 2 app.log"));
+        var matches = new LinkedBlockingQueue<String>();
+        Thread follower = Thread.ofPlatform().start(() -> cli.executeCommand("tail -n 1 -f app.log | grep -v INFO", matches::add));
+        assertEquals("line 100000\n", matches.poll(10, TimeUnit.SECONDS));
+        Files.writeString(log, "ERROR first\nINFO skipped\n", StandardOpenOption.APPEND);
+        assertEquals("ERROR first\n", matches.poll(10, TimeUnit.SECONDS));
+        Files.move(log, log.resolveSibling("app.log.1"));
+        Files.writeString(log, "ERROR after rotation\n");
+        assertEquals("ERROR after rotation\n", matches.poll(10, TimeUnit.SECONDS));
+        follower.interrupt();
+        follower.join(10_000);
+        assertFalse(follower.isAlive());
+    }
+    @Test
+    void pureResultsAreCachedUntilInputsChange() throws IOException {
+        var cli = new CLI(Files.createTempDirectory("cli"));
+        cli.setResultCache(true);
+        Path data = Path.of(cli.getCurrentDirectory(), "data.csv");
+        Files.writeString(data, "foo,1\nbar,2\nfoo,1\n");
+        // Old enough not to be a racy change
+        Files.setLastModifiedTime(data, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        assertEquals("foo,1\n", cli.executeCommand("cat data.csv | grep foo | uniq"));
+        assertEquals("foo,1\n", cli.executeCommand("cat data.csv | grep foo | uniq"));
+        assertTrue(cli.executeCommand("stats").contains("1 hits (0 from disk), 1 misses"));
+        Files.writeString(data, "foo,3\n", StandardOpenOption.APPEND);
+        Files.setLastModifiedTime(data, FileTime.fromMillis(System.currentTimeMillis() - 30_000));
+        assertEquals("foo,1\nfoo,3\n", cli.executeCommand("cat data.csv | grep foo | uniq"));
+    }
+    @Test
+    void sortCountCutAndHeadFilters() throws IOException {
+        var cli = new CLI(Files.createTempDirectory("cli"));
+        Path data = Path.of(cli.getCurrentDirectory(), "sales.tsv");
+        Files.writeString(data, "pear\t10\t1.5\napple\t9\t-2\nfig\t100\t0.25\n");
+        assertEquals("apple\t9\t-2\npear\t10\t1.5\nfig\t100\t0.25\n", cli.executeCommand("cat sales.tsv | sort -n -k 2"));
+        assertEquals("pear\t1.5\nfig\t0.25\napple\t-2\n", cli.executeCommand("cat sales.tsv | cut -f 1,3- | sort -nr -k2"));
+        assertEquals("      3       9      36\n", cli.executeCommand("cat sales.tsv | wc"));
+        assertEquals("pear\n", cli.executeCommand("cat sales.tsv | head -n 1 | cut -f1"));
+        // The rest of the input is not read once head has its lines
+        Path big = Path.of(cli.getCurrentDirectory(), "big.txt");
+        Files.write(big, IntStream.range(0, 200_000).mapToObj(Integer::toString).toList());
+        assertEquals("0\n1\n", cli.executeCommand("cat big.txt | head -n 2"));
+        assertEquals("2\n", cli.executeCommand("cat big.txt | head -n 2 | wc -l"));
+    }
+    @Test
+    void catGrepUniqRunOnByteBlocks() throws IOException {
+        var cli = new CLI(Files.createTempDirectory("cli"));
+        Files.writeString(Path.of(cli.getCurrentDirectory(), "a.txt"), "über\nApple\napple\napple\n\u212Aelvin\nx");
+        Files.writeString(Path.of(cli.getCurrentDirectory(), "b.txt"), "apple\nx\n");
+        assertEquals("über\nApple\napple\n\u212Aelvin\n", cli.executeCommand("cat a.txt b.txt | grep -i e | uniq"));
+        // The Kelvin sign folds to k: non-ASCII lines are matched on their chars
+        assertEquals("\u212Aelvin\n", cli.executeCommand("cat a.txt | grep -i kel"));
+        assertEquals("Apple\napple\n", cli.executeCommand("cat a.txt | grep pp | uniq -a"));
+        assertEquals("über\n\u212Aelvin\nx\nx\n", cli.executeCommand("cat a.txt b.txt | grep -v p"));
+        // grep -E takes the String stages: same lines
+        assertEquals(cli.executeCommand("cat a.txt b.txt | grep -E pp | uniq"), cli.executeCommand("cat a.txt b.txt | grep pp | uniq"));
+        assertEquals("2\n", cli.executeCommand("cat a.txt b.txt | grep -c x"));
+        // head passes the last line of a.txt without its '\n', so x and apple are one word
+        assertEquals("      7       7      42\n", cli.executeCommand("cat a.txt b.txt | head -n 8 | wc"));
+        assertEquals("", cli.executeCommand("cat a.txt b.txt | grep x > out.txt"));
+        assertEquals("x\nx\n", cli.executeCommand("cat out.txt"));
+        assertTrue(cli.executeCommand("time cat a.txt | grep x").split("\n")[2].startsWith("cat|grep "));
+    }
+    @Test
+    void compressedFilesAreDetectedAndWritten() throws IOException {
+        var cli = new CLI(Files.createTempDirectory("cli"));
+        Path plain = Path.of(cli.getCurrentDirectory(), "app.log");
+        Files.write(plain, IntStream.range(0, 100_000).mapToObj(i -> (i % 7 == 0 ? "ERROR " : "INFO ") + i).toList());
+        // One member from the JDK, no .gz name: found by its magic bytes
+        try (OutputStream out = new java.util.zip.GZIPOutputStream(Files.newOutputStream(Path.of(cli.getCurrentDirectory(), "app.1")))){
+            Files.copy(plain, out);
+        }
+        String errors = cli.executeCommand("cat app.log | grep ERROR | wc -l");
+        assertEquals(errors, cli.executeCommand("cat app.1 | grep ERROR | wc -l"));
+        assertEquals("INFO 99999\n", cli.executeCommand("tail -n 1 app.1"));
+        // BGZF and zstd on write, and >> adds members
+        assertEquals("", cli.executeCommand("cat app.log > app.log.gz"));
+        assertEquals("", cli.executeCommand("cat app.log | grep -E ERROR > errors.zst"));
+        assertEquals("", cli.executeCommand("echo done >> app.log.gz"));
+        try (InputStream in = new java.util.zip.GZIPInputStream(Files.newInputStream(Path.of(cli.getCurrentDirectory(), "app.log.gz")))){
+            assertEquals(Files.readString(plain) + "done\n", new String(in.readAllBytes()));
+        }
+        assertEquals(errors, cli.executeCommand("cat errors.zst | wc -l"));
+        assertEquals("done\n", cli.executeCommand("tail -n 1 app.log.gz"));
+    }
+    @Test
+    void transactionsCoalesceCommitAndRollBack() throws IOException {
+        var cli = new CLI(Files.createTempDirectory("cli"));
+        Path journals = Files.createTempDirectory("journal");
+        cli.setJournalDirectory(journals);
+        Path directory = Path.of(cli.getCurrentDirectory());
+        Files.writeString(directory.resolve("keep.txt"), "kept\n");
+        assertEquals("Transaction started", cli.executeCommand("begin"));
+        cli.executeCommand("mkdir out");
+        cli.executeCommand("touch out/a.txt tmp.txt");
+        cli.executeCommand("mv out/a.txt out/b.txt");
+        cli.executeCommand("mv keep.txt out");
+        cli.executeCommand("rm tmp.txt");
+        assertTrue(cli.executeCommand("rm missing.txt").contains("File not found"));
+        // Nothing happens before commit
+        assertFalse(Files.exists(directory.resolve("out")));
+        // mkdir out, touch out/b.txt, mv keep.txt out/keep.txt
+        assertTrue(cli.executeCommand("commit").startsWith("Committed: 3 operations in 2 steps"));
+        assertEquals("kept\n", cli.executeCommand("cat out/keep.txt"));
+        assertTrue(Files.exists(directory.resolve("out/b.txt")));
+        assertFalse(Files.exists(directory.resolve("tmp.txt")));
+        // A failing step undoes the others
+        Files.createDirectory(directory.resolve("empty"));
+        cli.executeCommand("begin");
+        cli.executeCommand("rm -r out");
+        cli.executeCommand("mkdir made");
+        cli.executeCommand("rmdir empty");
+        cli.executeCommand("echo on disk > empty/clash");
+        assertTrue(cli.executeCommand("commit").contains("Commit failed, rolled back"));
+        assertEquals("kept\n", cli.executeCommand("cat out/keep.txt"));
+        assertFalse(Files.exists(directory.resolve("made")));
+        assertEquals("on disk\n", cli.executeCommand("cat empty/clash"));
+        // Nothing is applied when a path the plan looked at changed since
+        cli.executeCommand("begin");
+        cli.executeCommand("mkdir made");
+        cli.executeCommand("touch clash");
+        cli.executeCommand("echo on disk > clash");
+        assertTrue(cli.executeCommand("commit").contains("Changed since it was planned"));
+        assertFalse(Files.exists(directory.resolve("made")));
+        assertEquals("on disk\n", cli.executeCommand("cat clash"));
+        try (Stream<Path> entries = Files.list(directory)){
+            assertEquals(3, entries.count());
+        }
+        assertEquals("Nothing to recover", cli.executeCommand("recover"));
+        // A damaged journal is reported on every recover, not left locked
+        Files.writeString(journals.resolve("0.journal"), "garbage");
+        assertTrue(cli.executeCommand("recover").startsWith("Damaged: " + journals.resolve("0.journal")));
+        assertTrue(cli.executeCommand("recover").startsWith("Damaged: " + journals.resolve("0.journal")));
+    }
+    // -p runs script lines one at a time inside a transaction, the plan is not thread-safe
+    @Test
+    void parallelScriptInsideTransaction() throws IOException {
+        var cli = new CLI(Files.createTempDirectory("cli"));
+        cli.setJournalDirectory(Files.createTempDirectory("journal"));
+        StringBuilder script = new StringBuilder("begin\n");
+        for (int i = 0; i < 400; i++){
+            script.append("mkdir d").append(i).append('\n').append("touch f").append(i).append('\n');
+        }
+        script.append("commit\n");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new ScriptRunner(cli, new PrintStream(output, true), true).run(new BufferedReader(new StringReader(script.toString())));
+        assertFalse(output.toString().contains("Error"), output.toString());
+        try (Stream<Path> entries = Files.list(Path.of(cli.getCurrentDirectory()))){
+            assertEquals(800, entries.count());
+        }
+    }
+    @Test
+    void timeReportsEveryStageAndMetricsArePrometheusText(){
+        var cli = new CLI();
+        String[] timed = cli.executeCommand("time ls | grep . | head -n 1").split("\n");
+        assertEquals(cli.executeCommand("ls | grep . | head -n 1"), timed[0] + "\n");
+        assertTrue(timed[1].startsWith("stage"));
+        assertTrue(timed[2].startsWith("ls ") && timed[3].startsWith("grep ") && timed[4].startsWith("head "));
+        assertTrue(timed[5].startsWith("total "));
+        String metrics = cli.executeCommand("metrics");
+        assertTrue(metrics.contains("# TYPE cli_stage_duration_seconds summary\n"));
+        assertTrue(metrics.matches("(?s).*\ncli_stage_duration_seconds_count\\{stage=\"grep\"\\} [1-9].*"));
+    }
+    @Test
+    void serverSessionsAreIndependent() throws Exception {
+        Path socket = Files.createTempDirectory("cli").resolve("cli.sock");
+        try (CLIServer server = new CLIServer(UnixDomainSocketAddress.of(socket))){
+            Thread.ofVirtual().start(() -> {
+                try {
+                    server.serve();
+                } catch (IOException ignored) {
+                }
+            });
+            try (var first = SocketChannel.open(server.address());
+                 var second = SocketChannel.open(server.address())){
+                String start = new CLI().getCurrentDirectory();
+                assertEquals("Directory changed: src\n", request(first, "cd src"));
+                assertEquals(Paths.get(start, "src") + "\n", request(first, "pwd"));
+                assertEquals(start + "\n", request(second, "pwd"));
+            }
+        }
+    }
+    private static String request(SocketChannel session, String command) throws IOException {
+        session.write(ByteBuffer.wrap((command + "\n").getBytes()));
+        var in = new BufferedReader(new InputStreamReader(Channels.newInputStream(session)), 1);
+        StringBuilder output = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null && !line.equals(String.valueOf(CLIServer.END_OF_OUTPUT))){
+            output.append(line).append("\n");
+        }
+        return output.toString();
+    }
+
     //Cat wrong file name
     @Test
     void catWrongFile(){
@@ -220,6 +682,24 @@ class CLITest {
 //        assertEquals(cli.executeCommand("cat pom.xml | less"), "");
 //    }
 
+    // Streaming execution hands the same lines to the sink
+    @Test
+    void streamingPipelineSink(){
+        var cli = new CLI();
+        StringBuilder output = new StringBuilder();
+        cli.executeCommand("ls | grep .", output::append);
+        assertEquals(cli.executeCommand("ls | grep ."), output.toString());
+    }
+
+    // Concurrent stages must produce the same output as the sequential pipeline
+    @Test
+    void concurrentPipelineMatchesSequential(){
+        var cli = new CLI();
+        String expectedOutput = cli.executeCommand("ls | grep . | uniq");
+        cli.setConcurrentPipeline(true);
+        assertEquals(expectedOutput, cli.executeCommand("ls | grep . | uniq"));
+    }
+
     @Test
     void unknownCommand(){
         var cli = new CLI();